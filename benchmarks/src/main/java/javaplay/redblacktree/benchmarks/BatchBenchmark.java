@@ -0,0 +1,95 @@
+package javaplay.redblacktree.benchmarks;
+
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import javaplay.redblacktree.RedBlackTree;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Applying a batch of batchSize unsorted keys to a tree of size keys, one put or remove
+ * at a time against putAll and removeAll. The put batch is all new keys, the remove batch
+ * all present ones. Batches of at least 1/8 the tree are merged and rebuilt; smaller ones
+ * take finger searches in key order.
+ */
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 10)
+@Fork(value = 1, jvmArgsAppend = {"-Xmx4g"})
+@State(Scope.Benchmark)
+public class BatchBenchmark {
+	@Param({"1000000"})
+	public int size;
+
+	@Param({"1000", "10000", "100000", "250000"})
+	public int batchSize;
+
+	private List<Map.Entry<String, String>> sortedEntries;
+	private String[] newKeys;
+	private String[] presentKeys;
+	private String[] results;
+	private RedBlackTree tree;
+
+	@Setup(Level.Trial)
+	public void setUp() {
+		String[] keys = Keys.keys(Keys.Shape.RANDOM, size);
+		sortedEntries = new ArrayList<Map.Entry<String, String>>(size);
+		for (String key : Keys.sorted(keys)) {
+			sortedEntries.add(new AbstractMap.SimpleImmutableEntry<String, String>(key, key));
+		}
+		newKeys = Keys.absentKeys(Keys.Shape.RANDOM, batchSize, size);
+		presentKeys = new String[batchSize];
+		System.arraycopy(keys, 0, presentKeys, 0, batchSize);
+		results = new String[batchSize];
+	}
+
+	@Setup(Level.Invocation)
+	public void buildTree() {
+		tree = RedBlackTree.fromSorted(sortedEntries.iterator(), size);
+	}
+
+	@Benchmark
+	public RedBlackTree putEach() {
+		for (int i = 0; i < batchSize; i++) {
+			results[i] = tree.get(newKeys[i]);
+			tree.put(newKeys[i], newKeys[i]);
+		}
+		return tree;
+	}
+
+	@Benchmark
+	public RedBlackTree putAll() {
+		tree.putAll(newKeys, newKeys, results);
+		return tree;
+	}
+
+	@Benchmark
+	public RedBlackTree removeEach() {
+		for (int i = 0; i < batchSize; i++) {
+			results[i] = tree.remove(presentKeys[i]);
+		}
+		return tree;
+	}
+
+	@Benchmark
+	public RedBlackTree removeAll() {
+		tree.removeAll(presentKeys, results);
+		return tree;
+	}
+}
@@ -0,0 +1,82 @@
+package javaplay.redblacktree.benchmarks;
+
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
+
+import javaplay.redblacktree.RedBlackTree;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Building a whole tree: n puts in random or ascending order versus the bottom-up
+ * fromSorted build, with TreeMap as the baseline.
+ */
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(value = 1, jvmArgsAppend = {"-Xmx8g"})
+@State(Scope.Benchmark)
+public class BuildBenchmark {
+	@Param({"1000000", "10000000"})
+	public int size;
+	
+	private String[] randomOrder;
+	private List<Map.Entry<String, String>> sortedEntries;
+	
+	@Setup(Level.Trial)
+	public void setUp() {
+		randomOrder = Keys.keys(Keys.Shape.RANDOM, size);
+		sortedEntries = new ArrayList<Map.Entry<String, String>>(size);
+		for (String key : Keys.sorted(randomOrder)) {
+			sortedEntries.add(new AbstractMap.SimpleImmutableEntry<String, String>(key, key));
+		}
+	}
+	
+	@Benchmark
+	public RedBlackTree putRandomOrder() {
+		RedBlackTree tree = new RedBlackTree();
+		for (String key : randomOrder) {
+			tree.put(key, key);
+		}
+		return tree;
+	}
+	
+	@Benchmark
+	public RedBlackTree putSortedOrder() {
+		RedBlackTree tree = new RedBlackTree();
+		for (Map.Entry<String, String> entry : sortedEntries) {
+			tree.put(entry.getKey(), entry.getValue());
+		}
+		return tree;
+	}
+	
+	@Benchmark
+	public RedBlackTree fromSorted() {
+		return RedBlackTree.fromSorted(sortedEntries.iterator(), sortedEntries.size());
+	}
+	
+	@Benchmark
+	public TreeMap<String, String> treeMapPutRandomOrder() {
+		TreeMap<String, String> treeMap = new TreeMap<String, String>();
+		for (String key : randomOrder) {
+			treeMap.put(key, key);
+		}
+		return treeMap;
+	}
+}
@@ -0,0 +1,85 @@
+package javaplay.redblacktree.benchmarks;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+import javaplay.redblacktree.ConcurrentRedBlackTree;
+import javaplay.redblacktree.RedBlackTree;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Read-mostly throughput of ConcurrentRedBlackTree against a RedBlackTree behind one
+ * global lock. Scale the thread count with -t (e.g. -t 1, -t 4, -t 16); writePercent
+ * sets the share of operations that are a put or remove.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class ConcurrentBenchmark {
+	@Param({"100000"})
+	public int size;
+	
+	@Param({"0", "1", "10"})
+	public int writePercent;
+	
+	private ConcurrentRedBlackTree concurrentTree;
+	private RedBlackTree lockedTree;
+	private String[] keys;
+	
+	@Setup(Level.Trial)
+	public void setUp() {
+		keys = Keys.keys(Keys.Shape.RANDOM, size);
+		concurrentTree = new ConcurrentRedBlackTree();
+		lockedTree = new RedBlackTree();
+		for (String key : keys) {
+			concurrentTree.put(key, key);
+			lockedTree.put(key, key);
+		}
+	}
+	
+	@Benchmark
+	public String concurrent() {
+		ThreadLocalRandom random = ThreadLocalRandom.current();
+		String key = keys[random.nextInt(keys.length)];
+		if (random.nextInt(100) < writePercent) {
+			// remove and reinsert so the tree stays the same size
+			String value = concurrentTree.remove(key);
+			if (value != null) {
+				concurrentTree.put(key, value);
+			}
+			return value;
+		}
+		return concurrentTree.get(key);
+	}
+	
+	@Benchmark
+	public String globalLock() {
+		ThreadLocalRandom random = ThreadLocalRandom.current();
+		String key = keys[random.nextInt(keys.length)];
+		synchronized (lockedTree) {
+			if (random.nextInt(100) < writePercent) {
+				String value = lockedTree.remove(key);
+				if (value != null) {
+					lockedTree.put(key, value);
+				}
+				return value;
+			}
+			return lockedTree.get(key);
+		}
+	}
+}
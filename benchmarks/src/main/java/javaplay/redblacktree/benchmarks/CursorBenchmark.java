@@ -0,0 +1,92 @@
+package javaplay.redblacktree.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import javaplay.redblacktree.LongRedBlackTree;
+import javaplay.redblacktree.RedBlackTree;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Localized access through the tree against the same through a Cursor. slidingWindow is
+ * the timestamp-keyed case: append the newest key and evict the oldest, with one cursor
+ * at each end. scan looks up every key in ascending order, so each lookup is one step
+ * from the previous one; LONG_PREFIX keys make the compares a cursor saves expensive.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class CursorBenchmark {
+	@Param({"100000", "1000000"})
+	public int size;
+
+	@Param({"SEQUENTIAL", "LONG_PREFIX"})
+	public Keys.Shape shape;
+
+	private LongRedBlackTree<String> window;
+	private LongRedBlackTree<String>.Cursor head;
+	private LongRedBlackTree<String>.Cursor tail;
+	private long next;
+
+	private RedBlackTree tree;
+	private RedBlackTree.Cursor cursor;
+	private String[] sortedKeys;
+	private int position;
+
+	@Setup(Level.Trial)
+	public void setUp() {
+		window = new LongRedBlackTree<String>();
+		head = window.cursor();
+		tail = window.cursor();
+		for (next = 0; next < size; next++) {
+			window.put(next * 1000, "v");
+		}
+		sortedKeys = Keys.sorted(Keys.keys(shape, size));
+		tree = new RedBlackTree();
+		for (String key : sortedKeys) {
+			tree.put(key, key);
+		}
+		cursor = tree.cursor();
+	}
+
+	private int nextPosition() {
+		position = position + 1 == size ? 0 : position + 1;
+		return position;
+	}
+
+	@Benchmark
+	public String slidingWindowTree() {
+		window.put(next * 1000, "v");
+		return window.remove((next++ - size) * 1000);
+	}
+
+	@Benchmark
+	public String slidingWindowCursor() {
+		head.put(next * 1000, "v");
+		return tail.remove((next++ - size) * 1000);
+	}
+
+	@Benchmark
+	public String scanTree() {
+		return tree.get(sortedKeys[nextPosition()]);
+	}
+
+	@Benchmark
+	public String scanCursor() {
+		return cursor.get(sortedKeys[nextPosition()]);
+	}
+}
@@ -0,0 +1,88 @@
+package javaplay.redblacktree.benchmarks;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+import javaplay.redblacktree.DurableRedBlackTree;
+import javaplay.redblacktree.DurableRedBlackTree.SyncPolicy;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * put/remove throughput of DurableRedBlackTree under each sync policy. Scale the thread
+ * count with -t to see group commit at work: under ALWAYS, concurrent writers share
+ * fsyncs, so throughput should grow with threads even though every op is durable. The
+ * log is checkpointed between iterations so it doesn't grow without bound.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class DurabilityBenchmark {
+	@Param({"100000"})
+	public int size;
+
+	@Param({"ALWAYS", "INTERVAL", "NEVER"})
+	public SyncPolicy policy;
+
+	// how often INTERVAL forces the log
+	@Param({"10"})
+	public long intervalMillis;
+
+	private File directory;
+	private DurableRedBlackTree tree;
+	private String[] keys;
+
+	@Setup(Level.Trial)
+	public void setUp() throws IOException {
+		directory = Files.createTempDirectory("rbt-wal").toFile();
+		tree = new DurableRedBlackTree(directory, policy, intervalMillis);
+		keys = Keys.keys(Keys.Shape.RANDOM, size);
+		for (String key : keys) {
+			tree.put(key, key);
+		}
+		tree.checkpoint();
+	}
+
+	@TearDown(Level.Iteration)
+	public void checkpoint() throws IOException {
+		tree.checkpoint();
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() throws IOException {
+		tree.close();
+		for (File file : directory.listFiles()) {
+			file.delete();
+		}
+		directory.delete();
+	}
+
+	@Benchmark
+	public String putRemove() {
+		// remove and reinsert so the tree stays the same size
+		String key = keys[ThreadLocalRandom.current().nextInt(keys.length)];
+		String value = tree.remove(key);
+		if (value != null) {
+			tree.put(key, value);
+		}
+		return value;
+	}
+}
@@ -0,0 +1,115 @@
+package javaplay.redblacktree.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import javaplay.redblacktree.RedBlackTree;
+import javaplay.redblacktree.TopDownRedBlackTree;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * The bottom-up (RedBlackTree) and top-down (TopDownRedBlackTree) rebalancing engines
+ * side by side on the update paths, which are the only ones that differ. Run with
+ * -prof gc as well: the top-down put allocates its node before it knows whether the key
+ * is already there.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class EngineBenchmark {
+	private static final int PATTERN_LENGTH = 1 << 16;
+
+	public enum Engine {
+		BOTTOM_UP,
+		TOP_DOWN
+	}
+
+	@Param({"1000", "100000", "1000000"})
+	public int size;
+
+	@Param({"SEQUENTIAL", "RANDOM"})
+	public Keys.Shape shape;
+
+	@Param({"BOTTOM_UP", "TOP_DOWN"})
+	public Engine engine;
+
+	private RedBlackTree tree;
+	private String[] keys;
+	private String[] absentKeys;
+	private int[] pattern;
+	private int position;
+
+	private RedBlackTree newTree() {
+		return engine == Engine.TOP_DOWN ? new TopDownRedBlackTree() : new RedBlackTree();
+	}
+
+	@Setup(Level.Trial)
+	public void setUp() {
+		keys = Keys.keys(shape, size);
+		absentKeys = Keys.absentKeys(shape, PATTERN_LENGTH, size);
+		pattern = Keys.accessPattern(Keys.Access.UNIFORM, size, PATTERN_LENGTH);
+		tree = build();
+	}
+
+	private int next() {
+		position = (position + 1) & (PATTERN_LENGTH - 1);
+		return position;
+	}
+
+	@Benchmark
+	@BenchmarkMode(Mode.SingleShotTime)
+	@OutputTimeUnit(TimeUnit.MILLISECONDS)
+	@Warmup(iterations = 5)
+	@Measurement(iterations = 10)
+	public RedBlackTree build() {
+		// size puts into an empty tree, every one an insert
+		RedBlackTree built = newTree();
+		for (String key : keys) {
+			built.put(key, key);
+		}
+		return built;
+	}
+
+	@Benchmark
+	public String putRemove() {
+		// insert an absent key and take it out again, so the tree size stays put
+		String key = absentKeys[next()];
+		tree.put(key, key);
+		return tree.remove(key);
+	}
+
+	@Benchmark
+	public String removePut() {
+		// remove a present key and put it back
+		String key = keys[pattern[next()]];
+		String value = tree.remove(key);
+		tree.put(key, value);
+		return value;
+	}
+
+	@Benchmark
+	public RedBlackTree overwrite() {
+		// put to a key that is already there: no insert, but top-down still rebalances on the way
+		String key = keys[pattern[next()]];
+		return (RedBlackTree)tree.put(key, key);
+	}
+
+	@Benchmark
+	public String removeMissing() {
+		return tree.remove(absentKeys[next()]);
+	}
+}
@@ -0,0 +1,88 @@
+package javaplay.redblacktree.benchmarks;
+
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+import javaplay.redblacktree.RedBlackTree;
+import javaplay.redblacktree.Utf8RedBlackTree;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Lookups in RedBlackTree (String keys, String.compareTo at every level) against
+ * Utf8RedBlackTree (UTF-8 keys, comparisons starting past the prefix already known to
+ * match), given either the String or the already encoded key. LONG_PREFIX is the case
+ * the UTF-8 tree is for; RANDOM keys share little, so it shows the overhead when there
+ * is nothing to skip. For the memory side, run NodeLayout or compare heap histograms.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class KeyStorageBenchmark {
+	private static final int PATTERN_LENGTH = 1 << 16;
+
+	@Param({"100000", "1000000"})
+	public int size;
+
+	@Param({"LONG_PREFIX", "RANDOM"})
+	public Keys.Shape shape;
+
+	private RedBlackTree tree;
+	private Utf8RedBlackTree utf8Tree;
+	private String[] lookups;
+	private byte[][] encodedLookups;
+	private int position;
+
+	@Setup(Level.Trial)
+	public void setUp() {
+		String[] keys = Keys.keys(shape, size);
+		tree = new RedBlackTree();
+		utf8Tree = new Utf8RedBlackTree();
+		for (String key : keys) {
+			tree.put(key, key);
+			utf8Tree.put(key, key);
+		}
+		int[] pattern = Keys.accessPattern(Keys.Access.UNIFORM, size, PATTERN_LENGTH);
+		lookups = new String[PATTERN_LENGTH];
+		encodedLookups = new byte[PATTERN_LENGTH][];
+		for (int i = 0; i < PATTERN_LENGTH; i++) {
+			lookups[i] = keys[pattern[i]];
+			encodedLookups[i] = lookups[i].getBytes(StandardCharsets.UTF_8);
+		}
+	}
+
+	private int next() {
+		position = (position + 1) & (PATTERN_LENGTH - 1);
+		return position;
+	}
+
+	@Benchmark
+	public String getString() {
+		return tree.get(lookups[next()]);
+	}
+
+	@Benchmark
+	public String getUtf8() {
+		return utf8Tree.get(encodedLookups[next()]);
+	}
+
+	@Benchmark
+	public String getUtf8FromString() {
+		// includes encoding the key on every lookup
+		return utf8Tree.get(lookups[next()]);
+	}
+}
@@ -0,0 +1,125 @@
+package javaplay.redblacktree.benchmarks;
+
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * Key sets and access patterns shared by the benchmarks. Everything is generated from a
+ * fixed seed so runs are comparable.
+ */
+public class Keys {
+	public static enum Shape {
+		// zero-padded counters inserted in ascending order
+		SEQUENTIAL,
+		// zero-padded random numbers inserted in random order
+		RANDOM,
+		// long hierarchical keys (tenant/region/service/...) sharing prefixes
+		LONG_PREFIX
+	}
+	
+	public static enum Access {
+		UNIFORM,
+		// Zipfian with exponent 0.99, hottest keys spread over the key space
+		ZIPFIAN
+	}
+	
+	private static final long SEED = 0x5eedL;
+	
+	public static String key(Shape shape, long n) {
+		switch (shape) {
+		case LONG_PREFIX:
+			return String.format("tenant-%03d/region-%02d/service-%04d/instance-%010d",
+					n % 97, n % 13, n % 1009, n);
+		default:
+			return String.format("%012d", n);
+		}
+	}
+	
+	public static String[] keys(Shape shape, int count) {
+		// count distinct keys, in the order they should be inserted
+		String[] keys = new String[count];
+		if (shape == Shape.SEQUENTIAL) {
+			for (int i = 0; i < count; i++) {
+				keys[i] = key(shape, i);
+			}
+			return keys;
+		}
+		Random random = new Random(SEED);
+		long[] numbers = new long[count];
+		// spread the numbers out so that absentKeys() can find gaps between them
+		for (int i = 0; i < count; i++) {
+			numbers[i] = (long) i * 4;
+		}
+		for (int i = count - 1; i > 0; i--) {
+			int j = random.nextInt(i + 1);
+			long tmp = numbers[i];
+			numbers[i] = numbers[j];
+			numbers[j] = tmp;
+		}
+		for (int i = 0; i < count; i++) {
+			keys[i] = key(shape, numbers[i]);
+		}
+		return keys;
+	}
+	
+	public static String[] absentKeys(Shape shape, int count, int existing) {
+		// keys that fall between the keys returned by keys(shape, existing)
+		Random random = new Random(SEED + 1);
+		String[] keys = new String[count];
+		for (int i = 0; i < count; i++) {
+			long n = (long) random.nextInt(Math.max(existing, 1));
+			keys[i] = shape == Shape.SEQUENTIAL ? key(shape, n) + "x" : key(shape, n * 4 + 1);
+		}
+		return keys;
+	}
+	
+	public static String[] sorted(String[] keys) {
+		String[] sorted = keys.clone();
+		Arrays.sort(sorted);
+		return sorted;
+	}
+	
+	public static int[] accessPattern(Access access, int keyCount, int length) {
+		// indices into a key array, drawn from the given distribution
+		Random random = new Random(SEED + 2);
+		int[] pattern = new int[length];
+		if (access == Access.UNIFORM) {
+			for (int i = 0; i < length; i++) {
+				pattern[i] = random.nextInt(keyCount);
+			}
+			return pattern;
+		}
+		double[] cumulative = new double[keyCount];
+		double total = 0.0;
+		for (int i = 0; i < keyCount; i++) {
+			total += 1.0 / Math.pow(i + 1, 0.99);
+			cumulative[i] = total;
+		}
+		// rank r maps to a scattered index so the hot keys aren't all adjacent in the tree
+		long stride = 2654435761L % keyCount;
+		if (stride == 0) {
+			stride = 1;
+		}
+		while (gcd(stride, keyCount) != 1) {
+			stride++;
+		}
+		for (int i = 0; i < length; i++) {
+			double u = random.nextDouble() * total;
+			int rank = Arrays.binarySearch(cumulative, u);
+			if (rank < 0) {
+				rank = Math.min(-rank - 1, keyCount - 1);
+			}
+			pattern[i] = (int) ((rank * stride) % keyCount);
+		}
+		return pattern;
+	}
+	
+	private static long gcd(long a, long b) {
+		while (b != 0) {
+			long t = a % b;
+			a = b;
+			b = t;
+		}
+		return a;
+	}
+}
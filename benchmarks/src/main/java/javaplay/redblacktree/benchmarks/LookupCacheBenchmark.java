@@ -0,0 +1,89 @@
+package javaplay.redblacktree.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import javaplay.redblacktree.LookupCache;
+import javaplay.redblacktree.RedBlackTree;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * get with and without a LookupCache in front of the tree. cacheCapacity is a fraction of
+ * the tree size given in thousandths, so the default 10 caches 1% of the keys. NONE is
+ * the uncached baseline. The hit rate of each trial is printed at teardown.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class LookupCacheBenchmark {
+	private static final int PATTERN_LENGTH = 1 << 20;
+
+	public enum CachePolicy {
+		NONE,
+		CLOCK,
+		TINY_LFU
+	}
+
+	@Param({"100000", "1000000"})
+	public int size;
+
+	@Param({"ZIPFIAN", "UNIFORM"})
+	public Keys.Access access;
+
+	@Param({"NONE", "CLOCK", "TINY_LFU"})
+	public CachePolicy policy;
+
+	@Param({"10"})
+	public int cachePerMille;
+
+	private RedBlackTree tree;
+	private String[] lookups;
+	private int position;
+
+	@Setup(Level.Trial)
+	public void setUp() {
+		String[] keys = Keys.keys(Keys.Shape.LONG_PREFIX, size);
+		tree = new RedBlackTree();
+		for (String key : keys) {
+			tree.put(key, key);
+		}
+		if (policy != CachePolicy.NONE) {
+			int capacity = Math.max(1, (int)((long)size * cachePerMille / 1000));
+			tree.setLookupCache(new LookupCache(capacity, LookupCache.Policy.valueOf(policy.name())));
+		}
+		int[] pattern = Keys.accessPattern(access, size, PATTERN_LENGTH);
+		lookups = new String[PATTERN_LENGTH];
+		for (int i = 0; i < PATTERN_LENGTH; i++) {
+			lookups[i] = keys[pattern[i]];
+		}
+	}
+
+	@TearDown(Level.Trial)
+	public void report() {
+		LookupCache cache = tree.getLookupCache();
+		if (cache != null) {
+			System.out.printf("%n%s hit rate %.3f%n", cache.getPolicy(), cache.getHitRate());
+		}
+	}
+
+	@Benchmark
+	public String get() {
+		position = (position + 1) & (PATTERN_LENGTH - 1);
+		return tree.get(lookups[position]);
+	}
+}
@@ -0,0 +1,37 @@
+package javaplay.redblacktree.benchmarks;
+
+import javaplay.redblacktree.GenericNode;
+import javaplay.redblacktree.IntNode;
+import javaplay.redblacktree.LongNode;
+import javaplay.redblacktree.Node;
+import javaplay.redblacktree.RedBlackTree;
+
+import org.openjdk.jol.info.ClassLayout;
+import org.openjdk.jol.info.GraphLayout;
+import org.openjdk.jol.vm.VM;
+
+/**
+ * Prints the field layout and instance size of each node class, and the footprint of a
+ * populated tree, as JOL sees them on this JVM. Not a benchmark; run it with
+ *
+ *   java -cp target/benchmarks.jar javaplay.redblacktree.benchmarks.NodeLayout [size]
+ *
+ * and again with -XX:-UseCompressedOops, which is what heaps over 32GB get, to see the
+ * layout at the sizes where node overhead matters most.
+ */
+public class NodeLayout {
+	public static void main(String[] args) {
+		int size = args.length > 0 ? Integer.parseInt(args[0]) : 100000;
+		System.out.println(VM.current().details());
+		for (Class<?> nodeClass : new Class<?>[]{Node.class, GenericNode.class, IntNode.class, LongNode.class}) {
+			System.out.println(ClassLayout.parseClass(nodeClass).toPrintable());
+		}
+		
+		RedBlackTree tree = new RedBlackTree();
+		for (String key : Keys.keys(Keys.Shape.RANDOM, size)) {
+			tree.put(key, key);
+		}
+		// the graph includes the keys; the values are the same strings, so they add nothing
+		System.out.println(GraphLayout.parseInstance(tree).toFootprint());
+	}
+}
@@ -0,0 +1,97 @@
+package javaplay.redblacktree.benchmarks;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import javaplay.redblacktree.ReadTree;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * The whole ReadTree pipeline (read, parse, execute, format) over a generated workload
+ * file, with output discarded. Unlike startintv/endintv this runs after JIT warmup.
+ */
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+@State(Scope.Benchmark)
+public class ReadTreeBenchmark {
+	@Param({"1000000"})
+	public int commands;
+	
+	// run ReadTree with its "pipeline" option
+	@Param({"false", "true"})
+	public boolean pipelined;
+	
+	private File workload;
+	private PrintStream originalOut;
+	
+	@Setup(Level.Trial)
+	public void setUp() throws IOException {
+		// a mix of 40% put, 50% get and 10% remove over a key space a quarter the
+		// size of the command count
+		workload = File.createTempFile("readtree", ".txt");
+		workload.deleteOnExit();
+		Random random = new Random(1);
+		int keySpace = Math.max(commands / 4, 1);
+		try (BufferedWriter writer = new BufferedWriter(new FileWriter(workload))) {
+			for (int i = 0; i < commands; i++) {
+				String key = Keys.key(Keys.Shape.RANDOM, random.nextInt(keySpace));
+				int op = random.nextInt(10);
+				if (op < 4) {
+					writer.write("put " + key + " value_" + i);
+				} else if (op < 9) {
+					writer.write("get " + key);
+				} else {
+					writer.write("remove " + key);
+				}
+				writer.newLine();
+			}
+		}
+		originalOut = System.out;
+		System.setOut(new PrintStream(new OutputStream() {
+			@Override
+			public void write(int b) {
+			}
+			
+			@Override
+			public void write(byte[] b, int off, int len) {
+			}
+		}));
+	}
+	
+	@TearDown(Level.Trial)
+	public void tearDown() {
+		System.setOut(originalOut);
+		workload.delete();
+	}
+	
+	@Benchmark
+	public void replay() {
+		if (pipelined) {
+			ReadTree.main(new String[]{workload.getPath(), "pipeline"});
+		} else {
+			ReadTree.main(new String[]{workload.getPath()});
+		}
+	}
+}
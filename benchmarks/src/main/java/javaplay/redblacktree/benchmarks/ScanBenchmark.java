@@ -0,0 +1,72 @@
+package javaplay.redblacktree.benchmarks;
+
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import javaplay.redblacktree.RedBlackTree;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Full scans: chained successor() calls (each one a fresh descent), the iterator, and
+ * sequential versus parallel streams over the splitting spliterator.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(value = 1, jvmArgsAppend = {"-Xmx8g"})
+@State(Scope.Benchmark)
+public class ScanBenchmark {
+	@Param({"1000000", "10000000"})
+	public int size;
+	
+	private RedBlackTree tree;
+	
+	@Setup(Level.Trial)
+	public void setUp() {
+		tree = new RedBlackTree();
+		for (String key : Keys.keys(Keys.Shape.RANDOM, size)) {
+			tree.put(key, key);
+		}
+	}
+	
+	@Benchmark
+	public long successorChain() {
+		long total = 0;
+		for (String key = tree.select(0); key != null; key = tree.successor(key)) {
+			total += key.length();
+		}
+		return total;
+	}
+	
+	@Benchmark
+	public long iterator() {
+		long total = 0;
+		for (Map.Entry<String, String> entry : tree.entries()) {
+			total += entry.getValue().length();
+		}
+		return total;
+	}
+	
+	@Benchmark
+	public long sequentialStream() {
+		return tree.stream().mapToLong(entry -> entry.getValue().hashCode()).sum();
+	}
+	
+	@Benchmark
+	public long parallelStream() {
+		return tree.parallelStream().mapToLong(entry -> entry.getValue().hashCode()).sum();
+	}
+}
@@ -0,0 +1,99 @@
+package javaplay.redblacktree.benchmarks;
+
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import javaplay.redblacktree.RedBlackTree;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Resharding and combining trees. splitAtMedian moves the upper half of a tree of size
+ * keys out with split, against copying it out entry by entry (the copy leaves the source
+ * untouched, so this is the cheaper half of the old move). union adds an otherSize tree
+ * with the join-based union, against putAll of its keys. Run with several cores to see
+ * union combine big trees in parallel.
+ */
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 10)
+@Fork(value = 1, jvmArgsAppend = {"-Xmx8g"})
+@State(Scope.Benchmark)
+public class SetOperationBenchmark {
+	@Param({"1000000"})
+	public int size;
+
+	@Param({"10000", "1000000"})
+	public int otherSize;
+
+	private List<Map.Entry<String, String>> sortedEntries;
+	private List<Map.Entry<String, String>> otherSortedEntries;
+	private String[] otherKeys;
+	private String median;
+	private RedBlackTree tree;
+	private RedBlackTree other;
+
+	@Setup(Level.Trial)
+	public void setUp() {
+		String[] keys = Keys.keys(Keys.Shape.RANDOM, size);
+		sortedEntries = entries(Keys.sorted(keys));
+		median = sortedEntries.get(size / 2).getKey();
+		otherKeys = Keys.absentKeys(Keys.Shape.RANDOM, otherSize, size);
+		otherSortedEntries = entries(Keys.sorted(otherKeys));
+	}
+
+	private static List<Map.Entry<String, String>> entries(String[] sortedKeys) {
+		List<Map.Entry<String, String>> entries = new ArrayList<Map.Entry<String, String>>(sortedKeys.length);
+		for (String key : sortedKeys) {
+			entries.add(new AbstractMap.SimpleImmutableEntry<String, String>(key, key));
+		}
+		return entries;
+	}
+
+	@Setup(Level.Invocation)
+	public void buildTrees() {
+		tree = RedBlackTree.fromSorted(sortedEntries.iterator(), size);
+		other = RedBlackTree.fromSorted(otherSortedEntries.iterator(), otherSize);
+	}
+
+	@Benchmark
+	public RedBlackTree splitAtMedian() {
+		return tree.split(median);
+	}
+
+	@Benchmark
+	public RedBlackTree copyUpperHalf() {
+		RedBlackTree upper = new RedBlackTree();
+		for (Map.Entry<String, String> entry : tree.tailMap(median)) {
+			upper.put(entry.getKey(), entry.getValue());
+		}
+		return upper;
+	}
+
+	@Benchmark
+	public RedBlackTree union() {
+		tree.union(other);
+		return tree;
+	}
+
+	@Benchmark
+	public RedBlackTree putAll() {
+		tree.putAll(otherKeys, otherKeys, null);
+		return tree;
+	}
+}
@@ -0,0 +1,139 @@
+package javaplay.redblacktree.benchmarks;
+
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
+
+import javaplay.redblacktree.RedBlackTree;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Point operations on a populated tree, with java.util.TreeMap over the same keys as the
+ * baseline. Run with -prof gc to get gc.alloc.rate.norm (bytes allocated per operation).
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class TreeOpsBenchmark {
+	private static final int PATTERN_LENGTH = 1 << 16;
+	
+	@Param({"1000", "100000", "1000000"})
+	public int size;
+	
+	@Param({"SEQUENTIAL", "RANDOM", "LONG_PREFIX"})
+	public Keys.Shape shape;
+	
+	@Param({"UNIFORM", "ZIPFIAN"})
+	public Keys.Access access;
+	
+	private RedBlackTree tree;
+	private TreeMap<String, String> treeMap;
+	private String[] keys;
+	private String[] absentKeys;
+	private int[] pattern;
+	private int position;
+	
+	@Setup(Level.Trial)
+	public void setUp() {
+		keys = Keys.keys(shape, size);
+		absentKeys = Keys.absentKeys(shape, PATTERN_LENGTH, size);
+		pattern = Keys.accessPattern(access, size, PATTERN_LENGTH);
+		tree = new RedBlackTree();
+		treeMap = new TreeMap<String, String>();
+		for (String key : keys) {
+			tree.put(key, key);
+			treeMap.put(key, key);
+		}
+	}
+	
+	private int next() {
+		position = (position + 1) & (PATTERN_LENGTH - 1);
+		return position;
+	}
+	
+	@Benchmark
+	public String get() {
+		return tree.get(keys[pattern[next()]]);
+	}
+	
+	@Benchmark
+	public String getTreeMap() {
+		return treeMap.get(keys[pattern[next()]]);
+	}
+	
+	@Benchmark
+	public String getMissing() {
+		return tree.get(absentKeys[next()]);
+	}
+	
+	@Benchmark
+	public String getMissingTreeMap() {
+		return treeMap.get(absentKeys[next()]);
+	}
+	
+	@Benchmark
+	public String successor() {
+		return tree.successor(keys[pattern[next()]]);
+	}
+	
+	@Benchmark
+	public String successorTreeMap() {
+		return treeMap.higherKey(keys[pattern[next()]]);
+	}
+	
+	@Benchmark
+	public String predecessor() {
+		return tree.predecessor(keys[pattern[next()]]);
+	}
+	
+	@Benchmark
+	public String predecessorTreeMap() {
+		return treeMap.lowerKey(keys[pattern[next()]]);
+	}
+	
+	@Benchmark
+	public String putRemove() {
+		// insert an absent key and take it out again, so the tree size stays put
+		String key = absentKeys[next()];
+		tree.put(key, key);
+		return tree.remove(key);
+	}
+	
+	@Benchmark
+	public String putRemoveTreeMap() {
+		String key = absentKeys[next()];
+		treeMap.put(key, key);
+		return treeMap.remove(key);
+	}
+	
+	@Benchmark
+	public String removePut() {
+		// remove a present key and put it back
+		String key = keys[pattern[next()]];
+		String value = tree.remove(key);
+		tree.put(key, value);
+		return value;
+	}
+	
+	@Benchmark
+	public String removePutTreeMap() {
+		String key = keys[pattern[next()]];
+		String value = treeMap.remove(key);
+		treeMap.put(key, value);
+		return value;
+	}
+}
@@ -0,0 +1,1572 @@
+package javaplay.redblacktree;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.ConcurrentModificationException;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.Spliterator;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.function.Supplier;
+import java.util.function.ToIntFunction;
+
+import javaplay.redblacktree.BaseNode.Dir;
+
+/**
+ * The red-black machinery shared by all of the tree variants: insert and delete fixup,
+ * rotation, removal, order statistics bookkeeping and the check() validator. Subclasses
+ * own the key type, so they supply the descent loops (which is where key comparisons
+ * happen on the hot path) and a few hooks used by removal and validation.
+ */
+public abstract class AbstractRedBlackTree<N extends BaseNode<N>> {
+	private static class WalkStats {
+		public int maxDepth;
+		public int nodeCount;
+	}
+	
+	protected final N nil;
+	
+	protected N root;
+	
+	// number of key/value pairs in the tree, maintained by insertNode and removeNode
+	private int size = 0;
+	
+	// bumped on every structural change so iterators can fail fast
+	protected int modCount = 0;
+	
+	// black nodes on every path from the root to a leaf (nil not counted), kept up to date by
+	// the fixups and the bulk build
+	private int blackHeight = 0;
+	
+	private final TreeMetrics metrics = new TreeMetrics(this);
+	
+	// colors, as BaseNode.isRed() sees them
+	private static final boolean RED = true;
+	private static final boolean BLACK = false;
+	
+	protected AbstractRedBlackTree(N nil) {
+		// nil may be a sentinel shared between trees and set up already, which is left alone
+		this.nil = nil.getLeft() == nil ? nil : sentinel(nil);
+		root = nil;
+	}
+	
+	// turn a fresh node into a nil sentinel: black, empty, and its own children
+	protected static <N extends BaseNode<N>> N sentinel(N nil) {
+		nil.setRed(false);
+		nil.setCount(0);
+		nil.setLeft(nil);
+		nil.setRight(nil);
+		return nil;
+	}
+	
+	// copy the key and value of source into target. Used when removing a node with two children
+	protected abstract void copyEntry(N target, N source);
+	
+	// compare the keys of two (non-nil) nodes
+	protected abstract int compareKeys(N a, N b);
+	
+	// printable form of a node's key, for toString() and check() messages
+	protected abstract String keyString(N node);
+	
+	private void recolor(N node, boolean red) {
+		// setRed for the fixups, counting the changes
+		if (node.isRed() != red) {
+			metrics.recolorings++;
+			node.setRed(red);
+		}
+	}
+	
+	private void fixRedBlackOnInsert(N newNode) {
+		N node = newNode.getParent();
+
+		// loop while there is a red violation
+		while (node.isRed()) {
+			metrics.insertFixupIterations++;
+			Dir dir = Dir.RIGHT;
+			if (node == node.getParent().getLeft()) {
+				dir = Dir.LEFT;
+			}
+			N sibling = node.getParent().getChild(dir.opp());
+			if (sibling.isRed()) {
+				// case #1: node is red and node's sibling is red
+				metrics.insertCase1++;
+				recolor(node, BLACK);
+				recolor(sibling, BLACK);
+				recolor(node.getParent(), RED);
+				// pretend the newly red node is the new node, move up the tree, and check again
+				newNode = node.getParent(); 
+				node = node.getParent().getParent();
+			} else if (newNode == node.getChild(dir)) {
+				// case #2. New node has same left/right relationship with node as node has
+				// with its own parent
+				metrics.insertCase2++;
+				recolor(node.getParent(), RED);
+				recolor(node, BLACK);
+				rotate(node.getParent(), dir.opp());
+				break; // all good, we're done
+			} else {
+				// case # 3. New node has a different left/right relationship with node than node's
+				// relationship with its own parent
+				metrics.insertCase3++;
+				recolor(node, RED);
+				recolor(newNode, BLACK);
+				rotate(node, dir);
+				node = newNode.getParent();
+				recolor(node, RED);
+				rotate(node, dir.opp());
+				break; // all good, we're done
+			}
+		}
+		
+		if (root.isRed()) {
+			// case #1 pushed red all the way up to the root (or the new node is the root).
+			// Blackening it adds one black node to every path
+			recolor(root, BLACK);
+			blackHeight++;
+		}
+	}
+	
+	private void fixRedBlackOnDelete(N subtreeRoot, Dir dir) {
+		// case 1: The replacement node is red. Just change it to black restore black height
+		// and get out.
+		N replacementNode = subtreeRoot.getChild(dir);
+		
+		if (replacementNode.isRed()) {
+			metrics.deleteCase1++;
+			recolor(replacementNode, BLACK);
+			return;
+		}
+		
+		// OK, not so easy. Our replacement node is black, which means we can't
+		// fix the black height problem simply by re-coloring a red replacement node
+		while (subtreeRoot != nil) {
+			metrics.deleteFixupIterations++;
+			// sibling var points to the sibling of the replacement node (that is, sibling var points to
+			// the sibling of the now removed node).
+			N sibling = subtreeRoot.getChild(dir.opp());
+			
+			if (sibling.isRed()) {
+				// case 2: node has a red sibling. Convert to a black sibling case.
+				// this case takes advantage of the fact that the sibling's parent (the subtree
+				// root) and the sibling's children must be black (because you can't have two adjacent
+				// red nodes).
+				// This pushes the replacement node (and our subtree root) down one level				
+				metrics.deleteCase2++;
+				rotate(subtreeRoot, dir);
+				
+				recolor(subtreeRoot, RED);
+				recolor(subtreeRoot.getParent(), BLACK);
+
+				// try again with a black sibling case.
+				continue;
+			} else {
+				if (!sibling.getLeft().isRed() &&
+						!sibling.getRight().isRed()) {
+					// case 3: black sibling case and sibling's children are also black.
+					// we can simply change the sibling from black to red to restore
+					// black height balance (but not necessarily have the correct black height)
+					// on this subtree.
+					recolor(sibling, RED);
+					
+					if (subtreeRoot.isRed()) {
+						// case 3a: The subtree's root is red. We can restore this subtree's
+						// black height by changing the subtree's root to black
+						metrics.deleteCase3a++;
+						recolor(subtreeRoot, BLACK);
+						// we're done fixing the tree
+						break;
+					}
+					// case 3b: the subtree root is black, which means this subtree's black height
+					// is not in line with its sibling's black height. Therefore. we must go up one level
+					// and continue correcting.
+					metrics.deleteCase3b++;
+					dir = Dir.LEFT;
+					if (subtreeRoot == subtreeRoot.getParent().getRight()) {
+						dir = Dir.RIGHT;
+					}
+					subtreeRoot = subtreeRoot.getParent();
+					continue;
+				} else {
+					if (sibling.getChild(dir.opp()).isRed()) {
+						// case 4: black sibling with red outer child
+						// pull up the outer child on one side, push down the replacement node
+						// on the other side
+						metrics.deleteCase4++;
+						rotate(subtreeRoot, dir);
+						
+						// new subtree root is old subtree root's new parent
+						N oldSubtreeRoot = subtreeRoot;
+						subtreeRoot = oldSubtreeRoot.getParent();
+						
+						// this is not the replacement node's sibling, but the sibling of the
+						// node that now sits where the replacement node was before the rotation
+						sibling = subtreeRoot.getChild(dir.opp());
+						
+						// the subtree's new root should have the same color as the
+						// subtree's old root
+						recolor(subtreeRoot, oldSubtreeRoot.isRed());
+						
+						// the siblings should be black
+						recolor(sibling, BLACK);
+						recolor(oldSubtreeRoot, BLACK);
+						
+						// the tree is now fixed
+						break;
+					} else {
+						// case 5: black sibling with black outer child and red inner child.
+						// basically, we just want to get an extra node on the
+						// dir-side of the subtree so that we have something to color black
+						// to restore the black height. So, in a sense, we're stealing a red node
+						// from the dir.opp()-side so we can get this extra node on the dir-side.
+						// first, move the inner child into the spot that holds the sibling.
+						// this pushes down the sibling to the opposite side from the inner child's
+						// current location
+						metrics.deleteCase5++;
+						rotate(sibling, dir.opp());
+						
+						// now pull up the former inner child into the root of the subtree
+						// and push the current root into the location that currently holds the
+						// replacement node
+						rotate(subtreeRoot, dir);
+						
+						N oldSubtreeRoot = subtreeRoot;
+						subtreeRoot = oldSubtreeRoot.getParent();
+						recolor(subtreeRoot, oldSubtreeRoot.isRed());
+						recolor(oldSubtreeRoot, BLACK);
+						
+						// tree is fixed
+						break;
+					}
+				}
+			}
+		}
+		
+		if (subtreeRoot == nil) {
+			// case 3b ran off the top: every path lost a black node
+			blackHeight--;
+		}
+		
+		// there seems to be some concern that the root will go red. Ensure that doesn't happen
+		// we can do this whether root is nil or not, since the nil sentinel is already black.
+		if (root.isRed()) {
+			recolor(root, BLACK);
+			blackHeight++;
+		}
+	}
+	
+	protected void insertNode(N parent, int cmp, N newNode) {
+		// link newNode under parent (on the left if cmp < 0) and rebalance
+		if (parent == nil) {
+			root = newNode;
+		} else if (cmp < 0) {
+			parent.setLeft(newNode);
+		} else {
+			parent.setRight(newNode);
+		}
+		size++;
+		modCount++;
+		metrics.inserts++;
+		adjustCounts(parent, 1);
+		fixRedBlackOnInsert(newNode);
+	}
+	
+	private void adjustCounts(N node, int delta) {
+		while (node != nil) {
+			node.addCount(delta);
+			node = node.getParent();
+		}
+	}
+	
+	protected N minimum(N node) {
+		N targetNode = node;
+		while (targetNode.getLeft() != nil) {
+			targetNode = targetNode.getLeft();
+		}
+		return targetNode;
+	}
+	
+	protected N maximum(N node) {
+		N targetNode = node;
+		while (targetNode.getRight() != nil) {
+			targetNode = targetNode.getRight();
+		}
+		return targetNode;
+	}
+	
+	protected N successorNode(N node) {
+		if (node.getRight() != nil) {
+			return minimum(node.getRight());
+		}
+		// find the first ancestor that has theNode somewhere in its left subtree.
+		// we will return nil if no such ancestor exists
+		N parent = node.getParent();
+		while (parent != nil && node == parent.getRight()) {
+			node = parent;
+			parent = node.getParent();
+		}
+		return parent;
+	}
+	
+	protected N predecessorNode(N node) {
+		if (node.getLeft() != nil) {
+			return maximum(node.getLeft());
+		}
+		// find the first ancestor that has theNode somewhere in its right subtree.
+		// we will return nil if no such ancestor exists
+		N parent = node.getParent();
+		while (parent != nil && node == parent.getLeft()) {
+			node = parent;
+			parent = node.getParent();
+		}
+		return parent;
+	}
+	
+	private void maxDepthWalk(N node, int currentDepth, WalkStats stats) {
+		if (node == nil) {
+			return;
+		}
+		currentDepth++;
+		if (currentDepth > stats.maxDepth) {
+			stats.maxDepth = currentDepth;
+		}
+		stats.nodeCount++;
+		maxDepthWalk(node.getLeft(), currentDepth, stats);
+		maxDepthWalk(node.getRight(), currentDepth, stats);
+	}
+	
+	private void replaceNode(N oldNode, N newNode) {
+		if (oldNode.getParent() == nil) {
+			root = newNode;
+			if (newNode != nil) {
+				newNode.setParent(nil);
+			}
+			return;
+		}
+		
+		if (oldNode.getParent().getLeft() == oldNode) {
+			oldNode.getParent().setLeft(newNode);
+		} else {
+			oldNode.getParent().setRight(newNode);
+		}
+		if (newNode != nil) {
+			newNode.setParent(oldNode.getParent());
+		}
+	}
+	
+	protected void removeNode(N node) {
+		N removedNode = node;
+		Dir dir = Dir.LEFT;
+		if (node.getParent().getRight() == node) {
+			dir = Dir.RIGHT;
+		}
+		
+		while (node != nil) {
+			if (node.getLeft() == nil && node.getRight() == nil) {
+				// case 1: the target node has no children. Just delink the node from its parent
+				replaceNode(node, nil);
+				if (node.getParent() == nil) {
+					// we've just removed the last node. Set root to nil
+					root = nil;
+					// stop call to fixRedBlackOnDelete
+					removedNode.setRed(true);
+				}
+				break;
+			} else if (node.getLeft() == nil && node.getRight() != nil) {
+				// case 2: the target node has a right child only
+				replaceNode(node, node.getRight());
+				break;
+			} else if (node.getLeft() != nil && node.getRight() == nil) {
+				// case 3: the target node has a left child only
+				replaceNode(node, node.getLeft());
+				break;
+			} else {
+				// since the target node has two children, replace the target node's data
+				// with that of its successor, and then make the successor the new target
+				// node we want to remove. The successor now becomes subject to cases 1 and 2
+				// above, but not case 3, as the successor cannot have a left child
+				// Also, there must be a non-nil successor, or we would have hit case 1 or 3
+				// above already.
+				N successor = minimum(node.getRight());
+				dir = Dir.LEFT;
+				if (successor.getParent().getRight() == successor) {
+					dir = Dir.RIGHT;
+				}
+				copyEntry(node, successor);
+				node = successor;
+				removedNode = node;
+			}
+		}
+		
+		size--;
+		modCount++;
+		metrics.deletes++;
+		if (root == nil) {
+			blackHeight = 0;
+		}
+		// the removed node still points at its old parent, so we can walk up from there
+		adjustCounts(removedNode.getParent(), -1);
+		
+		if (!removedNode.isRed()) {
+			// there's only trouble if we've removed a black node
+			fixRedBlackOnDelete(removedNode.getParent(), dir);
+		}
+	}
+	
+	// Top-down engine. insertNode/removeNode above descend first and then fix up on the way
+	// back through parent pointers; these do the recoloring and rotations on the way down,
+	// in a single pass, so that nothing above the current node can need fixing afterwards
+	// (the 2-3-4 tree formulation: split 4-nodes going down on insert, make sure the next
+	// node is not a 2-node going down on delete). Both leave a valid tree, so the two engines
+	// can be mixed freely on the same tree.
+	//
+	// Subtree counts are adjusted speculatively as the descent steps onto each node. A
+	// rotation recomputes the count of the node that moves down from its children, which
+	// is right as long as that node has left the search path; where it hasn't, it is
+	// adjusted again. Only when the key turns out to be present on insert (or absent on
+	// delete) is the path walked a second time, to undo the adjustment.
+
+	protected N insertTopDown(N newNode) {
+		// insert newNode, or return the node that already has its key, in which case the tree
+		// holds the same entries as before (though it may have been rebalanced). Returns nil
+		// if newNode was inserted
+		if (root == nil) {
+			newNode.setParent(nil);
+			newNode.setLeft(nil);
+			newNode.setRight(nil);
+			newNode.setRed(false);
+			newNode.setCount(1);
+			root = newNode;
+			size++;
+			modCount++;
+			metrics.inserts++;
+			blackHeight = 1;
+			return nil;
+		}
+
+		N parent = nil;
+		N node = root;
+		Dir dir = Dir.LEFT;
+		while (true) {
+			if (node == nil) {
+				// fell off the bottom: hang the new node here, red
+				node = newNode;
+				node.setParent(parent);
+				node.setLeft(nil);
+				node.setRight(nil);
+				node.setRed(true);
+				node.setCount(1);
+				parent.setChild(dir, node);
+				size++;
+				modCount++;
+				metrics.inserts++;
+			} else {
+				node.addCount(1);
+				if (node.getLeft().isRed() && node.getRight().isRed()) {
+					// case #1: split a 4-node by pushing its middle key up into the parent
+					metrics.insertFixupIterations++;
+					metrics.insertCase1++;
+					recolor(node, RED);
+					recolor(node.getLeft(), BLACK);
+					recolor(node.getRight(), BLACK);
+					if (node == root) {
+						// nothing above to absorb it, so the tree grows by a level
+						recolor(node, BLACK);
+						blackHeight++;
+					}
+				}
+			}
+
+			if (node.isRed() && parent.isRed()) {
+				// the red node's parent is red too. The root is black, so there is a grandparent,
+				// and the parent's sibling must be black, or the grandparent would have been
+				// split on the way down
+				metrics.insertFixupIterations++;
+				N grandparent = parent.getParent();
+				Dir parentDir = parent == grandparent.getLeft() ? Dir.LEFT : Dir.RIGHT;
+				recolor(grandparent, RED);
+				if (node == parent.getChild(parentDir)) {
+					// case #2: same side as the parent, one rotation
+					metrics.insertCase2++;
+					recolor(parent, BLACK);
+					rotate(grandparent, parentDir.opp());
+				} else {
+					// case #3: opposite sides, two rotations bring node up between them
+					metrics.insertCase3++;
+					recolor(node, BLACK);
+					rotate(parent, parentDir);
+					rotate(grandparent, parentDir.opp());
+				}
+			}
+
+			if (node == newNode) {
+				return nil;
+			}
+			int cmp = compareKeys(newNode, node);
+			if (cmp == 0) {
+				adjustCounts(node, -1);
+				return node;
+			}
+			parent = node;
+			dir = cmp < 0 ? Dir.LEFT : Dir.RIGHT;
+			node = node.getChild(dir);
+		}
+	}
+
+	protected N removeTopDown(ToIntFunction<N> comparator) {
+		// remove the node whose key compares equal (comparator returns the sign of key vs.
+		// the node's key) and return it, unlinked but with its entry intact. Returns nil if
+		// there is no such node, in which case the tree holds the same entries as before
+		if (root == nil) {
+			return nil;
+		}
+
+		N parent = nil;
+		N node = root;
+		N found = nil;
+		Dir dir = Dir.LEFT;
+		Dir last = Dir.LEFT;
+		while (true) {
+			node.addCount(-1);
+			int cmp = comparator.applyAsInt(node);
+			if (cmp == 0) {
+				// keep going to the predecessor, which is the node that actually gets unlinked
+				found = node;
+			}
+			dir = cmp > 0 ? Dir.RIGHT : Dir.LEFT;
+
+			if (!node.isRed() && !node.getChild(dir).isRed()) {
+				// make sure node or the next node down is red, so the leaf we finally unlink is
+				N other = node.getChild(dir.opp());
+				if (other.isRed()) {
+					// case #2: node has a red child, just not on our side. Rotate it up and
+					// carry on from node, now red
+					metrics.deleteFixupIterations++;
+					metrics.deleteCase2++;
+					recolor(node, RED);
+					recolor(other, BLACK);
+					rotate(node, dir);
+					// rotate recounted node from its children, but node is still on the path
+					node.addCount(-1);
+				} else if (parent != nil && parent.getChild(last.opp()) != nil) {
+					// node is a 2-node. parent is red (we made it so on the last step), unless
+					// it is the root
+					N sibling = parent.getChild(last.opp());
+					boolean blackParent = !parent.isRed();
+					metrics.deleteFixupIterations++;
+					if (!sibling.getLeft().isRed() && !sibling.getRight().isRed()) {
+						// case #3b: so is its sibling. Merge them with a key from parent
+						metrics.deleteCase3b++;
+						recolor(parent, BLACK);
+						recolor(sibling, RED);
+						recolor(node, RED);
+					} else {
+						// borrow a key from the sibling through the parent
+						N top;
+						if (sibling.getChild(last).isRed()) {
+							// case #5: the sibling's inner child is red, two rotations
+							metrics.deleteCase5++;
+							top = sibling.getChild(last);
+							rotate(sibling, last.opp());
+							rotate(parent, last);
+						} else {
+							// case #4: the sibling's outer child is red, one rotation
+							metrics.deleteCase4++;
+							top = sibling;
+							rotate(parent, last);
+						}
+						recolor(node, RED);
+						recolor(top, RED);
+						recolor(top.getLeft(), BLACK);
+						recolor(top.getRight(), BLACK);
+					}
+					if (blackParent) {
+						// a black root that gives up a key leaves every path one black node short
+						// until the root is blackened again below
+						blackHeight--;
+					}
+				}
+			}
+
+			N next = node.getChild(dir);
+			if (next == nil) {
+				break;
+			}
+			parent = node;
+			last = dir;
+			node = next;
+		}
+
+		if (found == nil) {
+			adjustCounts(node, 1);
+		} else {
+			// node is now a red leaf (or the root); unlink it, and put it in found's place
+			replaceNode(node, node.getLeft() != nil ? node.getLeft() : node.getRight());
+			if (found != node) {
+				node.setLeft(found.getLeft());
+				node.setRight(found.getRight());
+				if (node.getLeft() != nil) {
+					node.getLeft().setParent(node);
+				}
+				if (node.getRight() != nil) {
+					node.getRight().setParent(node);
+				}
+				node.setRed(found.isRed());
+				node.setCount(found.getCount());
+				replaceNode(found, node);
+			}
+			size--;
+			modCount++;
+			metrics.deletes++;
+		}
+
+		// the descent may have left the root red, even if there was nothing to remove
+		if (root == nil) {
+			blackHeight = 0;
+		} else if (root.isRed()) {
+			recolor(root, BLACK);
+			blackHeight++;
+		}
+		return found;
+	}
+
+	protected N locate(N finger, ToIntFunction<N> comparator) {
+		// finger search: the node holding the key (comparator returns the sign of key vs. a
+		// node's key), or the node a new node with that key would hang under. nil only if the
+		// tree is empty. With finger nil this is a plain descent from the root. Otherwise the
+		// search starts at finger, which must be in the tree, and climbs only until the key is
+		// inside the current subtree, so keys near the finger are found in O(log d) compares
+		// for d keys in between, rather than O(log n)
+		if (root == nil) {
+			return nil;
+		}
+		N node = finger == nil ? root : finger;
+		int cmp = comparator.applyAsInt(node);
+		if (cmp == 0) {
+			return node;
+		}
+		if (finger != nil) {
+			// try the neighbour on the key's side first, which is where sequential access goes
+			Dir dir = cmp < 0 ? Dir.LEFT : Dir.RIGHT;
+			N next = dir == Dir.LEFT ? predecessorNode(node) : successorNode(node);
+			if (next == nil) {
+				// past the first or last key, so the finger has no child on that side
+				return node;
+			}
+			int nextCmp = comparator.applyAsInt(next);
+			if (nextCmp == 0) {
+				return next;
+			}
+			if ((nextCmp < 0) == (dir == Dir.RIGHT)) {
+				// the key falls between the two. One of them has a free child on the inside
+				return node.getChild(dir) == nil ? node : next;
+			}
+			// further out: climb from next until an ancestor bounds the key on the far side.
+			// Ancestors on the near side bound it on the side it's known to be on already, so
+			// they need no compare
+			node = next;
+			while (node.getParent() != nil) {
+				N parent = node.getParent();
+				if (parent.getChild(dir.opp()) == node) {
+					int parentCmp = comparator.applyAsInt(parent);
+					if (parentCmp == 0) {
+						return parent;
+					}
+					if ((parentCmp < 0) == (dir == Dir.RIGHT)) {
+						break;
+					}
+				}
+				node = parent;
+			}
+		}
+		while (true) {
+			cmp = comparator.applyAsInt(node);
+			if (cmp == 0) {
+				return node;
+			}
+			N child = cmp < 0 ? node.getLeft() : node.getRight();
+			if (child == nil) {
+				return node;
+			}
+			node = child;
+		}
+	}
+
+	protected N neighbourAfterRemoval(N node) {
+		// a node next to node in key order that will still be in the tree, holding the same
+		// entry, after removeNode(node), or nil if there's none. That's node itself if it has
+		// two children (it takes its successor's entry), else its one child, else its parent
+		if (node.getLeft() != nil && node.getRight() != nil) {
+			return node;
+		}
+		if (node.getLeft() != nil) {
+			return node.getLeft();
+		}
+		if (node.getRight() != nil) {
+			return node.getRight();
+		}
+		return node.getParent();
+	}
+
+	// Join-based bulk operations. They work on detached Subtrees and touch neither root nor
+	// the size, so disjoint subtrees can be worked on by several threads at once; the
+	// tree-level methods install the result at the end. Nodes move between trees, so the
+	// trees involved must share their nil sentinel, and nothing here may write to it.
+	//
+	// join is the red-black join of Blelloch, Ferizovic and Sun ("Just Join for Parallel
+	// Ordered Sets"). It goes down the facing spine of the taller tree to the first black
+	// node as tall as the shorter tree, and hangs the middle node there in red. On the way
+	// back up it repairs red-red with at most one rotation per level. That is
+	// O(difference in black heights + 1). A split is a chain of joins that adds up to
+	// O(log n). union, intersection and difference take one tree apart at its root, split
+	// the other by the root's key, and recurse on both sides, joining the results. That
+	// takes O(m log(n/m + 1)) for sizes m <= n, and the two recursive calls are independent.
+
+	private static final class Subtree<N> {
+		// a valid red-black tree whose root is black (or nil) and has parent nil, with its
+		// black height (nil not counted)
+		final N root;
+		final int blackHeight;
+
+		Subtree(N root, int blackHeight) {
+			this.root = root;
+			this.blackHeight = blackHeight;
+		}
+	}
+
+	private static final class Split<N> {
+		// the result of splitting a Subtree by a key: the keys less than it, the detached node
+		// holding it (nil if there was none) and the greater keys
+		final Subtree<N> less;
+		final N found;
+		final Subtree<N> greater;
+
+		Split(Subtree<N> less, N found, Subtree<N> greater) {
+			this.less = less;
+			this.found = found;
+			this.greater = greater;
+		}
+	}
+
+	private Subtree<N> emptySubtree() {
+		return new Subtree<N>(nil, 0);
+	}
+
+	private Subtree<N> subtree(N root, int blackHeight) {
+		// root (whose parent must be nil) as a Subtree, given the black height below and
+		// including it. A red root is made black, which adds one to the black height
+		if (root.isRed()) {
+			root.setRed(false);
+			blackHeight++;
+		}
+		return new Subtree<N>(root, blackHeight);
+	}
+
+	private Subtree<N> detach(N node, Dir dir, int blackHeight) {
+		// cut off the dir child of node, a black node of the given black height, as a Subtree
+		N child = node.getChild(dir);
+		if (child == nil) {
+			return emptySubtree();
+		}
+		node.setChild(dir, nil);
+		child.setParent(nil);
+		return subtree(child, blackHeight - 1);
+	}
+
+	private void updateCount(N node) {
+		node.setCount(node.getLeft().getCount() + node.getRight().getCount() + 1);
+	}
+
+	private N rotateSubtree(N node, Dir dir) {
+		// rotate() for a detached subtree: the same relinking and counts, but it leaves root,
+		// modCount and the metrics alone. Returns the node that took node's place, whose
+		// parent the caller sets
+		N newParent = node.getChild(dir.opp());
+		N moved = newParent.getChild(dir);
+		node.setChild(dir.opp(), moved);
+		if (moved != nil) {
+			moved.setParent(node);
+		}
+		newParent.setChild(dir, node);
+		node.setParent(newParent);
+		newParent.setCount(node.getCount());
+		updateCount(node);
+		return newParent;
+	}
+
+	private Subtree<N> join(Subtree<N> left, N middle, Subtree<N> right) {
+		// a Subtree of left's nodes, then middle (detached), then right's nodes, which must be
+		// in ascending key order
+		if (left.blackHeight == right.blackHeight) {
+			middle.setChild(Dir.LEFT, left.root);
+			middle.setChild(Dir.RIGHT, right.root);
+			if (left.root != nil) {
+				left.root.setParent(middle);
+			}
+			if (right.root != nil) {
+				right.root.setParent(middle);
+			}
+			middle.setParent(nil);
+			middle.setRed(false);
+			updateCount(middle);
+			return new Subtree<N>(middle, left.blackHeight + 1);
+		}
+		N root;
+		int blackHeight;
+		if (left.blackHeight > right.blackHeight) {
+			root = joinSpine(left.root, left.blackHeight, middle, right, Dir.RIGHT);
+			blackHeight = left.blackHeight;
+		} else {
+			root = joinSpine(right.root, right.blackHeight, middle, left, Dir.LEFT);
+			blackHeight = right.blackHeight;
+		}
+		root.setParent(nil);
+		return subtree(root, blackHeight);
+	}
+
+	private N joinSpine(N node, int blackHeight, N middle, Subtree<N> shorter, Dir dir) {
+		// hang middle and then shorter on the dir side of node's subtree, which has the given
+		// black height, walking down its dir spine. Returns the subtree's new root, whose parent
+		// the caller sets. The new root may be red with a red dir child; the level above fixes
+		// that, or join() does by making the root black
+		if (!node.isRed() && blackHeight == shorter.blackHeight) {
+			// as tall as shorter: middle takes node's place, in red
+			middle.setChild(dir.opp(), node);
+			middle.setChild(dir, shorter.root);
+			if (node != nil) {
+				node.setParent(middle);
+			}
+			if (shorter.root != nil) {
+				shorter.root.setParent(middle);
+			}
+			middle.setRed(true);
+			updateCount(middle);
+			return middle;
+		}
+		N child = joinSpine(node.getChild(dir), node.isRed() ? blackHeight : blackHeight - 1, middle, shorter, dir);
+		node.setChild(dir, child);
+		child.setParent(node);
+		updateCount(node);
+		if (!node.isRed() && child.isRed() && child.getChild(dir).isRed()) {
+			// red-red below a black node: rotate the red child up and blacken its red child,
+			// which keeps the black height and leaves only child's color for the level above
+			child.getChild(dir).setRed(false);
+			return rotateSubtree(node, dir.opp());
+		}
+		return node;
+	}
+
+	private Subtree<N> join(Subtree<N> left, Subtree<N> right) {
+		// join without a middle node: right's least node is split out to serve as one
+		if (left.root == nil) {
+			return right;
+		}
+		if (right.root == nil) {
+			return left;
+		}
+		Split<N> first = split(right, node -> node.getLeft() == nil ? 0 : -1);
+		return join(left, first.found, first.greater);
+	}
+
+	private Split<N> split(Subtree<N> tree, ToIntFunction<N> comparator) {
+		// split tree by a key; comparator returns the sign of the key vs. a node's key
+		N node = tree.root;
+		if (node == nil) {
+			return new Split<N>(tree, nil, emptySubtree());
+		}
+		int cmp = comparator.applyAsInt(node);
+		Subtree<N> left = detach(node, Dir.LEFT, tree.blackHeight);
+		Subtree<N> right = detach(node, Dir.RIGHT, tree.blackHeight);
+		if (cmp == 0) {
+			return new Split<N>(left, node, right);
+		}
+		if (cmp < 0) {
+			Split<N> split = split(left, comparator);
+			return new Split<N>(split.less, split.found, join(split.greater, node, right));
+		}
+		Split<N> split = split(right, comparator);
+		return new Split<N>(join(left, node, split.less), split.found, split.greater);
+	}
+
+	private Subtree<N> takeContents() {
+		// this tree's nodes as a Subtree, leaving the tree empty
+		Subtree<N> contents = new Subtree<N>(root, blackHeight);
+		setContents(emptySubtree());
+		return contents;
+	}
+
+	private void setContents(Subtree<N> contents) {
+		root = contents.root;
+		size = root.getCount();
+		blackHeight = contents.blackHeight;
+		modCount++;
+	}
+
+	private void checkCompatible(AbstractRedBlackTree<N> other) {
+		if (other == this) {
+			throw new IllegalArgumentException("A tree can't be combined with itself");
+		}
+		if (other.nil != nil) {
+			throw new IllegalArgumentException("Trees must share a nil sentinel to exchange nodes");
+		}
+	}
+
+	protected void splitInto(ToIntFunction<N> comparator, AbstractRedBlackTree<N> upper) {
+		// move the nodes whose keys are >= a key (comparator returns the sign of the key vs. a
+		// node's key) into upper, which must be empty. O(log n)
+		checkCompatible(upper);
+		if (!upper.isEmpty()) {
+			throw new IllegalArgumentException("Tree to split into must be empty");
+		}
+		Split<N> split = split(takeContents(), comparator);
+		setContents(split.less);
+		upper.setContents(split.found == nil ? split.greater : join(emptySubtree(), split.found, split.greater));
+	}
+
+	protected void joinWith(N middle, AbstractRedBlackTree<N> right) {
+		// append middle (a new node, or nil for none) and then all of right's nodes to this
+		// tree, leaving right empty. The keys must be in ascending order across the three.
+		// O(log n)
+		checkCompatible(right);
+		N last = root == nil ? nil : maximum(root);
+		N first = right.root == nil ? nil : minimum(right.root);
+		if (middle != nil) {
+			if ((last != nil && compareKeys(last, middle) >= 0) || (first != nil && compareKeys(middle, first) >= 0)) {
+				throw new IllegalArgumentException("Key " + keyString(middle) + " is not between the trees' keys");
+			}
+		} else if (last != nil && first != nil && compareKeys(last, first) >= 0) {
+			throw new IllegalArgumentException("Trees' keys overlap at key " + keyString(first));
+		}
+		Subtree<N> left = takeContents();
+		Subtree<N> joined;
+		if (middle == nil) {
+			joined = join(left, right.takeContents());
+		} else {
+			middle.setParent(nil);
+			joined = join(left, middle, right.takeContents());
+		}
+		setContents(joined);
+	}
+
+	private static enum SetOperation {
+		UNION,
+		INTERSECTION,
+		DIFFERENCE
+	}
+
+	protected void unionWith(AbstractRedBlackTree<N> other) {
+		// add all of other's nodes to this tree, dropping this tree's node wherever both have
+		// a key. other is left empty
+		combineWith(SetOperation.UNION, other);
+	}
+
+	protected void intersectWith(AbstractRedBlackTree<N> other) {
+		// drop this tree's nodes whose keys aren't in other. other is left empty
+		combineWith(SetOperation.INTERSECTION, other);
+	}
+
+	protected void subtract(AbstractRedBlackTree<N> other) {
+		// drop this tree's nodes whose keys are in other. other is left empty
+		combineWith(SetOperation.DIFFERENCE, other);
+	}
+
+	private void combineWith(SetOperation operation, AbstractRedBlackTree<N> other) {
+		checkCompatible(other);
+		// take the smaller tree apart, and split the larger one by its keys
+		boolean thisSmaller = size <= other.size;
+		boolean parallel = size + other.size >= PARALLEL_THRESHOLD && ForkJoinPool.getCommonPoolParallelism() > 1;
+		Subtree<N> mine = takeContents();
+		Subtree<N> theirs = other.takeContents();
+		Subtree<N> x = thisSmaller ? mine : theirs;
+		Subtree<N> y = thisSmaller ? theirs : mine;
+		Subtree<N> result;
+		if (parallel) {
+			result = ForkJoinPool.commonPool().invoke(new CombineTask(operation, x, y, thisSmaller));
+		} else {
+			result = combine(operation, x, y, thisSmaller, false);
+		}
+		setContents(result);
+	}
+
+	private Subtree<N> combine(SetOperation operation, Subtree<N> x, Subtree<N> y, boolean xIsThis, boolean parallel) {
+		// apply operation to this tree's nodes and the other tree's, one of them in x (taken
+		// apart at its root) and the other in y (split by the root's key)
+		if (x.root == nil || y.root == nil) {
+			Subtree<N> mine = xIsThis ? x : y;
+			Subtree<N> theirs = xIsThis ? y : x;
+			switch (operation) {
+			case UNION:
+				return mine.root == nil ? theirs : mine;
+			case INTERSECTION:
+				return emptySubtree();
+			default:
+				return theirs.root == nil ? mine : emptySubtree();
+			}
+		}
+		N pivot = x.root;
+		Subtree<N> xLeft = detach(pivot, Dir.LEFT, x.blackHeight);
+		Subtree<N> xRight = detach(pivot, Dir.RIGHT, x.blackHeight);
+		Split<N> split = split(y, node -> compareKeys(pivot, node));
+		Subtree<N> left;
+		Subtree<N> right;
+		if (parallel && xLeft.root.getCount() + split.less.root.getCount() >= PARALLEL_THRESHOLD) {
+			CombineTask leftTask = new CombineTask(operation, xLeft, split.less, xIsThis);
+			leftTask.fork();
+			right = combine(operation, xRight, split.greater, xIsThis, true);
+			left = leftTask.join();
+		} else {
+			left = combine(operation, xLeft, split.less, xIsThis, parallel);
+			right = combine(operation, xRight, split.greater, xIsThis, parallel);
+		}
+		// the node for pivot's key in the result, if any: the other tree's for a union, this
+		// tree's otherwise
+		N mine = xIsThis ? pivot : split.found;
+		N theirs = xIsThis ? split.found : pivot;
+		N middle;
+		switch (operation) {
+		case UNION:
+			middle = theirs != nil ? theirs : mine;
+			break;
+		case INTERSECTION:
+			middle = theirs != nil ? mine : nil;
+			break;
+		default:
+			middle = theirs != nil ? nil : mine;
+		}
+		return middle == nil ? join(left, right) : join(left, middle, right);
+	}
+
+	private class CombineTask extends RecursiveTask<Subtree<N>> {
+		private final SetOperation operation;
+		private final Subtree<N> x;
+		private final Subtree<N> y;
+		private final boolean xIsThis;
+
+		public CombineTask(SetOperation operation, Subtree<N> x, Subtree<N> y, boolean xIsThis) {
+			this.operation = operation;
+			this.x = x;
+			this.y = y;
+			this.xIsThis = xIsThis;
+		}
+
+		@Override
+		protected Subtree<N> compute() {
+			return combine(operation, x, y, xIsThis, true);
+		}
+	}
+
+	protected <T> Iterator<T> nodeIterator(N first, N fence, boolean descending, Function<N, T> mapper) {
+		// walks from first up to, but not including, fence (nil to run off the end of the
+		// tree), stepping with successorNode or predecessorNode. That's amortized O(1) per
+		// step with no stack, and nothing is materialized up front
+		return new NodeIterator<T>(first, fence, descending, mapper);
+	}
+	
+	private class NodeIterator<T> implements Iterator<T> {
+		private N next;
+		private N fence;
+		private N lastReturned;
+		private final boolean descending;
+		private final Function<N, T> mapper;
+		private int expectedModCount = modCount;
+		
+		public NodeIterator(N first, N fence, boolean descending, Function<N, T> mapper) {
+			this.next = first;
+			this.fence = fence;
+			this.descending = descending;
+			this.mapper = mapper;
+		}
+		
+		@Override
+		public boolean hasNext() {
+			return next != fence && next != nil;
+		}
+		
+		@Override
+		public T next() {
+			if (!hasNext()) {
+				throw new NoSuchElementException();
+			}
+			if (modCount != expectedModCount) {
+				throw new ConcurrentModificationException();
+			}
+			lastReturned = next;
+			next = descending ? predecessorNode(next) : successorNode(next);
+			return mapper.apply(lastReturned);
+		}
+		
+		@Override
+		public void remove() {
+			if (lastReturned == null) {
+				throw new IllegalStateException();
+			}
+			if (modCount != expectedModCount) {
+				throw new ConcurrentModificationException();
+			}
+			if (lastReturned.getLeft() != nil && lastReturned.getRight() != nil) {
+				// removeNode will move the successor's entry into lastReturned and unlink the
+				// successor's node instead, so anything pointing at that node must follow it
+				N moved = minimum(lastReturned.getRight());
+				if (next == moved) {
+					next = lastReturned;
+				}
+				if (fence == moved) {
+					fence = lastReturned;
+				}
+			}
+			removeNode(lastReturned);
+			lastReturned = null;
+			expectedModCount = modCount;
+		}
+	}
+	
+	protected int rankOfNode(N node) {
+		// zero-based position of node in key order, found by climbing the parent pointers
+		int rank = node.getLeft().getCount();
+		while (node.getParent() != nil) {
+			N parent = node.getParent();
+			if (node == parent.getRight()) {
+				rank += parent.getLeft().getCount() + 1;
+			}
+			node = parent;
+		}
+		return rank;
+	}
+	
+	protected <T> Spliterator<T> nodeSpliterator(Function<N, T> mapper, Comparator<? super T> comparator) {
+		// a spliterator over the whole tree, in ascending order. The subtree counts tell us
+		// exactly how many nodes each half holds, so splits are balanced and exactly sized
+		return new NodeSpliterator<T>(minimum(root), nil, size, mapper, comparator);
+	}
+	
+	private class NodeSpliterator<T> implements Spliterator<T> {
+		private N next;
+		private final N fence;
+		private int remaining;
+		private final Function<N, T> mapper;
+		private final Comparator<? super T> comparator;
+		private final int expectedModCount = modCount;
+		
+		public NodeSpliterator(N next, N fence, int remaining, Function<N, T> mapper,
+				Comparator<? super T> comparator) {
+			this.next = next;
+			this.fence = fence;
+			this.remaining = remaining;
+			this.mapper = mapper;
+			this.comparator = comparator;
+		}
+		
+		@Override
+		public Spliterator<T> trySplit() {
+			if (remaining < 2 || modCount != expectedModCount) {
+				return null;
+			}
+			// hand the first half, [next, middle), to the new spliterator and keep the rest.
+			// Both lookups are O(log n) thanks to the subtree counts
+			int half = remaining / 2;
+			N middle = selectNode(rankOfNode(next) + half);
+			Spliterator<T> prefix = new NodeSpliterator<T>(next, middle, half, mapper, comparator);
+			next = middle;
+			remaining -= half;
+			return prefix;
+		}
+		
+		@Override
+		public boolean tryAdvance(Consumer<? super T> action) {
+			if (remaining == 0) {
+				return false;
+			}
+			if (modCount != expectedModCount) {
+				throw new ConcurrentModificationException();
+			}
+			N node = next;
+			next = successorNode(node);
+			remaining--;
+			action.accept(mapper.apply(node));
+			return true;
+		}
+		
+		@Override
+		public void forEachRemaining(Consumer<? super T> action) {
+			N node = next;
+			for (; remaining > 0 && node != fence; remaining--) {
+				action.accept(mapper.apply(node));
+				node = successorNode(node);
+			}
+			next = node;
+			if (modCount != expectedModCount) {
+				throw new ConcurrentModificationException();
+			}
+		}
+		
+		@Override
+		public long estimateSize() {
+			return remaining;
+		}
+		
+		@Override
+		public int characteristics() {
+			return Spliterator.SIZED | Spliterator.SUBSIZED | Spliterator.ORDERED |
+					Spliterator.SORTED | Spliterator.DISTINCT | Spliterator.NONNULL;
+		}
+		
+		@Override
+		public Comparator<? super T> getComparator() {
+			return comparator;
+		}
+	}
+	
+	protected void buildFromSorted(int size, Supplier<N> nodes) {
+		// replace the contents of the tree with size nodes taken from the supplier, which must
+		// hand them out in ascending key order. Builds a perfectly balanced tree bottom-up in
+		// O(n) with no fixups: every level is black except the deepest one, which is only
+		// partially filled when size isn't 2^k - 1 and so is colored red to keep every
+		// root-to-nil path at the same black height.
+		// depth of the deepest, possibly partial, level (root is depth 0)
+		int redLevel = 31 - Integer.numberOfLeadingZeros(size + 1);
+		root = buildFromSorted(0, 0, size - 1, redLevel, nodes);
+		if (root != nil) {
+			root.setParent(nil);
+		}
+		this.size = size;
+		// every level above redLevel is black, and redLevel itself is red or absent
+		blackHeight = redLevel;
+		modCount++;
+	}
+	
+	private N buildFromSorted(int level, int lo, int hi, int redLevel, Supplier<N> nodes) {
+		if (hi < lo) {
+			return nil;
+		}
+		int mid = (lo + hi) >>> 1;
+		// in-order: the left subtree consumes its nodes from the supplier before we do
+		N left = buildFromSorted(level + 1, lo, mid - 1, redLevel, nodes);
+		N node = nodes.get();
+		N right = buildFromSorted(level + 1, mid + 1, hi, redLevel, nodes);
+		node.setLeft(left);
+		if (left != nil) {
+			left.setParent(node);
+		}
+		node.setRight(right);
+		if (right != nil) {
+			right.setParent(node);
+		}
+		node.setRed(level == redLevel);
+		node.setCount(hi - lo + 1);
+		return node;
+	}
+	
+	protected N selectNode(int index) {
+		// returns the node with the given zero-based rank, or nil if index is out of range
+		if (index < 0 || index >= root.getCount()) {
+			return nil;
+		}
+		N node = root;
+		while (node != nil) {
+			int leftCount = node.getLeft().getCount();
+			if (index < leftCount) {
+				node = node.getLeft();
+			} else if (index > leftCount) {
+				index -= leftCount + 1;
+				node = node.getRight();
+			} else {
+				break;
+			}
+		}
+		return node;
+	}
+	
+	private void stringify(N node, int currDepth, int offset, String[] lines) {
+		if (node == nil) {
+			return;
+		}
+		int linesIndex = currDepth;
+		int segmentSize = (int) ((120.0/(Math.pow(2, ((double)currDepth))+1)) + 0.5);
+		if (segmentSize < 4) {
+			return;
+		}
+		int location = segmentSize*offset;
+		if (lines[linesIndex].length() < location) {
+			lines[linesIndex] += String.join("", Collections.nCopies(location - lines[linesIndex].length(), " "));
+		}
+		lines[linesIndex] += String.format("%2s%s", keyString(node), node.isRed() ? "r" : "b");
+		stringify(node.getLeft(), currDepth+1, (offset*2)-1, lines);
+		stringify(node.getRight(), currDepth+1, offset*2, lines);
+	}
+	
+	public String toString() {
+		if (root == nil) {
+			return "";
+		}
+		WalkStats stats = new WalkStats();
+		maxDepthWalk(root, 0, stats);
+		String[] lines = new String[stats.maxDepth];
+		for (int i = 0; i < lines.length; i++) {
+			lines[i] = "";
+		}
+		stringify(root, 0, 1, lines);
+		return String.join("\n\n", lines);
+	}
+	
+	public int size() {
+		return size;
+	}
+	
+	public int blackHeight() {
+		return blackHeight;
+	}
+	
+	public TreeMetrics metrics() {
+		return metrics;
+	}
+	
+	public boolean isEmpty() {
+		return size == 0;
+	}
+	
+	public int height() {
+		if (root == nil) {
+			return 0;
+		}
+		WalkStats stats = new WalkStats();
+		maxDepthWalk(root, 0, stats);	
+		return stats.maxDepth;
+	}
+	
+	// black height reported for a subtree that couldn't be measured, because its root has the
+	// wrong parent (so it wasn't walked) or its own paths already disagree. Suppresses the
+	// black-height complaints that would otherwise cascade up through every ancestor
+	private static final int UNKNOWN_HEIGHT = -1;
+	
+	// subtrees smaller than this are validated by one task's iterative walk
+	private static final int PARALLEL_THRESHOLD = 1 << 14;
+	
+	// stop splitting below this depth, so corrupt subtree counts can't make us fork a deep chain
+	private static final int MAX_SPLIT_DEPTH = 32;
+	
+	private boolean checkNode(N node, N parent, N lo, N hi, List<String> violations) {
+		// the checks that need only node and its surroundings. Returns false if node's parent
+		// pointer is wrong, in which case its subtree is not to be trusted or walked; that also
+		// keeps a corrupted tree with a cycle in it from walking forever
+		if (node.getParent() != parent) {
+			violations.add("Corrupted BST at node with key " + keyString(node) + "; Unexpected parent");
+			return false;
+		}
+		// good() only compared a node with its parent; checking against the bounds set by all of
+		// its ancestors also catches keys that are on the wrong side of a grandparent
+		if ((lo != nil && compareKeys(node, lo) <= 0) || (hi != nil && compareKeys(node, hi) >= 0)) {
+			violations.add("Corrupted BST at node with key " + keyString(node) + "; Unexpected key");
+		}
+		if (node.isRed()) {
+			if (node.getLeft().isRed()) {
+				violations.add("Corrupted RBT at node with key " +
+						keyString(node) + "; Left child unexpectedly red");
+			}
+			if (node.getRight().isRed()) {
+				violations.add("Corrupted RBT at node with key " +
+						keyString(node) + "; Right child unexpectedly red");
+			}
+		}
+		if (node.getCount() != node.getLeft().getCount() + node.getRight().getCount() + 1) {
+			violations.add("Corrupted order statistics at node with key " +
+					keyString(node) + "; Unexpected subtree count " + node.getCount());
+		}
+		return true;
+	}
+	
+	private int mergeBlackHeights(N node, int leftHeight, int rightHeight, List<String> violations) {
+		// black height of node's subtree, counting the nil sentinel as one, given its children's
+		if (leftHeight == UNKNOWN_HEIGHT || rightHeight == UNKNOWN_HEIGHT) {
+			return UNKNOWN_HEIGHT;
+		}
+		if (leftHeight != rightHeight) {
+			violations.add(String.format("Path at node with key %s" +
+					" contains unexpected number of black nodes: %d vs. %d", keyString(node), leftHeight, rightHeight));
+			return UNKNOWN_HEIGHT;
+		}
+		return leftHeight + (node.isRed() ? 0 : 1);
+	}
+	
+	private int walk(N start, N startParent, N startLo, N startHi, List<String> violations, int limit) {
+		// validate the subtree under start with an explicit stack, returning its black height.
+		// Violations are reported in the order a recursive walk would find them: a node's own
+		// problems, then its left and right subtrees', then its black height mismatch
+		final int enter = 0;
+		final int left = 1;
+		final int right = 2;
+		Object[] nodes = new Object[64];
+		Object[] los = new Object[64];
+		Object[] his = new Object[64];
+		byte[] states = new byte[64];
+		int[] leftHeights = new int[64];
+		int top = 0;
+		nodes[0] = start;
+		los[0] = startLo;
+		his[0] = startHi;
+		states[0] = enter;
+		int result = 0;
+		while (top >= 0 && violations.size() < limit) {
+			@SuppressWarnings("unchecked")
+			N node = (N) nodes[top];
+			if (states[top] == enter) {
+				if (node == nil) {
+					result = 1;
+					top--;
+					continue;
+				}
+				@SuppressWarnings("unchecked")
+				N parent = top == 0 ? startParent : (N) nodes[top - 1];
+				@SuppressWarnings("unchecked")
+				N lo = (N) los[top];
+				@SuppressWarnings("unchecked")
+				N hi = (N) his[top];
+				if (!checkNode(node, parent, lo, hi, violations)) {
+					result = UNKNOWN_HEIGHT;
+					top--;
+					continue;
+				}
+				states[top] = left;
+				if (top + 1 == nodes.length) {
+					int length = nodes.length * 2;
+					nodes = Arrays.copyOf(nodes, length);
+					los = Arrays.copyOf(los, length);
+					his = Arrays.copyOf(his, length);
+					states = Arrays.copyOf(states, length);
+					leftHeights = Arrays.copyOf(leftHeights, length);
+				}
+				nodes[top + 1] = node.getLeft();
+				los[top + 1] = lo;
+				his[top + 1] = node;
+				states[top + 1] = enter;
+				top++;
+			} else if (states[top] == left) {
+				// back from the left subtree; its black height is in result
+				leftHeights[top] = result;
+				states[top] = right;
+				nodes[top + 1] = node.getRight();
+				los[top + 1] = node;
+				his[top + 1] = his[top];
+				states[top + 1] = enter;
+				top++;
+			} else {
+				result = mergeBlackHeights(node, leftHeights[top], result, violations);
+				top--;
+			}
+		}
+		return result;
+	}
+	
+	private class ValidateTask extends RecursiveTask<Integer> {
+		private final N node;
+		private final N parent;
+		private final N lo;
+		private final N hi;
+		private final int depth;
+		private final int limit;
+		private final List<String> violations = new ArrayList<String>();
+		
+		public ValidateTask(N node, N parent, N lo, N hi, int depth, int limit) {
+			this.node = node;
+			this.parent = parent;
+			this.lo = lo;
+			this.hi = hi;
+			this.depth = depth;
+			this.limit = limit;
+		}
+		
+		@Override
+		protected Integer compute() {
+			if (node == nil || node.getCount() < PARALLEL_THRESHOLD || depth >= MAX_SPLIT_DEPTH) {
+				return walk(node, parent, lo, hi, violations, limit);
+			}
+			if (!checkNode(node, parent, lo, hi, violations)) {
+				return UNKNOWN_HEIGHT;
+			}
+			ValidateTask leftTask = new ValidateTask(node.getLeft(), node, lo, node, depth + 1, limit);
+			ValidateTask rightTask = new ValidateTask(node.getRight(), node, node, hi, depth + 1, limit);
+			leftTask.fork();
+			int rightHeight = rightTask.compute();
+			int leftHeight = leftTask.join();
+			// merge in the same order the sequential walk reports in
+			violations.addAll(leftTask.violations);
+			violations.addAll(rightTask.violations);
+			return mergeBlackHeights(node, leftHeight, rightHeight, violations);
+		}
+	}
+	
+	public List<String> violations(int limit, ForkJoinPool pool) {
+		// validate the whole tree, returning up to limit violations (empty if the tree is
+		// sound). With a pool, large subtrees are validated in parallel; the result is the
+		// same either way. Covers parent pointers, key order, red-red, subtree counts and
+		// black heights, plus the root's color and the tracked size and black height
+		List<String> violations = new ArrayList<String>();
+		if (root.isRed()) {
+			violations.add("Corrupted RBT at node with key " + keyString(root) + "; Root is red");
+		}
+		int height;
+		if (pool == null) {
+			height = walk(root, nil, nil, nil, violations, limit);
+		} else {
+			ValidateTask task = new ValidateTask(root, nil, nil, nil, 0, limit);
+			height = pool.invoke(task);
+			violations.addAll(task.violations);
+		}
+		// the nil sentinel counts as black in the walk; blackHeight doesn't count it
+		if (height != UNKNOWN_HEIGHT && height - 1 != blackHeight) {
+			violations.add("Tracked black height " + blackHeight +
+					" does not match actual black height " + (height - 1));
+		}
+		if (root.getCount() != size) {
+			violations.add("Tracked size " + size + " does not match node count " + root.getCount());
+		}
+		return violations.size() > limit ? new ArrayList<String>(violations.subList(0, limit)) : violations;
+	}
+	
+	public List<String> violations() {
+		return violations(Integer.MAX_VALUE, null);
+	}
+	
+	public String check() {
+		// the first violation, or null if the tree is sound. Big trees are checked in parallel
+		// when there's more than one core to do it
+		boolean parallel = size >= PARALLEL_THRESHOLD && ForkJoinPool.getCommonPoolParallelism() > 1;
+		List<String> violations = violations(1, parallel ? ForkJoinPool.commonPool() : null);
+		if (violations.isEmpty()) {
+			return null;
+		}
+		System.err.println(violations.get(0));
+		return violations.get(0);
+	}
+	
+	private void rotate(N node, Dir dir) {
+		// node becomes the dir child of its dir.opp() child. Also, the new parent's old
+		// dir child becomes node's new dir.opp() child
+		N newParent = node.getChild(dir.opp());
+		node.setChild(dir.opp(), newParent.getChild(dir));
+		if (node.getChild(dir.opp()) != nil) {
+			// nil may be shared with other trees, so it's never written to
+			node.getChild(dir.opp()).setParent(node);
+		}
+		newParent.setChild(dir, node);
+		replaceNode(node, newParent);
+		node.setParent(newParent);
+		
+		metrics.rotations++;
+		// a rotation moves nodes relative to each other even when no entry changes, as the
+		// top-down engine can do on a lookup that finds nothing to insert or remove
+		modCount++;
+		
+		// newParent now roots the subtree node used to root, so it inherits node's count
+		newParent.setCount(node.getCount());
+		node.setCount(node.getLeft().getCount() + node.getRight().getCount() + 1);
+			
+		if (root == node) {
+			root = newParent;
+		}
+	}
+}
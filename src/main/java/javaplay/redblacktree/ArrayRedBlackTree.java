@@ -0,0 +1,582 @@
+package javaplay.redblacktree;
+
+import java.util.Arrays;
+import java.util.Collections;
+
+import javaplay.redblacktree.BaseNode.Dir;
+import javaplay.symboltable.SymbolTable;
+
+/**
+ * A RedBlackTree whose nodes live in parallel arrays rather than in Node objects. A node
+ * is an int index into the arrays; index 0 is the nil sentinel. The color is packed into
+ * the high bit of the same int that holds the subtree count, so a node costs four ints
+ * plus the key and value references, and the GC sees a handful of arrays instead of one
+ * object per entry. The rebalancing logic mirrors AbstractRedBlackTree case for case.
+ */
+public class ArrayRedBlackTree implements SymbolTable {
+	private static final int NIL = 0;
+	private static final int RED_BIT = 0x80000000;
+	private static final int COUNT_MASK = 0x7fffffff;
+
+	private int[] parent;
+	private int[] left;
+	private int[] right;
+	// red bit | subtree count
+	private int[] meta;
+	private String[] keys;
+	private String[] values;
+
+	private int root = NIL;
+	private int size = 0;
+	// next slot that has never been handed out
+	private int highWater = 1;
+	// head of the list of released slots, chained through right[]
+	private int freeList = NIL;
+
+	private static class BadTreeException extends Exception {
+		public BadTreeException(String message) {
+			super(message);
+		}
+	}
+
+	public ArrayRedBlackTree() {
+		this(16);
+	}
+
+	public ArrayRedBlackTree(int initialCapacity) {
+		// one extra slot for the nil sentinel, which is black with a count of 0
+		int capacity = Math.max(initialCapacity, 1) + 1;
+		parent = new int[capacity];
+		left = new int[capacity];
+		right = new int[capacity];
+		meta = new int[capacity];
+		keys = new String[capacity];
+		values = new String[capacity];
+	}
+
+	private boolean isRed(int node) {
+		return (meta[node] & RED_BIT) != 0;
+	}
+
+	private void setRed(int node) {
+		meta[node] |= RED_BIT;
+	}
+
+	private void setBlack(int node) {
+		meta[node] &= COUNT_MASK;
+	}
+
+	private void copyColor(int target, int source) {
+		meta[target] = (meta[target] & COUNT_MASK) | (meta[source] & RED_BIT);
+	}
+
+	private int count(int node) {
+		return meta[node] & COUNT_MASK;
+	}
+
+	private void setCount(int node, int count) {
+		meta[node] = (meta[node] & RED_BIT) | count;
+	}
+
+	private int child(int node, Dir dir) {
+		return dir == Dir.LEFT ? left[node] : right[node];
+	}
+
+	private void setChild(int node, Dir dir, int child) {
+		if (dir == Dir.LEFT) {
+			left[node] = child;
+		} else {
+			right[node] = child;
+		}
+	}
+
+	private int allocate(int parentNode, String key, String value) {
+		int node;
+		if (freeList != NIL) {
+			node = freeList;
+			freeList = right[node];
+		} else {
+			if (highWater == keys.length) {
+				grow();
+			}
+			node = highWater++;
+		}
+		parent[node] = parentNode;
+		left[node] = NIL;
+		right[node] = NIL;
+		meta[node] = RED_BIT | 1;
+		keys[node] = key;
+		values[node] = value;
+		return node;
+	}
+
+	private void release(int node) {
+		keys[node] = null;
+		values[node] = null;
+		right[node] = freeList;
+		freeList = node;
+	}
+
+	private void grow() {
+		int capacity = keys.length * 2;
+		parent = Arrays.copyOf(parent, capacity);
+		left = Arrays.copyOf(left, capacity);
+		right = Arrays.copyOf(right, capacity);
+		meta = Arrays.copyOf(meta, capacity);
+		keys = Arrays.copyOf(keys, capacity);
+		values = Arrays.copyOf(values, capacity);
+	}
+
+	private int find(String key, int node) {
+		// plain descent; returns NIL if the key is not in the tree
+		while (node != NIL) {
+			int cmp = key.compareTo(keys[node]);
+			if (cmp < 0) {
+				node = left[node];
+			} else if (cmp > 0) {
+				node = right[node];
+			} else {
+				break;
+			}
+		}
+		return node;
+	}
+
+	@Override
+	public String get(String key) {
+		int node = find(key, root);
+		if (node == NIL) {
+			return null;
+		}
+		return values[node];
+	}
+
+	@Override
+	public SymbolTable put(String key, String value) {
+		int parentNode = NIL;
+		int node = root;
+		int cmp = 0;
+		while (node != NIL) {
+			cmp = key.compareTo(keys[node]);
+			if (cmp == 0) {
+				values[node] = value;
+				return this;
+			}
+			parentNode = node;
+			node = cmp < 0 ? left[node] : right[node];
+		}
+		int newNode = allocate(parentNode, key, value);
+		if (parentNode == NIL) {
+			root = newNode;
+		} else if (cmp < 0) {
+			left[parentNode] = newNode;
+		} else {
+			right[parentNode] = newNode;
+		}
+		size++;
+		adjustCounts(parentNode, 1);
+		fixRedBlackOnInsert(newNode);
+		return this;
+	}
+
+	private void fixRedBlackOnInsert(int newNode) {
+		int node = parent[newNode];
+
+		// loop while there is a red violation
+		while (isRed(node)) {
+			int grandparent = parent[node];
+			Dir dir = node == left[grandparent] ? Dir.LEFT : Dir.RIGHT;
+			int sibling = child(grandparent, dir.opp());
+			if (isRed(sibling)) {
+				// case #1: node and node's sibling are red. Push the grandparent's
+				// blackness down and continue from the grandparent
+				setBlack(node);
+				setBlack(sibling);
+				setRed(grandparent);
+				newNode = grandparent;
+				node = parent[grandparent];
+			} else if (newNode == child(node, dir)) {
+				// case #2: new node is an outer grandchild
+				setRed(grandparent);
+				setBlack(node);
+				rotate(grandparent, dir.opp());
+				break;
+			} else {
+				// case #3: new node is an inner grandchild
+				setRed(node);
+				setBlack(newNode);
+				rotate(node, dir);
+				node = parent[newNode];
+				setRed(node);
+				rotate(node, dir.opp());
+				break;
+			}
+		}
+
+		setBlack(root);
+	}
+
+	private void fixRedBlackOnDelete(int subtreeRoot, Dir dir) {
+		// see AbstractRedBlackTree.fixRedBlackOnDelete for a walk through the cases
+		int replacementNode = child(subtreeRoot, dir);
+
+		// case 1: red replacement node
+		if (isRed(replacementNode)) {
+			setBlack(replacementNode);
+			return;
+		}
+
+		while (subtreeRoot != NIL) {
+			int sibling = child(subtreeRoot, dir.opp());
+
+			if (isRed(sibling)) {
+				// case 2: red sibling. Convert to a black sibling case
+				rotate(subtreeRoot, dir);
+				setRed(subtreeRoot);
+				setBlack(parent[subtreeRoot]);
+				continue;
+			} else if (!isRed(left[sibling]) && !isRed(right[sibling])) {
+				// case 3: black sibling with black children
+				setRed(sibling);
+				if (isRed(subtreeRoot)) {
+					// case 3a
+					setBlack(subtreeRoot);
+					break;
+				}
+				// case 3b: move up one level and keep going
+				int parentNode = parent[subtreeRoot];
+				dir = subtreeRoot == right[parentNode] ? Dir.RIGHT : Dir.LEFT;
+				subtreeRoot = parentNode;
+				continue;
+			} else if (isRed(child(sibling, dir.opp()))) {
+				// case 4: black sibling with red outer child
+				rotate(subtreeRoot, dir);
+				int oldSubtreeRoot = subtreeRoot;
+				subtreeRoot = parent[oldSubtreeRoot];
+				sibling = child(subtreeRoot, dir.opp());
+				copyColor(subtreeRoot, oldSubtreeRoot);
+				setBlack(sibling);
+				setBlack(oldSubtreeRoot);
+				break;
+			} else {
+				// case 5: black sibling with black outer child and red inner child
+				rotate(sibling, dir.opp());
+				rotate(subtreeRoot, dir);
+				int oldSubtreeRoot = subtreeRoot;
+				subtreeRoot = parent[oldSubtreeRoot];
+				copyColor(subtreeRoot, oldSubtreeRoot);
+				setBlack(oldSubtreeRoot);
+				break;
+			}
+		}
+
+		setBlack(root);
+	}
+
+	private void adjustCounts(int node, int delta) {
+		while (node != NIL) {
+			setCount(node, count(node) + delta);
+			node = parent[node];
+		}
+	}
+
+	private int minimum(int node) {
+		while (left[node] != NIL) {
+			node = left[node];
+		}
+		return node;
+	}
+
+	private int maximum(int node) {
+		while (right[node] != NIL) {
+			node = right[node];
+		}
+		return node;
+	}
+
+	private int successorNode(int node) {
+		if (right[node] != NIL) {
+			return minimum(right[node]);
+		}
+		int parentNode = parent[node];
+		while (parentNode != NIL && node == right[parentNode]) {
+			node = parentNode;
+			parentNode = parent[node];
+		}
+		return parentNode;
+	}
+
+	private int predecessorNode(int node) {
+		if (left[node] != NIL) {
+			return maximum(left[node]);
+		}
+		int parentNode = parent[node];
+		while (parentNode != NIL && node == left[parentNode]) {
+			node = parentNode;
+			parentNode = parent[node];
+		}
+		return parentNode;
+	}
+
+	private void replaceNode(int oldNode, int newNode) {
+		int parentNode = parent[oldNode];
+		if (parentNode == NIL) {
+			root = newNode;
+		} else if (left[parentNode] == oldNode) {
+			left[parentNode] = newNode;
+		} else {
+			right[parentNode] = newNode;
+		}
+		if (newNode != NIL) {
+			parent[newNode] = parentNode;
+		}
+	}
+
+	private void removeNode(int node) {
+		if (left[node] != NIL && right[node] != NIL) {
+			// two children: take over the successor's entry and remove the successor instead
+			int successor = minimum(right[node]);
+			keys[node] = keys[successor];
+			values[node] = values[successor];
+			node = successor;
+		}
+
+		int parentNode = parent[node];
+		Dir dir = right[parentNode] == node ? Dir.RIGHT : Dir.LEFT;
+		// at most one child is non-nil now
+		replaceNode(node, left[node] != NIL ? left[node] : right[node]);
+
+		size--;
+		adjustCounts(parentNode, -1);
+
+		boolean removedBlack = !isRed(node);
+		release(node);
+		if (root == NIL) {
+			// we've just removed the last node
+			return;
+		}
+		if (removedBlack) {
+			fixRedBlackOnDelete(parentNode, dir);
+		}
+	}
+
+	@Override
+	public String remove(String key) {
+		int node = find(key, root);
+		if (node == NIL) {
+			return null;
+		}
+		String originalValue = values[node];
+		removeNode(node);
+		return originalValue;
+	}
+
+	@Override
+	public String successor(String key) {
+		int node = find(key, root);
+		if (node == NIL) {
+			return null;
+		}
+		// keys[NIL] is always null
+		return keys[successorNode(node)];
+	}
+
+	@Override
+	public String predecessor(String key) {
+		int node = find(key, root);
+		if (node == NIL) {
+			return null;
+		}
+		return keys[predecessorNode(node)];
+	}
+
+	public int rank(String key) {
+		// number of keys strictly less than key. key need not be in the tree
+		int rank = 0;
+		int node = root;
+		while (node != NIL) {
+			int cmp = key.compareTo(keys[node]);
+			if (cmp < 0) {
+				node = left[node];
+			} else if (cmp > 0) {
+				rank += count(left[node]) + 1;
+				node = right[node];
+			} else {
+				rank += count(left[node]);
+				break;
+			}
+		}
+		return rank;
+	}
+
+	public String select(int index) {
+		// returns the key with the given zero-based rank, or null if index is out of range
+		if (index < 0 || index >= size) {
+			return null;
+		}
+		int node = root;
+		while (node != NIL) {
+			int leftCount = count(left[node]);
+			if (index < leftCount) {
+				node = left[node];
+			} else if (index > leftCount) {
+				index -= leftCount + 1;
+				node = right[node];
+			} else {
+				break;
+			}
+		}
+		return keys[node];
+	}
+
+	public int count(String lo, String hi) {
+		// number of keys k such that lo <= k <= hi
+		if (lo.compareTo(hi) > 0) {
+			return 0;
+		}
+		int count = rank(hi) - rank(lo);
+		if (find(hi, root) != NIL) {
+			count++;
+		}
+		return count;
+	}
+
+	@Override
+	public int size() {
+		return size;
+	}
+
+	public boolean isEmpty() {
+		return size == 0;
+	}
+
+	private int maxDepth(int node) {
+		if (node == NIL) {
+			return 0;
+		}
+		return 1 + Math.max(maxDepth(left[node]), maxDepth(right[node]));
+	}
+
+	public int height() {
+		return maxDepth(root);
+	}
+
+	public int capacity() {
+		// number of node slots allocated, not counting the nil sentinel
+		return keys.length - 1;
+	}
+
+	public double bytesPerEntry(int referenceSize) {
+		// structural bytes per entry: four ints and two references per allocated slot,
+		// spread over the live entries. Excludes the key and value strings themselves.
+		// referenceSize is 4 with compressed oops (the default below 32GB heaps), else 8
+		if (size == 0) {
+			return 0.0;
+		}
+		long slotBytes = 4 * 4 + 2 * referenceSize;
+		return (double) slotBytes * keys.length / size;
+	}
+
+	private void stringify(int node, int currDepth, int offset, String[] lines) {
+		if (node == NIL) {
+			return;
+		}
+		int segmentSize = (int) ((120.0/(Math.pow(2, ((double)currDepth))+1)) + 0.5);
+		if (segmentSize < 4) {
+			return;
+		}
+		int location = segmentSize*offset;
+		if (lines[currDepth].length() < location) {
+			lines[currDepth] += String.join("", Collections.nCopies(location - lines[currDepth].length(), " "));
+		}
+		lines[currDepth] += String.format("%2s%s", keys[node], isRed(node) ? "r" : "b");
+		stringify(left[node], currDepth+1, (offset*2)-1, lines);
+		stringify(right[node], currDepth+1, offset*2, lines);
+	}
+
+	public String toString() {
+		if (root == NIL) {
+			return "";
+		}
+		String[] lines = new String[height()];
+		for (int i = 0; i < lines.length; i++) {
+			lines[i] = "";
+		}
+		stringify(root, 0, 1, lines);
+		return String.join("\n\n", lines);
+	}
+
+	private int good(int node, int parentNode) throws BadTreeException {
+		if (node == NIL) {
+			return 1;
+		}
+		if (parent[node] != parentNode) {
+			throw new BadTreeException("Corrupted BST at node with key " + keys[node] + "; Unexpected parent");
+		}
+		if (parentNode != NIL) {
+			if (node == left[parentNode]) {
+				if (keys[node].compareTo(keys[parentNode]) >= 0) {
+					throw new BadTreeException("Corrupted BST at node with key " + keys[node] + "; Unexpected key");
+				}
+			} else if (keys[node].compareTo(keys[parentNode]) <= 0) {
+				throw new BadTreeException("Corrupted BST at node with key " + keys[node] + "; Unexpected key");
+			}
+		}
+
+		if (isRed(node)) {
+			if (isRed(left[node])) {
+				throw new BadTreeException("Corrupted RBT at node with key " +
+						keys[node] + "; Left child unexpectedly red");
+			}
+			if (isRed(right[node])) {
+				throw new BadTreeException("Corrupted RBT at node with key " +
+						keys[node] + "; Right child unexpectedly red");
+			}
+		}
+
+		if (count(node) != count(left[node]) + count(right[node]) + 1) {
+			throw new BadTreeException("Corrupted order statistics at node with key " +
+					keys[node] + "; Unexpected subtree count " + count(node));
+		}
+
+		int leftCount = good(left[node], node);
+		int rightCount = good(right[node], node);
+
+		if (leftCount != rightCount) {
+			throw new BadTreeException(String.format("Path at node with key %s" +
+					" contains unexpected number of black nodes: %d vs. %d", keys[node], leftCount, rightCount));
+		}
+
+		return leftCount + (isRed(node) ? 0 : 1);
+	}
+
+	public String check() {
+		try {
+			if (isRed(NIL) || count(NIL) != 0) {
+				throw new BadTreeException("Corrupted nil sentinel");
+			}
+			good(root, NIL);
+		} catch (BadTreeException bte) {
+			System.err.println(bte.getMessage());
+			return bte.getMessage();
+		}
+		return null;
+	}
+
+	private void rotate(int node, Dir dir) {
+		// node becomes the dir child of its dir.opp() child. Also, the new parent's old
+		// dir child becomes node's new dir.opp() child
+		int newParent = child(node, dir.opp());
+		int movedChild = child(newParent, dir);
+		setChild(node, dir.opp(), movedChild);
+		if (movedChild != NIL) {
+			parent[movedChild] = node;
+		}
+		setChild(newParent, dir, node);
+		replaceNode(node, newParent);
+		parent[node] = newParent;
+
+		setCount(newParent, count(node));
+		setCount(node, count(left[node]) + count(right[node]) + 1);
+	}
+}
@@ -0,0 +1,112 @@
+package javaplay.redblacktree;
+
+public abstract class BaseNode<N extends BaseNode<N>> {
+	public static enum Color {
+		RED,
+		BLACK
+	}
+	
+	public static enum Dir {
+		LEFT(true),
+		RIGHT(false);
+		
+		private boolean isLeft;
+		private Dir(boolean isLeft) {
+			this.isLeft = isLeft;
+		}
+		
+		public Dir opp() {
+			if (isLeft) {
+				return RIGHT;
+			} else {
+				return LEFT;
+			}
+		}
+	}
+	
+	private N parent;
+	private N left;
+	private N right;
+	// the number of nodes in the subtree rooted at this node (including this node) in the
+	// upper 31 bits, and the color in the lowest (set for red). Sharing the int keeps the
+	// color from costing a field, and an enum reference, of its own
+	private int countAndColor;
+	
+	public N getParent() {
+		return parent;
+	}
+
+	public void setParent(N parent) {
+		this.parent = parent;
+	}
+
+	public N getLeft() {
+		return left;
+	}
+
+	public void setLeft(N left) {
+		this.left = left;
+	}
+
+	public N getRight() {
+		return right;
+	}
+
+	public void setRight(N right) {
+		this.right = right;
+	}
+
+	public Color getColor() {
+		return isRed() ? Color.RED : Color.BLACK;
+	}
+
+	public void setColor(Color color) {
+		setRed(color == Color.RED);
+	}
+	
+	public boolean isRed() {
+		return (countAndColor & 1) != 0;
+	}
+	
+	public void setRed(boolean red) {
+		countAndColor = red ? countAndColor | 1 : countAndColor & ~1;
+	}
+
+	public int getCount() {
+		return countAndColor >>> 1;
+	}
+
+	public void setCount(int count) {
+		countAndColor = count << 1 | countAndColor & 1;
+	}
+	
+	public void addCount(int delta) {
+		// the color bit is below the count, so it is left alone
+		countAndColor += delta << 1;
+	}
+	
+	public void setChild(Dir dir, N node) {
+		if (dir == Dir.LEFT) {
+			this.left = node;
+		} else {
+			this.right = node;
+		}
+	}
+	
+	public N getChild(Dir dir) {
+		if (dir == Dir.LEFT) {
+			return left;
+		} else {
+			return right;
+		}
+	}
+
+	protected BaseNode(N parent, N left, N right) {
+		super();
+		this.parent = parent;
+		this.left = left;
+		this.right = right;
+		// red, with a count of one
+		this.countAndColor = 1 << 1 | 1;
+	}
+}
@@ -0,0 +1,307 @@
+package javaplay.redblacktree;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.FileSystemException;
+
+/**
+ * A reusable block of parsed ReadTree commands. Processing a batch takes three steps,
+ * which ReadTree either runs back to back on one thread or spreads over the stages of a
+ * CommandPipeline:
+ *
+ *   fill     parse up to capacity commands from a CommandReader
+ *   execute  apply them to the tree, recording each command's result in the batch
+ *   write    format the results, in command order, to an OutputBuffer
+ *
+ * Commands are stored column-wise in parallel arrays, so a batch allocates nothing
+ * after construction beyond the key and value Strings the tree needs anyway.
+ */
+public class CommandBatch {
+	private static final byte PUT = 1;
+	private static final byte GET = 2;
+	private static final byte REMOVE = 3;
+	private static final byte CHECK = 4;
+	private static final byte DUMP = 5;
+	private static final byte SIZE = 6;
+	private static final byte HEIGHT = 7;
+	private static final byte START_INTERVAL = 8;
+	private static final byte END_INTERVAL = 9;
+	// a malformed command; key holds the message for stderr
+	private static final byte ERROR = 10;
+	// key holds the snapshot file name
+	private static final byte SAVE = 11;
+	private static final byte LOAD = 12;
+
+	private static final byte NO_CHECK = 0;
+	private static final byte MUST_BE_NULL = 1;
+	private static final byte MUST_EXIST = 2;
+
+	private static final byte[] KEY_PREFIX = "Key: '".getBytes();
+	private static final byte[] GET_VALUE = "', value '".getBytes();
+	private static final byte[] GET_STATUS = "', status: ".getBytes();
+	private static final byte[] REMOVE_VALUE = "'; value = ".getBytes();
+	private static final byte[] REMOVED = " removed\n".getBytes();
+	private static final byte[] NEWLINE = "\n".getBytes();
+	private static final byte[] NULL = "null".getBytes();
+	private static final byte[] QUOTE = "'".getBytes();
+
+	private final byte[] opcodes;
+	private final byte[] checks;
+	private final String[] keys;
+	private final String[] values;
+	// results: the value for get/remove, the message for check, the text for dump, the
+	// error message for a failed save/load
+	private final String[] results;
+	// results: size, height, interval nanoseconds, or entries saved/loaded
+	private final long[] numbers;
+	private int count = 0;
+	// set on the batch that ends the input
+	private boolean last = false;
+
+	public CommandBatch(int capacity) {
+		opcodes = new byte[capacity];
+		checks = new byte[capacity];
+		keys = new String[capacity];
+		values = new String[capacity];
+		results = new String[capacity];
+		numbers = new long[capacity];
+	}
+
+	public int size() {
+		return count;
+	}
+
+	public boolean isLast() {
+		return last;
+	}
+
+	public void markLast() {
+		last = true;
+	}
+
+	public void clear() {
+		for (int i = 0; i < count; i++) {
+			keys[i] = null;
+			values[i] = null;
+			results[i] = null;
+		}
+		count = 0;
+		last = false;
+	}
+
+	private void add(byte opcode, String key, String value, byte check) {
+		opcodes[count] = opcode;
+		keys[count] = key;
+		values[count] = value;
+		checks[count] = check;
+		count++;
+	}
+
+	public boolean fill(CommandReader reader) throws IOException {
+		// parse commands until the batch is full or the input ends. Returns false if the
+		// input has ended. Unknown commands and empty lines produce no entry at all
+		clear();
+		while (count < opcodes.length) {
+			if (!reader.nextLine()) {
+				return false;
+			}
+			int tokenCount = reader.tokenCount();
+			if (tokenCount == 0) {
+				continue;
+			}
+			if (reader.tokenEquals(0, "put")) {
+				if (tokenCount < 2) {
+					add(ERROR, "put: No key specified", null, NO_CHECK);
+				} else if (tokenCount < 3) {
+					add(ERROR, "put: No value specified", null, NO_CHECK);
+				} else {
+					add(PUT, reader.token(1), reader.token(2), NO_CHECK);
+				}
+			} else if (reader.tokenEquals(0, "get")) {
+				if (tokenCount < 2) {
+					add(ERROR, "get: No key specified", null, NO_CHECK);
+				} else {
+					byte check = NO_CHECK;
+					if (tokenCount > 2) {
+						if (reader.tokenEquals(2, "mustbenull")) {
+							check = MUST_BE_NULL;
+						} else if (reader.tokenEquals(2, "mustexist")) {
+							check = MUST_EXIST;
+						}
+					}
+					add(GET, reader.token(1), null, check);
+				}
+			} else if (reader.tokenEquals(0, "remove")) {
+				if (tokenCount < 2) {
+					add(ERROR, "remove: No key specified", null, NO_CHECK);
+				} else {
+					add(REMOVE, reader.token(1), null, NO_CHECK);
+				}
+			} else if (reader.tokenEquals(0, "check")) {
+				add(CHECK, null, null, NO_CHECK);
+			} else if (reader.tokenEquals(0, "dump")) {
+				add(DUMP, null, null, NO_CHECK);
+			} else if (reader.tokenEquals(0, "size")) {
+				add(SIZE, null, null, NO_CHECK);
+			} else if (reader.tokenEquals(0, "height")) {
+				add(HEIGHT, null, null, NO_CHECK);
+			} else if (reader.tokenEquals(0, "startintv")) {
+				add(START_INTERVAL, null, null, NO_CHECK);
+			} else if (reader.tokenEquals(0, "endintv")) {
+				add(END_INTERVAL, null, null, NO_CHECK);
+			} else if (reader.tokenEquals(0, "save")) {
+				if (tokenCount < 2) {
+					add(ERROR, "save: No file specified", null, NO_CHECK);
+				} else {
+					add(SAVE, reader.token(1), null, NO_CHECK);
+				}
+			} else if (reader.tokenEquals(0, "load")) {
+				if (tokenCount < 2) {
+					add(ERROR, "load: No file specified", null, NO_CHECK);
+				} else {
+					add(LOAD, reader.token(1), null, NO_CHECK);
+				}
+			}
+		}
+		return true;
+	}
+
+	public long execute(RedBlackTree map, long intervalStart) {
+		// apply the batch to the tree. Parse errors go to stderr here rather than in fill() so
+		// they stay in order with the stderr output of check(). Returns the updated interval
+		// start time, which carries over from batch to batch
+		for (int i = 0; i < count; i++) {
+			switch (opcodes[i]) {
+			case PUT:
+				map.put(keys[i], values[i]);
+				break;
+			case GET:
+				results[i] = map.get(keys[i]);
+				break;
+			case REMOVE:
+				results[i] = map.remove(keys[i]);
+				break;
+			case CHECK:
+				results[i] = map.check();
+				break;
+			case DUMP:
+				results[i] = map.toString();
+				break;
+			case SIZE:
+				numbers[i] = map.size();
+				break;
+			case HEIGHT:
+				numbers[i] = map.height();
+				break;
+			case START_INTERVAL:
+				intervalStart = System.nanoTime();
+				break;
+			case END_INTERVAL:
+				numbers[i] = System.nanoTime() - intervalStart;
+				break;
+			case SAVE:
+				try {
+					map.save(new File(keys[i]));
+					numbers[i] = map.size();
+				} catch (IOException ioe) {
+					results[i] = String.format("save: Cannot save to '%s': %s", keys[i], describe(ioe));
+					System.err.println(results[i]);
+				}
+				break;
+			case LOAD:
+				try {
+					map.load(new File(keys[i]));
+					numbers[i] = map.size();
+				} catch (IOException ioe) {
+					results[i] = String.format("load: Cannot load '%s': %s", keys[i], describe(ioe));
+					System.err.println(results[i]);
+				}
+				break;
+			case ERROR:
+				System.err.println(keys[i]);
+				break;
+			}
+		}
+		return intervalStart;
+	}
+
+	public void write(OutputBuffer out, boolean flushEach) throws IOException {
+		// format the results of an executed batch, flushing after every command if asked to
+		for (int i = 0; i < count; i++) {
+			switch (opcodes[i]) {
+			case GET:
+				String checkStatus = "no_check";
+				if (checks[i] == MUST_BE_NULL) {
+					checkStatus = results[i] != null ? "bad_should_be_null" : "good";
+				} else if (checks[i] == MUST_EXIST) {
+					checkStatus = results[i] == null ? "bad_should_exist" : "good";
+				}
+				// Key: '<key>', value '<'value' or null>', status: <status>
+				out.write(KEY_PREFIX).write(keys[i]).write(GET_VALUE);
+				writeValue(results[i], out);
+				out.write(GET_STATUS).write(checkStatus).write(NEWLINE);
+				break;
+			case REMOVE:
+				// Key: '<key>'; value = <'value' or null> removed
+				out.write(KEY_PREFIX).write(keys[i]).write(REMOVE_VALUE);
+				writeValue(results[i], out);
+				out.write(REMOVED);
+				break;
+			case CHECK:
+				if (results[i] == null) {
+					out.write("check: Tree is sound").newLine();
+				} else {
+					out.write("check: Tree is corrupt!!!!!!!!! ").write(results[i]).newLine();
+				}
+				break;
+			case DUMP:
+				out.write(results[i]).newLine();
+				break;
+			case SIZE:
+				out.write(numbers[i]).newLine();
+				break;
+			case HEIGHT:
+				out.write(String.format("Height: %d\n", (int) numbers[i]));
+				break;
+			case END_INTERVAL:
+				out.write(String.format("Finished t=%.7f\n", numbers[i]/1000000000.0));
+				break;
+			case SAVE:
+				// a failure has already gone to stderr
+				if (results[i] == null) {
+					out.write(String.format("save: Saved %d entries to '%s'\n", numbers[i], keys[i]));
+				}
+				break;
+			case LOAD:
+				if (results[i] == null) {
+					out.write(String.format("load: Loaded %d entries from '%s'\n", numbers[i], keys[i]));
+				}
+				break;
+			}
+			if (flushEach) {
+				out.flush();
+			}
+		}
+		if (!flushEach) {
+			out.flushIfFull();
+		}
+	}
+
+	private static String describe(IOException ioe) {
+		// NIO file errors carry just the path as their message, which we already print
+		if (ioe instanceof FileSystemException) {
+			String reason = ((FileSystemException) ioe).getReason();
+			return reason != null ? reason : ioe.getClass().getSimpleName();
+		}
+		return ioe.getMessage();
+	}
+
+	private static void writeValue(String value, OutputBuffer out) {
+		// 'value' in quotes, or a bare null
+		if (value == null) {
+			out.write(NULL);
+		} else {
+			out.write(QUOTE).write(value).write(QUOTE);
+		}
+	}
+}
@@ -0,0 +1,130 @@
+package javaplay.redblacktree;
+
+import java.io.IOException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Runs ReadTree's work as three stages on three threads, so that reading and parsing,
+ * tree updates, and output formatting overlap:
+ *
+ *   reader thread    CommandBatch.fill    -> parsed queue
+ *   executor thread  CommandBatch.execute -> executed queue
+ *   calling thread   CommandBatch.write   -> free queue (back to the reader)
+ *
+ * Each batch passes through every stage in order and all queues are FIFO, so commands
+ * run and print in input order. The fixed pool of batches bounds the memory in flight
+ * and applies back pressure: a stage that gets ahead simply waits for a batch.
+ */
+public class CommandPipeline {
+	private final CommandReader reader;
+	private final RedBlackTree map;
+	private final OutputBuffer out;
+	private final boolean flushEach;
+
+	private final BlockingQueue<CommandBatch> free;
+	private final BlockingQueue<CommandBatch> parsed;
+	private final BlockingQueue<CommandBatch> executed;
+
+	// first failure in a background stage, rethrown by run()
+	private volatile Throwable failure;
+
+	public CommandPipeline(CommandReader reader, RedBlackTree map, OutputBuffer out,
+			int batchSize, int batches, boolean flushEach) {
+		this.reader = reader;
+		this.map = map;
+		this.out = out;
+		this.flushEach = flushEach;
+		free = new ArrayBlockingQueue<CommandBatch>(batches);
+		parsed = new ArrayBlockingQueue<CommandBatch>(batches);
+		executed = new ArrayBlockingQueue<CommandBatch>(batches);
+		for (int i = 0; i < batches; i++) {
+			free.add(new CommandBatch(batchSize));
+		}
+	}
+
+	private void read() throws IOException, InterruptedException {
+		boolean more = true;
+		while (more) {
+			CommandBatch batch = free.take();
+			more = batch.fill(reader);
+			if (!more) {
+				batch.markLast();
+			}
+			parsed.put(batch);
+		}
+	}
+
+	private void execute() throws InterruptedException {
+		long intervalStart = 0;
+		boolean last = false;
+		while (!last) {
+			CommandBatch batch = parsed.take();
+			intervalStart = batch.execute(map, intervalStart);
+			// read the flag before handing the batch on: once it is queued the writer may
+			// recycle it, and the reader refill it, at any moment
+			last = batch.isLast();
+			executed.put(batch);
+		}
+	}
+
+	private Thread stage(String name, Stage stage) {
+		Thread thread = new Thread(() -> {
+			try {
+				stage.run();
+			} catch (Throwable t) {
+				failure = t;
+			}
+		}, name);
+		thread.setDaemon(true);
+		thread.start();
+		return thread;
+	}
+
+	private interface Stage {
+		void run() throws Exception;
+	}
+
+	public void run() throws IOException {
+		Thread readerThread = stage("readtree-reader", this::read);
+		Thread executorThread = stage("readtree-executor", this::execute);
+		try {
+			boolean last = false;
+			while (!last) {
+				// poll rather than block forever, so a failed stage can't hang us
+				CommandBatch batch = null;
+				while (batch == null) {
+					checkFailure();
+					batch = executed.poll(100, TimeUnit.MILLISECONDS);
+				}
+				batch.write(out, flushEach);
+				last = batch.isLast();
+				batch.clear();
+				free.put(batch);
+			}
+			readerThread.join();
+			executorThread.join();
+		} catch (InterruptedException ie) {
+			Thread.currentThread().interrupt();
+			throw new IOException("Interrupted", ie);
+		}
+	}
+
+	private void checkFailure() throws IOException {
+		Throwable t = failure;
+		if (t == null) {
+			return;
+		}
+		if (t instanceof IOException) {
+			throw (IOException) t;
+		}
+		if (t instanceof RuntimeException) {
+			throw (RuntimeException) t;
+		}
+		if (t instanceof Error) {
+			throw (Error) t;
+		}
+		throw new IOException(t);
+	}
+}
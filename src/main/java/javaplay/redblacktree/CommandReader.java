@@ -0,0 +1,263 @@
+package javaplay.redblacktree;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+import javaplay.linesplitter.LineSplitter;
+
+/**
+ * Reads ReadTree commands straight out of a byte buffer, one line at a time, and splits
+ * them into tokens without creating a String or String[] per line. Lines end at \n, \r
+ * or \r\n, as with BufferedReader.readLine().
+ *
+ * The bytes come either from a channel, read into a reusable heap buffer, or from a
+ * file mapped into memory a window at a time. Mapped windows may be up to 2GB, and a
+ * file of any size is handled by remapping from the start of the current line whenever
+ * a window runs out. In mapped mode only the tokens that actually reach the tree are
+ * ever copied out of the page cache.
+ *
+ * Only lines made of printable ASCII tokens separated by single spaces take the fast
+ * path. Anything else (quotes, backslashes, tabs, runs of spaces, non-ASCII bytes, empty
+ * lines) is decoded with the platform charset and handed to LineSplitter, exactly as
+ * before, so tokenization never differs from the old readLine/split loop.
+ */
+public class CommandReader {
+	private static final int INITIAL_CAPACITY = 64 * 1024;
+	public static final int DEFAULT_WINDOW_SIZE = 1 << 30;
+
+	// exactly one of channel (read mode) and file (mapped mode) is set
+	private final ReadableByteChannel channel;
+	private final FileChannel file;
+	private final int windowSize;
+	// file offset of buffer index 0 in mapped mode
+	private long windowStart = 0;
+
+	private ByteBuffer buffer;
+	// scratch space for copying tokens out of a mapped buffer
+	private byte[] scratch = new byte[256];
+	// buffer[position, limit) holds bytes not yet consumed
+	private int position = 0;
+	private int limit = 0;
+	private boolean eof = false;
+
+	// the current line is buffer[lineStart, lineEnd)
+	private int lineStart;
+	private int lineEnd;
+
+	private int tokenCount;
+	private int[] tokenStarts = new int[8];
+	private int[] tokenEnds = new int[8];
+	// non-null when the current line went through LineSplitter
+	private String[] splitTokens;
+
+	public CommandReader(ReadableByteChannel channel) {
+		this.channel = channel;
+		this.file = null;
+		this.windowSize = 0;
+		this.buffer = ByteBuffer.allocate(INITIAL_CAPACITY);
+	}
+
+	public CommandReader(FileChannel file, int windowSize) {
+		// memory-mapped mode. The first window is mapped by the first call to nextLine()
+		this.channel = null;
+		this.file = file;
+		this.windowSize = windowSize;
+		this.buffer = ByteBuffer.allocate(0);
+	}
+
+	public static CommandReader mapped(FileChannel file) {
+		return new CommandReader(file, DEFAULT_WINDOW_SIZE);
+	}
+
+	public boolean nextLine() throws IOException {
+		while (true) {
+			for (int i = position; i < limit; i++) {
+				byte b = buffer.get(i);
+				if (b == '\n' || b == '\r') {
+					if (b == '\r' && i + 1 == limit && !eof) {
+						// need the next byte to tell \r from \r\n
+						break;
+					}
+					lineStart = position;
+					lineEnd = i;
+					position = i + 1;
+					if (b == '\r' && position < limit && buffer.get(position) == '\n') {
+						position++;
+					}
+					tokenize();
+					return true;
+				}
+			}
+			if (eof) {
+				if (position == limit) {
+					return false;
+				}
+				// last line has no terminator
+				lineStart = position;
+				lineEnd = limit;
+				position = limit;
+				tokenize();
+				return true;
+			}
+			fill();
+		}
+	}
+
+	private void fill() throws IOException {
+		if (file != null) {
+			remap();
+			return;
+		}
+		// move the partial line to the front of the buffer (growing it if the line fills the
+		// whole buffer) and read more behind it
+		byte[] array = buffer.array();
+		int remaining = limit - position;
+		if (position > 0) {
+			System.arraycopy(array, position, array, 0, remaining);
+		} else if (remaining == array.length) {
+			buffer = ByteBuffer.wrap(Arrays.copyOf(array, array.length * 2));
+			array = buffer.array();
+		}
+		position = 0;
+		limit = remaining;
+		ByteBuffer target = ByteBuffer.wrap(array, limit, array.length - limit);
+		int read = channel.read(target);
+		if (read < 0) {
+			eof = true;
+		} else {
+			limit += read;
+		}
+	}
+
+	private void remap() throws IOException {
+		// map a new window starting at the partial line. If that line is longer than a whole
+		// window, double the window until it fits (up to the 2GB mapping limit)
+		long start = windowStart + position;
+		long fileSize = file.size();
+		long length = Math.max(windowSize, 2L * (limit - position));
+		length = Math.min(Math.min(length, Integer.MAX_VALUE), fileSize - start);
+		if (length == limit - position && start + length < fileSize) {
+			throw new IOException("Line at offset " + start + " is too long to map");
+		}
+		buffer = file.map(FileChannel.MapMode.READ_ONLY, start, length);
+		windowStart = start;
+		position = 0;
+		limit = (int) length;
+		eof = start + length == fileSize;
+	}
+
+	private void tokenize() {
+		splitTokens = null;
+		tokenCount = 0;
+		if (!OutputBuffer.ASCII_COMPATIBLE) {
+			splitWithLineSplitter();
+			return;
+		}
+		int tokenStart = lineStart;
+		for (int i = lineStart; i < lineEnd; i++) {
+			byte b = buffer.get(i);
+			if (b == ' ') {
+				if (i == tokenStart) {
+					// leading space or a run of spaces
+					splitWithLineSplitter();
+					return;
+				}
+				addToken(tokenStart, i);
+				tokenStart = i + 1;
+			} else if (b < 0x21 || b > 0x7e || b == '"' || b == '\'' || b == '\\') {
+				splitWithLineSplitter();
+				return;
+			}
+		}
+		if (tokenStart == lineEnd) {
+			// empty line or trailing space
+			splitWithLineSplitter();
+			return;
+		}
+		addToken(tokenStart, lineEnd);
+	}
+
+	private void addToken(int start, int end) {
+		if (tokenCount == tokenStarts.length) {
+			tokenStarts = Arrays.copyOf(tokenStarts, tokenCount * 2);
+			tokenEnds = Arrays.copyOf(tokenEnds, tokenCount * 2);
+		}
+		tokenStarts[tokenCount] = start;
+		tokenEnds[tokenCount] = end;
+		tokenCount++;
+	}
+
+	private byte[] bytes(int start, int length) {
+		// buffer[start, start + length) as an array: either the heap buffer's own array (so
+		// the bytes are still at start) or the scratch array (bytes at 0). See offset()
+		if (buffer.hasArray()) {
+			return buffer.array();
+		}
+		if (scratch.length < length) {
+			scratch = new byte[Math.max(length, scratch.length * 2)];
+		}
+		for (int i = 0; i < length; i++) {
+			scratch[i] = buffer.get(start + i);
+		}
+		return scratch;
+	}
+
+	private int offset(int start) {
+		return buffer.hasArray() ? start : 0;
+	}
+
+	private void splitWithLineSplitter() {
+		int length = lineEnd - lineStart;
+		String line = new String(bytes(lineStart, length), offset(lineStart), length, Charset.defaultCharset());
+		splitTokens = LineSplitter.split(line);
+		tokenCount = splitTokens.length;
+	}
+
+	public int tokenCount() {
+		return tokenCount;
+	}
+
+	public boolean tokenEquals(int index, String literal) {
+		// literal must be ASCII
+		if (splitTokens != null) {
+			return splitTokens[index].equals(literal);
+		}
+		int start = tokenStarts[index];
+		int length = tokenEnds[index] - start;
+		if (length != literal.length()) {
+			return false;
+		}
+		for (int i = 0; i < length; i++) {
+			if (buffer.get(start + i) != literal.charAt(i)) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	public String token(int index) {
+		if (splitTokens != null) {
+			return splitTokens[index];
+		}
+		// fast path tokens are pure ASCII, so Latin-1 decoding is exact and cheap
+		int start = tokenStarts[index];
+		int length = tokenEnds[index] - start;
+		return new String(bytes(start, length), offset(start), length, StandardCharsets.ISO_8859_1);
+	}
+
+	public void writeToken(int index, OutputBuffer out) {
+		// copy a token to the output without going through a String
+		if (splitTokens != null) {
+			out.write(splitTokens[index]);
+		} else {
+			int start = tokenStarts[index];
+			int length = tokenEnds[index] - start;
+			out.write(bytes(start, length), offset(start), length);
+		}
+	}
+}
@@ -0,0 +1,247 @@
+package javaplay.redblacktree;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.locks.StampedLock;
+
+import javaplay.symboltable.SymbolTable;
+
+/**
+ * A thread-safe RedBlackTree. Writers (put, remove) take a StampedLock's write lock.
+ * Point reads (get, successor, predecessor) first walk the tree under an optimistic
+ * stamp without blocking and only fall back to the read lock if a writer got in the
+ * way. A walk that races a rotation can see a torn tree (including half-built nodes
+ * with null fields), so those walks are bounded, any exception they throw is treated
+ * as a failed read, and their result is only trusted once the stamp validates.
+ */
+public class ConcurrentRedBlackTree implements SymbolTable {
+	// a red-black tree holding at most Integer.MAX_VALUE entries is at most 62 levels
+	// deep, so a walk that takes more steps than this is looking at a torn tree
+	private static final int MAX_STEPS = 128;
+
+	private final RedBlackTree tree = new RedBlackTree();
+	private final StampedLock lock = new StampedLock();
+
+	// thrown by the optimistic walks when they notice the tree changing under them
+	private static class InconsistentReadException extends RuntimeException {
+		private static final InconsistentReadException INSTANCE = new InconsistentReadException();
+
+		private InconsistentReadException() {
+			super(null, null, false, false);
+		}
+	}
+
+	private Node optimisticFind(String key) {
+		Node nil = tree.nil;
+		Node node = tree.root;
+		for (int steps = 0; node != nil; steps++) {
+			if (steps > MAX_STEPS) {
+				throw InconsistentReadException.INSTANCE;
+			}
+			int cmp = key.compareTo(node.getKey());
+			if (cmp < 0) {
+				node = node.getLeft();
+			} else if (cmp > 0) {
+				node = node.getRight();
+			} else {
+				break;
+			}
+		}
+		return node;
+	}
+
+	private Node optimisticNeighbour(Node node, Node.Dir dir) {
+		// bounded version of successorNode (dir RIGHT) and predecessorNode (dir LEFT)
+		Node nil = tree.nil;
+		Node child = node.getChild(dir);
+		int steps = 0;
+		if (child != nil) {
+			node = child;
+			while ((child = node.getChild(dir.opp())) != nil) {
+				if (++steps > MAX_STEPS) {
+					throw InconsistentReadException.INSTANCE;
+				}
+				node = child;
+			}
+			return node;
+		}
+		Node parent = node.getParent();
+		while (parent != nil && node == parent.getChild(dir)) {
+			if (++steps > MAX_STEPS) {
+				throw InconsistentReadException.INSTANCE;
+			}
+			node = parent;
+			parent = node.getParent();
+		}
+		return parent;
+	}
+
+	@Override
+	public String get(String key) {
+		long stamp = lock.tryOptimisticRead();
+		if (stamp != 0) {
+			try {
+				Node node = optimisticFind(key);
+				String value = node == tree.nil ? null : node.getValue();
+				if (lock.validate(stamp)) {
+					return value;
+				}
+			} catch (RuntimeException e) {
+				// torn read; fall through to the read lock
+			}
+		}
+		stamp = lock.readLock();
+		try {
+			return tree.get(key);
+		} finally {
+			lock.unlockRead(stamp);
+		}
+	}
+
+	private String neighbour(String key, Node.Dir dir) {
+		long stamp = lock.tryOptimisticRead();
+		if (stamp != 0) {
+			try {
+				Node node = optimisticFind(key);
+				String neighbourKey = null;
+				if (node != tree.nil) {
+					Node neighbour = optimisticNeighbour(node, dir);
+					neighbourKey = neighbour == tree.nil ? null : neighbour.getKey();
+				}
+				if (lock.validate(stamp)) {
+					return neighbourKey;
+				}
+			} catch (RuntimeException e) {
+				// torn read; fall through to the read lock
+			}
+		}
+		stamp = lock.readLock();
+		try {
+			return dir == Node.Dir.RIGHT ? tree.successor(key) : tree.predecessor(key);
+		} finally {
+			lock.unlockRead(stamp);
+		}
+	}
+
+	@Override
+	public String successor(String key) {
+		return neighbour(key, Node.Dir.RIGHT);
+	}
+
+	@Override
+	public String predecessor(String key) {
+		return neighbour(key, Node.Dir.LEFT);
+	}
+
+	@Override
+	public SymbolTable put(String key, String value) {
+		long stamp = lock.writeLock();
+		try {
+			tree.put(key, value);
+		} finally {
+			lock.unlockWrite(stamp);
+		}
+		return this;
+	}
+
+	@Override
+	public String remove(String key) {
+		long stamp = lock.writeLock();
+		try {
+			return tree.remove(key);
+		} finally {
+			lock.unlockWrite(stamp);
+		}
+	}
+
+	@Override
+	public int size() {
+		long stamp = lock.tryOptimisticRead();
+		int size = tree.size();
+		if (lock.validate(stamp)) {
+			return size;
+		}
+		stamp = lock.readLock();
+		try {
+			return tree.size();
+		} finally {
+			lock.unlockRead(stamp);
+		}
+	}
+
+	public boolean isEmpty() {
+		return size() == 0;
+	}
+
+	public int rank(String key) {
+		long stamp = lock.readLock();
+		try {
+			return tree.rank(key);
+		} finally {
+			lock.unlockRead(stamp);
+		}
+	}
+
+	public String select(int index) {
+		long stamp = lock.readLock();
+		try {
+			return tree.select(index);
+		} finally {
+			lock.unlockRead(stamp);
+		}
+	}
+
+	public int count(String lo, String hi) {
+		long stamp = lock.readLock();
+		try {
+			return tree.count(lo, hi);
+		} finally {
+			lock.unlockRead(stamp);
+		}
+	}
+
+	public int height() {
+		long stamp = lock.readLock();
+		try {
+			return tree.height();
+		} finally {
+			lock.unlockRead(stamp);
+		}
+	}
+
+	public String check() {
+		long stamp = lock.readLock();
+		try {
+			return tree.check();
+		} finally {
+			lock.unlockRead(stamp);
+		}
+	}
+
+	public void save(File file) throws IOException {
+		long stamp = lock.readLock();
+		try {
+			tree.save(file);
+		} finally {
+			lock.unlockRead(stamp);
+		}
+	}
+
+	public void load(File file) throws IOException {
+		long stamp = lock.writeLock();
+		try {
+			tree.load(file);
+		} finally {
+			lock.unlockWrite(stamp);
+		}
+	}
+
+	public String toString() {
+		long stamp = lock.readLock();
+		try {
+			return tree.toString();
+		} finally {
+			lock.unlockRead(stamp);
+		}
+	}
+}
@@ -0,0 +1,460 @@
+package javaplay.redblacktree;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.UnaryOperator;
+import java.util.zip.CRC32;
+
+import javaplay.symboltable.SymbolTable;
+
+/**
+ * A ConcurrentRedBlackTree whose puts and removes survive a crash. The tree lives in a
+ * directory holding a snapshot (see TreeSnapshot) and a write-ahead log of every put and
+ * remove since that snapshot. Opening the directory loads the snapshot and replays the
+ * log over it; checkpoint() writes a fresh snapshot and empties the log.
+ *
+ * Writers are serialized and append their record to an in-memory log buffer in tree
+ * order. How that buffer reaches the disk is set by the SyncPolicy:
+ *
+ *   ALWAYS    put/remove return once their record is forced to disk. Commits are
+ *             grouped: whichever writer gets to the log first forces everything appended
+ *             so far, so concurrent writers share a single fsync
+ *   INTERVAL  a background thread forces the log every intervalMillis; a crash loses at
+ *             most that window
+ *   NEVER     the buffer is written out whenever it fills but never forced, leaving
+ *             durability to the OS
+ *
+ * Reads go straight to the underlying ConcurrentRedBlackTree and never touch the log.
+ * A put or remove changes the tree before its record is durable, so readers can see a
+ * change whose commit then fails (read uncommitted). The first failure to write or force
+ * the log is final: the failing call throws, and so does every later put, remove, flush
+ * and checkpoint, so the tree can't drift any further from what the log holds. Reopen the
+ * directory to get back to the state on disk.
+ *
+ * Log records are framed as payload length, CRC32 of the payload, then the payload (an
+ * opcode and length-prefixed UTF-8 strings, as in TreeSnapshot). Replay stops at the
+ * first torn or corrupt record, which can only be the tail of an interrupted write, and
+ * truncates the log there.
+ */
+public class DurableRedBlackTree implements SymbolTable, Closeable {
+	public enum SyncPolicy {
+		ALWAYS, INTERVAL, NEVER
+	}
+
+	private static final String SNAPSHOT_FILE = "tree.snapshot";
+	private static final String LOG_FILE = "tree.wal";
+	private static final int LOG_MAGIC = 0x52425457; // "RBTW"
+	private static final int LOG_VERSION = 1;
+	private static final int LOG_HEADER_SIZE = 8;
+	private static final int RECORD_HEADER_SIZE = 8;
+	private static final byte PUT = 1;
+	private static final byte REMOVE = 2;
+	// under NEVER, the buffered log is written out once it grows past this
+	private static final int WRITE_THRESHOLD = 1 << 16;
+
+	// a ByteArrayOutputStream whose contents can be handed to a channel without a copy
+	private static class LogBuffer extends ByteArrayOutputStream {
+		public LogBuffer(int size) {
+			super(size);
+		}
+
+		public ByteBuffer contents() {
+			return ByteBuffer.wrap(buf, 0, count);
+		}
+
+		public byte[] array() {
+			return buf;
+		}
+
+		public void writeInt(int v) {
+			write(v >>> 24);
+			write(v >>> 16);
+			write(v >>> 8);
+			write(v);
+		}
+	}
+
+	private final ConcurrentRedBlackTree tree = new ConcurrentRedBlackTree();
+	private final File snapshotFile;
+	private final SyncPolicy policy;
+	private final FileChannel log;
+	private final ScheduledExecutorService syncer;
+
+	// lock order: syncLock, then writeLock. writeLock serializes writers and guards
+	// pending, record and appended; syncLock serializes writing the log out
+	private final ReentrantLock writeLock = new ReentrantLock();
+	private final Object syncLock = new Object();
+
+	private LogBuffer pending = new LogBuffer(WRITE_THRESHOLD);
+	// the buffer being written out by sync(), swapped with pending each time
+	private LogBuffer spare = new LogBuffer(WRITE_THRESHOLD);
+	private final LogBuffer record = new LogBuffer(256);
+	private final DataOutputStream recordOut = new DataOutputStream(record);
+	private final CRC32 crc = new CRC32();
+	// sequence number of the last record appended, and of the last one forced to disk
+	private long appended = 0;
+	private volatile long durable = 0;
+	// the first failure to write or force the log. Once set, nothing more is written: the
+	// log may end in a torn record, and fsync isn't retried after it fails, as the kernel
+	// may have dropped the pages it couldn't write
+	private volatile IOException failure;
+	private boolean closed = false;
+
+	public DurableRedBlackTree(File directory, SyncPolicy policy) throws IOException {
+		this(directory, policy, 10);
+	}
+
+	public DurableRedBlackTree(File directory, SyncPolicy policy, long intervalMillis) throws IOException {
+		this(directory, policy, intervalMillis, channel -> channel);
+	}
+
+	// wrapLog lets tests put a faulty channel between the tree and its log
+	DurableRedBlackTree(File directory, SyncPolicy policy, long intervalMillis,
+			UnaryOperator<FileChannel> wrapLog) throws IOException {
+		if (!directory.isDirectory() && !directory.mkdirs()) {
+			throw new IOException("Cannot create directory '" + directory + "'");
+		}
+		this.policy = policy;
+		snapshotFile = new File(directory, SNAPSHOT_FILE);
+		FileChannel channel = FileChannel.open(new File(directory, LOG_FILE).toPath(), StandardOpenOption.READ,
+				StandardOpenOption.WRITE, StandardOpenOption.CREATE);
+		try {
+			// two trees appending to one log would interleave their records, so the log is
+			// locked for as long as it's open. The lock goes with the channel on close
+			FileLock lock;
+			try {
+				lock = channel.tryLock();
+			} catch (OverlappingFileLockException e) {
+				// held by this process
+				lock = null;
+			}
+			if (lock == null) {
+				throw new IOException("'" + directory + "' is already open");
+			}
+		} catch (IOException | RuntimeException e) {
+			channel.close();
+			throw e;
+		}
+		log = wrapLog.apply(channel);
+		try {
+			if (snapshotFile.exists()) {
+				tree.load(snapshotFile);
+			}
+			replay();
+		} catch (IOException | RuntimeException e) {
+			log.close();
+			throw e;
+		}
+		if (policy == SyncPolicy.INTERVAL) {
+			syncer = Executors.newSingleThreadScheduledExecutor(runnable -> {
+				Thread thread = new Thread(runnable, "wal-syncer");
+				thread.setDaemon(true);
+				return thread;
+			});
+			syncer.scheduleWithFixedDelay(() -> {
+				try {
+					sync(true);
+				} catch (IOException ioe) {
+					// sync() has recorded it for the writers
+				}
+			}, intervalMillis, intervalMillis, TimeUnit.MILLISECONDS);
+		} else {
+			syncer = null;
+		}
+	}
+
+	private void replay() throws IOException {
+		// apply the log's records to the tree, then truncate any torn tail and position
+		// the channel for appending
+		long size = log.size();
+		if (size < LOG_HEADER_SIZE) {
+			// new log, or one that crashed before its header was written
+			ByteBuffer header = ByteBuffer.allocate(LOG_HEADER_SIZE);
+			header.putInt(LOG_MAGIC).putInt(LOG_VERSION).flip();
+			log.truncate(0);
+			while (header.hasRemaining()) {
+				log.write(header, header.position());
+			}
+			log.force(false);
+			log.position(LOG_HEADER_SIZE);
+			return;
+		}
+		// streamed, so a log of any size replays in constant memory beyond its largest record
+		log.position(0);
+		DataInputStream in = new DataInputStream(new BufferedInputStream(Channels.newInputStream(log), 1 << 16));
+		if (in.readInt() != LOG_MAGIC || in.readInt() != LOG_VERSION) {
+			throw new IOException("'" + LOG_FILE + "' is not a tree write-ahead log");
+		}
+		long end = LOG_HEADER_SIZE;
+		byte[] payload = new byte[256];
+		while (size - end >= RECORD_HEADER_SIZE) {
+			int length = in.readInt();
+			int checksum = in.readInt();
+			if (length <= 0 || length > size - end - RECORD_HEADER_SIZE) {
+				break;
+			}
+			if (length > payload.length) {
+				payload = new byte[Math.max(length, payload.length * 2)];
+			}
+			in.readFully(payload, 0, length);
+			crc.reset();
+			crc.update(payload, 0, length);
+			if ((int) crc.getValue() != checksum) {
+				break;
+			}
+			ByteBuffer record = ByteBuffer.wrap(payload, 0, length);
+			byte op = record.get();
+			String key = readString(record);
+			if (op == PUT) {
+				tree.put(key, readString(record));
+			} else {
+				tree.remove(key);
+			}
+			end += RECORD_HEADER_SIZE + length;
+		}
+		// everything up to end replayed and the record at end is torn or corrupt; nothing
+		// after it can be trusted, as records are only ever appended
+		if (end < size) {
+			log.truncate(end);
+			log.force(false);
+		}
+		log.position(end);
+	}
+
+	private static String readString(ByteBuffer payload) {
+		int length = payload.getInt();
+		if (length < 0) {
+			return null;
+		}
+		String s = new String(payload.array(), payload.arrayOffset() + payload.position(), length,
+				StandardCharsets.UTF_8);
+		payload.position(payload.position() + length);
+		return s;
+	}
+
+	private long append(byte op, String key, String value) throws IOException {
+		// called with writeLock held. Returns the new record's sequence number
+		if (closed) {
+			throw new IllegalStateException("Tree is closed");
+		}
+		checkFailure();
+		if (key == null) {
+			// checked before logging, so a bad call can't leave a record replay would choke on
+			throw new NullPointerException("key");
+		}
+		record.reset();
+		recordOut.writeByte(op);
+		TreeSnapshot.writeString(recordOut, key);
+		if (op == PUT) {
+			TreeSnapshot.writeString(recordOut, value);
+		}
+		crc.reset();
+		crc.update(record.array(), 0, record.size());
+		pending.writeInt(record.size());
+		pending.writeInt((int) crc.getValue());
+		record.writeTo(pending);
+		return ++appended;
+	}
+
+	private void commit(long sequence, boolean full) throws IOException {
+		// called after writeLock is released, so other writers can append while we wait.
+		// full says whether pending had reached WRITE_THRESHOLD after our append, as seen
+		// under writeLock; pending can't be looked at here
+		checkFailure();
+		if (policy == SyncPolicy.ALWAYS) {
+			// group commit: if a sync that started after our append has already finished,
+			// our record is on disk. Otherwise we become the one to sync, taking every
+			// record appended so far with ours
+			if (durable < sequence) {
+				synchronized (syncLock) {
+					if (durable < sequence) {
+						sync(true);
+					}
+				}
+			}
+		} else if (policy == SyncPolicy.NEVER && full) {
+			sync(false);
+		}
+	}
+
+	private void checkFailure() throws IOException {
+		IOException failed = failure;
+		if (failed != null) {
+			throw failed;
+		}
+	}
+
+	private void sync(boolean force) throws IOException {
+		// write out everything appended so far and, if force, make it durable
+		synchronized (syncLock) {
+			checkFailure();
+			LogBuffer toWrite;
+			long upTo;
+			writeLock.lock();
+			try {
+				toWrite = pending;
+				pending = spare;
+				spare = toWrite;
+				upTo = appended;
+			} finally {
+				writeLock.unlock();
+			}
+			try {
+				ByteBuffer bytes = toWrite.contents();
+				while (bytes.hasRemaining()) {
+					log.write(bytes);
+				}
+				toWrite.reset();
+				if (force && durable < upTo) {
+					log.force(false);
+					durable = upTo;
+				}
+			} catch (IOException ioe) {
+				failure = ioe;
+				throw ioe;
+			}
+		}
+	}
+
+	@Override
+	public SymbolTable put(String key, String value) {
+		long sequence;
+		boolean full;
+		writeLock.lock();
+		try {
+			sequence = append(PUT, key, value);
+			full = pending.size() >= WRITE_THRESHOLD;
+			tree.put(key, value);
+		} catch (IOException ioe) {
+			throw new UncheckedIOException(ioe);
+		} finally {
+			writeLock.unlock();
+		}
+		try {
+			commit(sequence, full);
+		} catch (IOException ioe) {
+			throw new UncheckedIOException(ioe);
+		}
+		return this;
+	}
+
+	@Override
+	public String remove(String key) {
+		long sequence;
+		boolean full;
+		String value;
+		writeLock.lock();
+		try {
+			sequence = append(REMOVE, key, null);
+			full = pending.size() >= WRITE_THRESHOLD;
+			value = tree.remove(key);
+		} catch (IOException ioe) {
+			throw new UncheckedIOException(ioe);
+		} finally {
+			writeLock.unlock();
+		}
+		try {
+			commit(sequence, full);
+		} catch (IOException ioe) {
+			throw new UncheckedIOException(ioe);
+		}
+		return value;
+	}
+
+	@Override
+	public String get(String key) {
+		return tree.get(key);
+	}
+
+	@Override
+	public String successor(String key) {
+		return tree.successor(key);
+	}
+
+	@Override
+	public String predecessor(String key) {
+		return tree.predecessor(key);
+	}
+
+	@Override
+	public int size() {
+		return tree.size();
+	}
+
+	public String check() {
+		return tree.check();
+	}
+
+	public void flush() throws IOException {
+		// force every operation so far to disk, whatever the policy
+		sync(true);
+	}
+
+	public void checkpoint() throws IOException {
+		// snapshot the tree and start a new, empty log. Writers are held off while the
+		// snapshot is written. A crash between the two steps is harmless: replaying the
+		// old log over the new snapshot reapplies operations it already holds, and the
+		// last operation on each key still wins
+		synchronized (syncLock) {
+			// after a failure the tree may hold changes that never made it to the log, which a
+			// snapshot would make durable
+			checkFailure();
+			writeLock.lock();
+			try {
+				tree.save(snapshotFile);
+				pending.reset();
+				log.truncate(LOG_HEADER_SIZE);
+				log.position(LOG_HEADER_SIZE);
+				log.force(false);
+				durable = appended;
+			} finally {
+				writeLock.unlock();
+			}
+		}
+	}
+
+	@Override
+	public void close() throws IOException {
+		if (syncer != null) {
+			// not shutdownNow(): interrupting a thread inside FileChannel.force closes the channel
+			syncer.shutdown();
+			try {
+				syncer.awaitTermination(1, TimeUnit.MINUTES);
+			} catch (InterruptedException ie) {
+				Thread.currentThread().interrupt();
+			}
+		}
+		synchronized (syncLock) {
+			if (closed) {
+				return;
+			}
+			try {
+				if (failure == null) {
+					sync(true);
+				}
+			} finally {
+				writeLock.lock();
+				closed = true;
+				writeLock.unlock();
+				log.close();
+			}
+		}
+	}
+}
@@ -0,0 +1,28 @@
+package javaplay.redblacktree;
+
+public class GenericNode<K, V> extends BaseNode<GenericNode<K, V>> {
+	private K key;
+	private V value;
+	
+	public K getKey() {
+		return key;
+	}
+
+	public void setKey(K key) {
+		this.key = key;
+	}
+
+	public V getValue() {
+		return value;
+	}
+
+	public void setValue(V value) {
+		this.value = value;
+	}
+
+	public GenericNode(GenericNode<K, V> parent, GenericNode<K, V> left, GenericNode<K, V> right, K key, V data) {
+		super(parent, left, right);
+		this.key = key;
+		this.value = data;
+	}
+}
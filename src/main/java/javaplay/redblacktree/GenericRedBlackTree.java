@@ -0,0 +1,157 @@
+package javaplay.redblacktree;
+
+import java.util.Comparator;
+
+/**
+ * A red-black tree over arbitrary key and value types, ordered by a Comparator.
+ * For long or int keys, LongRedBlackTree and IntRedBlackTree avoid boxing the keys.
+ */
+public class GenericRedBlackTree<K, V> extends AbstractRedBlackTree<GenericNode<K, V>> {
+	private final Comparator<? super K> comparator;
+	
+	@SuppressWarnings("unchecked")
+	public GenericRedBlackTree() {
+		// natural ordering; keys must be Comparable, as with java.util.TreeMap
+		this((Comparator<? super K>) Comparator.naturalOrder());
+	}
+	
+	public GenericRedBlackTree(Comparator<? super K> comparator) {
+		super(new GenericNode<K, V>(null, null, null, null, null));
+		this.comparator = comparator;
+	}
+	
+	public Comparator<? super K> comparator() {
+		return comparator;
+	}
+	
+	private GenericNode<K, V> find(K key, GenericNode<K, V> node) {
+		// plain descent; returns nil if the key is not in the tree
+		while (node != nil) {
+			int cmp = comparator.compare(key, node.getKey());
+			if (cmp < 0) {
+				node = node.getLeft();
+			} else if (cmp > 0) {
+				node = node.getRight();
+			} else {
+				break;
+			}
+		}
+		return node;
+	}
+
+	public V get(K key) {
+		GenericNode<K, V> node = find(key, root);
+		if (node == nil) {
+			return null;
+		}
+		return node.getValue();
+	}
+
+	public GenericRedBlackTree<K, V> put(K key, V value) {
+		GenericNode<K, V> parent = nil;
+		GenericNode<K, V> node = root;
+		int cmp = 0;
+		while (node != nil) {
+			cmp = comparator.compare(key, node.getKey());
+			if (cmp == 0) {
+				node.setValue(value);
+				return this;
+			}
+			parent = node;
+			node = cmp < 0 ? node.getLeft() : node.getRight();
+		}
+		insertNode(parent, cmp, new GenericNode<K, V>(parent, nil, nil, key, value));
+		return this;
+	}
+
+	public V remove(K key) {
+		GenericNode<K, V> node = find(key, root);
+		if (node == nil) {
+			return null;
+		}
+		
+		V originalValue = node.getValue();
+		removeNode(node);
+		return originalValue;
+	}
+
+	public K successor(K key) {
+		GenericNode<K, V> node = find(key, root);
+		if (node == nil) {
+			return null;
+		}
+		GenericNode<K, V> successor = successorNode(node);
+		if (successor == nil) {
+			return null;
+		}
+		return successor.getKey();
+	}
+
+	public K predecessor(K key) {
+		GenericNode<K, V> node = find(key, root);
+		if (node == nil) {
+			return null;
+		}
+		GenericNode<K, V> predecessor = predecessorNode(node);
+		if (predecessor == nil) {
+			return null;
+		}
+		return predecessor.getKey();
+	}
+	
+	public int rank(K key) {
+		// number of keys strictly less than key. key need not be in the tree
+		int rank = 0;
+		GenericNode<K, V> node = root;
+		while (node != nil) {
+			int cmp = comparator.compare(key, node.getKey());
+			if (cmp < 0) {
+				node = node.getLeft();
+			} else if (cmp > 0) {
+				rank += node.getLeft().getCount() + 1;
+				node = node.getRight();
+			} else {
+				rank += node.getLeft().getCount();
+				break;
+			}
+		}
+		return rank;
+	}
+	
+	public K select(int index) {
+		// returns the key with the given zero-based rank, or null if index is out of range
+		GenericNode<K, V> node = selectNode(index);
+		if (node == nil) {
+			return null;
+		}
+		return node.getKey();
+	}
+	
+	public int count(K lo, K hi) {
+		// number of keys k such that lo <= k <= hi
+		if (comparator.compare(lo, hi) > 0) {
+			return 0;
+		}
+		int count = rank(hi) - rank(lo);
+		if (find(hi, root) != nil) {
+			count++;
+		}
+		return count;
+	}
+	
+	@Override
+	protected void copyEntry(GenericNode<K, V> target, GenericNode<K, V> source) {
+		target.setKey(source.getKey());
+		target.setValue(source.getValue());
+	}
+	
+	@Override
+	protected int compareKeys(GenericNode<K, V> a, GenericNode<K, V> b) {
+		return comparator.compare(a.getKey(), b.getKey());
+	}
+	
+	@Override
+	protected String keyString(GenericNode<K, V> node) {
+		return String.valueOf(node.getKey());
+	}
+}
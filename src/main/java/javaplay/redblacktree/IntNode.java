@@ -0,0 +1,28 @@
+package javaplay.redblacktree;
+
+public class IntNode<V> extends BaseNode<IntNode<V>> {
+	private int key;
+	private V value;
+	
+	public int getKey() {
+		return key;
+	}
+
+	public void setKey(int key) {
+		this.key = key;
+	}
+
+	public V getValue() {
+		return value;
+	}
+
+	public void setValue(V value) {
+		this.value = value;
+	}
+
+	public IntNode(IntNode<V> parent, IntNode<V> left, IntNode<V> right, int key, V data) {
+		super(parent, left, right);
+		this.key = key;
+		this.value = data;
+	}
+}
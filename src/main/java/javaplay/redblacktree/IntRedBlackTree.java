@@ -0,0 +1,148 @@
+package javaplay.redblacktree;
+
+/**
+ * A red-black tree keyed by primitive ints (IDs, for instance). Keys live in an
+ * int field of each node and are compared with primitive comparisons, so neither the
+ * lookup nor the update paths box them. Only the neighbour queries that may have no
+ * answer (successor, predecessor, select) return a boxed key, null meaning "none".
+ */
+public class IntRedBlackTree<V> extends AbstractRedBlackTree<IntNode<V>> {
+	public IntRedBlackTree() {
+		super(new IntNode<V>(null, null, null, 0, null));
+	}
+	
+	private IntNode<V> find(int key, IntNode<V> node) {
+		// plain descent; returns nil if the key is not in the tree
+		while (node != nil) {
+			int nodeKey = node.getKey();
+			if (key < nodeKey) {
+				node = node.getLeft();
+			} else if (key > nodeKey) {
+				node = node.getRight();
+			} else {
+				break;
+			}
+		}
+		return node;
+	}
+	
+	public boolean containsKey(int key) {
+		return find(key, root) != nil;
+	}
+
+	public V get(int key) {
+		IntNode<V> node = find(key, root);
+		if (node == nil) {
+			return null;
+		}
+		return node.getValue();
+	}
+
+	public IntRedBlackTree<V> put(int key, V value) {
+		IntNode<V> parent = nil;
+		IntNode<V> node = root;
+		int cmp = 0;
+		while (node != nil) {
+			cmp = Integer.compare(key, node.getKey());
+			if (cmp == 0) {
+				node.setValue(value);
+				return this;
+			}
+			parent = node;
+			node = cmp < 0 ? node.getLeft() : node.getRight();
+		}
+		insertNode(parent, cmp, new IntNode<V>(parent, nil, nil, key, value));
+		return this;
+	}
+
+	public V remove(int key) {
+		IntNode<V> node = find(key, root);
+		if (node == nil) {
+			return null;
+		}
+		
+		V originalValue = node.getValue();
+		removeNode(node);
+		return originalValue;
+	}
+
+	public Integer successor(int key) {
+		IntNode<V> node = find(key, root);
+		if (node == nil) {
+			return null;
+		}
+		IntNode<V> successor = successorNode(node);
+		if (successor == nil) {
+			return null;
+		}
+		return successor.getKey();
+	}
+
+	public Integer predecessor(int key) {
+		IntNode<V> node = find(key, root);
+		if (node == nil) {
+			return null;
+		}
+		IntNode<V> predecessor = predecessorNode(node);
+		if (predecessor == nil) {
+			return null;
+		}
+		return predecessor.getKey();
+	}
+	
+	public int rank(int key) {
+		// number of keys strictly less than key. key need not be in the tree
+		int rank = 0;
+		IntNode<V> node = root;
+		while (node != nil) {
+			int nodeKey = node.getKey();
+			if (key < nodeKey) {
+				node = node.getLeft();
+			} else if (key > nodeKey) {
+				rank += node.getLeft().getCount() + 1;
+				node = node.getRight();
+			} else {
+				rank += node.getLeft().getCount();
+				break;
+			}
+		}
+		return rank;
+	}
+	
+	public Integer select(int index) {
+		// returns the key with the given zero-based rank, or null if index is out of range
+		IntNode<V> node = selectNode(index);
+		if (node == nil) {
+			return null;
+		}
+		return node.getKey();
+	}
+	
+	public int count(int lo, int hi) {
+		// number of keys k such that lo <= k <= hi
+		if (lo > hi) {
+			return 0;
+		}
+		int count = rank(hi) - rank(lo);
+		if (find(hi, root) != nil) {
+			count++;
+		}
+		return count;
+	}
+	
+	@Override
+	protected void copyEntry(IntNode<V> target, IntNode<V> source) {
+		target.setKey(source.getKey());
+		target.setValue(source.getValue());
+	}
+	
+	@Override
+	protected int compareKeys(IntNode<V> a, IntNode<V> b) {
+		return Integer.compare(a.getKey(), b.getKey());
+	}
+	
+	@Override
+	protected String keyString(IntNode<V> node) {
+		return String.valueOf(node.getKey());
+	}
+}
@@ -0,0 +1,67 @@
+package javaplay.redblacktree;
+
+import java.util.Arrays;
+
+/**
+ * A pool of encoded keys that Utf8RedBlackTrees can share, so that a key held by several
+ * trees (replicas, per-tenant views, a tree and the one loaded from its snapshot) is
+ * stored once. Keys are never evicted: the pool holds every key it has been given until
+ * it is dropped or cleared, so share one only between trees with a common key space.
+ *
+ * The table is open addressing over the arrays themselves, costing one reference per
+ * slot rather than an entry object per key. intern() is synchronized, so a pool can be
+ * shared by trees written from different threads.
+ */
+public class KeyInterner {
+	private static final int INITIAL_CAPACITY = 1024;
+	
+	private byte[][] table = new byte[INITIAL_CAPACITY][];
+	private int size = 0;
+	
+	public synchronized byte[] intern(byte[] key) {
+		// returns the pooled array equal to key, adding key itself if there is none
+		int mask = table.length - 1;
+		int slot = mix(Arrays.hashCode(key)) & mask;
+		while (table[slot] != null) {
+			if (Arrays.equals(table[slot], key)) {
+				return table[slot];
+			}
+			slot = (slot + 1) & mask;
+		}
+		table[slot] = key;
+		if (++size > table.length / 2) {
+			resize();
+		}
+		return key;
+	}
+	
+	public synchronized int size() {
+		return size;
+	}
+	
+	public synchronized void clear() {
+		table = new byte[INITIAL_CAPACITY][];
+		size = 0;
+	}
+	
+	private static int mix(int hash) {
+		// Arrays.hashCode is weak in the low bits for keys that differ only at the end
+		hash *= 0x9e3779b9;
+		return hash ^ (hash >>> 16);
+	}
+	
+	private void resize() {
+		byte[][] old = table;
+		table = new byte[old.length * 2][];
+		int mask = table.length - 1;
+		for (byte[] key : old) {
+			if (key != null) {
+				int slot = mix(Arrays.hashCode(key)) & mask;
+				while (table[slot] != null) {
+					slot = (slot + 1) & mask;
+				}
+				table[slot] = key;
+			}
+		}
+	}
+}
@@ -0,0 +1,28 @@
+package javaplay.redblacktree;
+
+public class LongNode<V> extends BaseNode<LongNode<V>> {
+	private long key;
+	private V value;
+	
+	public long getKey() {
+		return key;
+	}
+
+	public void setKey(long key) {
+		this.key = key;
+	}
+
+	public V getValue() {
+		return value;
+	}
+
+	public void setValue(V value) {
+		this.value = value;
+	}
+
+	public LongNode(LongNode<V> parent, LongNode<V> left, LongNode<V> right, long key, V data) {
+		super(parent, left, right);
+		this.key = key;
+		this.value = data;
+	}
+}
@@ -0,0 +1,219 @@
+package javaplay.redblacktree;
+
+/**
+ * A red-black tree keyed by primitive longs (timestamps, for instance). Keys live in a
+ * long field of each node and are compared with primitive comparisons, so neither the
+ * lookup nor the update paths box them. Only the neighbour queries that may have no
+ * answer (successor, predecessor, select) return a boxed key, null meaning "none".
+ */
+public class LongRedBlackTree<V> extends AbstractRedBlackTree<LongNode<V>> {
+	public LongRedBlackTree() {
+		super(new LongNode<V>(null, null, null, 0L, null));
+	}
+	
+	private LongNode<V> find(long key, LongNode<V> node) {
+		// plain descent; returns nil if the key is not in the tree
+		while (node != nil) {
+			long nodeKey = node.getKey();
+			if (key < nodeKey) {
+				node = node.getLeft();
+			} else if (key > nodeKey) {
+				node = node.getRight();
+			} else {
+				break;
+			}
+		}
+		return node;
+	}
+	
+	public boolean containsKey(long key) {
+		return find(key, root) != nil;
+	}
+
+	public V get(long key) {
+		LongNode<V> node = find(key, root);
+		if (node == nil) {
+			return null;
+		}
+		return node.getValue();
+	}
+
+	public LongRedBlackTree<V> put(long key, V value) {
+		LongNode<V> parent = nil;
+		LongNode<V> node = root;
+		int cmp = 0;
+		while (node != nil) {
+			cmp = Long.compare(key, node.getKey());
+			if (cmp == 0) {
+				node.setValue(value);
+				return this;
+			}
+			parent = node;
+			node = cmp < 0 ? node.getLeft() : node.getRight();
+		}
+		insertNode(parent, cmp, new LongNode<V>(parent, nil, nil, key, value));
+		return this;
+	}
+
+	public V remove(long key) {
+		LongNode<V> node = find(key, root);
+		if (node == nil) {
+			return null;
+		}
+		
+		V originalValue = node.getValue();
+		removeNode(node);
+		return originalValue;
+	}
+
+	public Long successor(long key) {
+		LongNode<V> node = find(key, root);
+		if (node == nil) {
+			return null;
+		}
+		LongNode<V> successor = successorNode(node);
+		if (successor == nil) {
+			return null;
+		}
+		return successor.getKey();
+	}
+
+	public Long predecessor(long key) {
+		LongNode<V> node = find(key, root);
+		if (node == nil) {
+			return null;
+		}
+		LongNode<V> predecessor = predecessorNode(node);
+		if (predecessor == nil) {
+			return null;
+		}
+		return predecessor.getKey();
+	}
+	
+	public int rank(long key) {
+		// number of keys strictly less than key. key need not be in the tree
+		int rank = 0;
+		LongNode<V> node = root;
+		while (node != nil) {
+			long nodeKey = node.getKey();
+			if (key < nodeKey) {
+				node = node.getLeft();
+			} else if (key > nodeKey) {
+				rank += node.getLeft().getCount() + 1;
+				node = node.getRight();
+			} else {
+				rank += node.getLeft().getCount();
+				break;
+			}
+		}
+		return rank;
+	}
+	
+	public Long select(int index) {
+		// returns the key with the given zero-based rank, or null if index is out of range
+		LongNode<V> node = selectNode(index);
+		if (node == nil) {
+			return null;
+		}
+		return node.getKey();
+	}
+	
+	public Cursor cursor() {
+		return new Cursor();
+	}
+	
+	/**
+	 * Operations relative to the last node touched, as RedBlackTree.Cursor. For the
+	 * append-mostly timestamp trees this is meant for, an insert of a new latest key finds
+	 * its place with a single compare against the previous one, and a cursor that removes
+	 * the oldest key each time finds the next oldest the same way.
+	 */
+	public class Cursor {
+		private LongNode<V> finger = nil;
+		private int expectedModCount = modCount;
+		
+		private LongNode<V> locate(long key) {
+			if (expectedModCount != modCount) {
+				finger = nil;
+			}
+			return LongRedBlackTree.this.locate(finger, other -> Long.compare(key, other.getKey()));
+		}
+		
+		private void moveTo(LongNode<V> node) {
+			finger = node;
+			expectedModCount = modCount;
+		}
+		
+		public V get(long key) {
+			LongNode<V> node = locate(key);
+			moveTo(node);
+			if (node == nil || node.getKey() != key) {
+				return null;
+			}
+			return node.getValue();
+		}
+		
+		public Cursor put(long key, V value) {
+			LongNode<V> node = locate(key);
+			int cmp = node == nil ? 0 : Long.compare(key, node.getKey());
+			if (node != nil && cmp == 0) {
+				node.setValue(value);
+				moveTo(node);
+				return this;
+			}
+			LongNode<V> newNode = new LongNode<V>(node, nil, nil, key, value);
+			insertNode(node, cmp, newNode);
+			moveTo(newNode);
+			return this;
+		}
+		
+		public V remove(long key) {
+			LongNode<V> node = locate(key);
+			if (node == nil || node.getKey() != key) {
+				moveTo(node);
+				return null;
+			}
+			V originalValue = node.getValue();
+			LongNode<V> neighbour = neighbourAfterRemoval(node);
+			removeNode(node);
+			moveTo(neighbour);
+			return originalValue;
+		}
+		
+		public Long key() {
+			// the key at the finger, or null if the cursor hasn't been used or the tree is empty
+			if (expectedModCount != modCount || finger == nil) {
+				return null;
+			}
+			return finger.getKey();
+		}
+	}
+	
+	public int count(long lo, long hi) {
+		// number of keys k such that lo <= k <= hi
+		if (lo > hi) {
+			return 0;
+		}
+		int count = rank(hi) - rank(lo);
+		if (find(hi, root) != nil) {
+			count++;
+		}
+		return count;
+	}
+	
+	@Override
+	protected void copyEntry(LongNode<V> target, LongNode<V> source) {
+		target.setKey(source.getKey());
+		target.setValue(source.getValue());
+	}
+	
+	@Override
+	protected int compareKeys(LongNode<V> a, LongNode<V> b) {
+		return Long.compare(a.getKey(), b.getKey());
+	}
+	
+	@Override
+	protected String keyString(LongNode<V> node) {
+		return String.valueOf(node.getKey());
+	}
+}
@@ -0,0 +1,337 @@
+package javaplay.redblacktree;
+
+import java.util.Arrays;
+
+/**
+ * A bounded cache in front of RedBlackTree.get, mapping keys straight to their nodes so
+ * that a hit costs a hash probe and one String.equals instead of a descent. Attach one
+ * with RedBlackTree.setLookupCache; the tree drops entries whose node stops holding their
+ * key (remove, the entry copy in removeNode, a bulk rebuild), so a cached node is always
+ * the live one and puts to cached keys need no invalidation at all.
+ *
+ * Two eviction policies:
+ *
+ * CLOCK: one ring of entries with a reference bit each. A hit sets the bit; eviction
+ * sweeps the ring clearing bits and takes the first entry whose bit was already clear.
+ *
+ * TINY_LFU: W-TinyLFU, with CLOCK standing in for its LRU queues. New entries go into a
+ * small window (1% of the capacity). The window's victim then competes for the main
+ * region against the main region's victim, and wins only if a frequency sketch of recent
+ * lookups has seen it more often. One-off lookups thus can't flush the hot set, which
+ * matters under Zipfian traffic where most distinct keys are seen once.
+ *
+ * Like the tree, a cache is single threaded: lookups update it, so it must not be used
+ * where gets run concurrently.
+ */
+public class LookupCache {
+	public static enum Policy {
+		CLOCK,
+		TINY_LFU
+	}
+
+	private final Policy policy;
+	private final int capacity;
+
+	// entries live in slots; [0, windowSize) is the TINY_LFU window, the rest the main region
+	private final String[] keys;
+	private final Node[] nodes;
+	private final boolean[] referenced;
+	private final int windowSize;
+	private int windowUsed = 0;
+	private int mainUsed = 0;
+	private int windowHand = 0;
+	private int mainHand;
+
+	// open addressing from key to slot + 1 (0 for empty), linear probing, deletion by
+	// shifting back, so there are no tombstones
+	private final int[] index;
+
+	private final FrequencySketch sketch;
+
+	private long hits = 0;
+	private long misses = 0;
+	private long evictions = 0;
+	private long rejections = 0;
+
+	public LookupCache(int capacity, Policy policy) {
+		if (capacity < 1) {
+			throw new IllegalArgumentException("Capacity must be positive: " + capacity);
+		}
+		this.policy = policy;
+		this.capacity = capacity;
+		keys = new String[capacity];
+		nodes = new Node[capacity];
+		referenced = new boolean[capacity];
+		windowSize = policy == Policy.TINY_LFU ? Math.max(1, capacity / 100) : 0;
+		mainHand = windowSize;
+		index = new int[Integer.highestOneBit(Math.max(capacity, 2) - 1) << 2];
+		sketch = policy == Policy.TINY_LFU ? new FrequencySketch(capacity) : null;
+	}
+
+	public Policy getPolicy() {
+		return policy;
+	}
+
+	public int getCapacity() {
+		return capacity;
+	}
+
+	public int size() {
+		return windowUsed + mainUsed;
+	}
+
+	public long getHits() {
+		return hits;
+	}
+
+	public long getMisses() {
+		return misses;
+	}
+
+	public double getHitRate() {
+		long lookups = hits + misses;
+		return lookups == 0 ? 0 : (double)hits / lookups;
+	}
+
+	public long getEvictions() {
+		return evictions;
+	}
+
+	public long getRejections() {
+		// TINY_LFU only: candidates turned away because the main region's victim was hotter
+		return rejections;
+	}
+
+	public void resetCounters() {
+		hits = 0;
+		misses = 0;
+		evictions = 0;
+		rejections = 0;
+	}
+
+	private static int hash(String key) {
+		int hash = key.hashCode() * 0x9e3779b9;
+		return hash ^ (hash >>> 16);
+	}
+
+	private int findSlot(String key, int hash) {
+		// index position holding key, or -1
+		int mask = index.length - 1;
+		for (int i = hash & mask; index[i] != 0; i = (i + 1) & mask) {
+			if (keys[index[i] - 1].equals(key)) {
+				return i;
+			}
+		}
+		return -1;
+	}
+
+	Node lookup(String key) {
+		// the cached node for key, or null on a miss
+		int hash = hash(key);
+		if (sketch != null) {
+			sketch.increment(hash);
+		}
+		int i = findSlot(key, hash);
+		if (i < 0) {
+			misses++;
+			return null;
+		}
+		hits++;
+		int slot = index[i] - 1;
+		referenced[slot] = true;
+		return nodes[slot];
+	}
+
+	void admit(Node node) {
+		// cache node after a miss. The key must not be cached already
+		if (policy == Policy.CLOCK) {
+			int slot = mainUsed < capacity ? mainUsed++ : evict(windowSize, capacity, false);
+			place(slot, node.getKey(), node);
+			return;
+		}
+
+		if (windowUsed < windowSize) {
+			place(windowUsed++, node.getKey(), node);
+			return;
+		}
+		// the window is full: its victim makes way, and tries for a place in the main region
+		int slot = evict(0, windowSize, true);
+		String candidateKey = keys[slot];
+		Node candidate = nodes[slot];
+		removeIndex(candidateKey);
+		place(slot, node.getKey(), node);
+
+		int mainCapacity = capacity - windowSize;
+		if (mainCapacity == 0) {
+			// a cache of one is all window
+			evictions++;
+			return;
+		}
+		if (mainUsed < mainCapacity) {
+			place(windowSize + mainUsed++, candidateKey, candidate);
+			return;
+		}
+		int victim = evict(windowSize, capacity, true);
+		if (sketch.frequency(hash(candidateKey)) > sketch.frequency(hash(keys[victim]))) {
+			removeIndex(keys[victim]);
+			evictions++;
+			place(victim, candidateKey, candidate);
+		} else {
+			rejections++;
+		}
+	}
+
+	private int evict(int from, int to, boolean peek) {
+		// run the clock hand over slots [from, to) and return the first slot whose reference
+		// bit was clear. Unless peeking, its entry is dropped from the index as well
+		boolean window = from == 0 && to == windowSize;
+		int hand = window ? windowHand : mainHand;
+		while (referenced[hand]) {
+			referenced[hand] = false;
+			hand = hand + 1 == to ? from : hand + 1;
+		}
+		int slot = hand;
+		hand = hand + 1 == to ? from : hand + 1;
+		if (window) {
+			windowHand = hand;
+		} else {
+			mainHand = hand;
+		}
+		if (!peek) {
+			removeIndex(keys[slot]);
+			evictions++;
+		}
+		return slot;
+	}
+
+	private void place(int slot, String key, Node node) {
+		keys[slot] = key;
+		nodes[slot] = node;
+		referenced[slot] = false;
+		int mask = index.length - 1;
+		int i = hash(key) & mask;
+		while (index[i] != 0) {
+			i = (i + 1) & mask;
+		}
+		index[i] = slot + 1;
+	}
+
+	private void removeIndex(String key) {
+		int i = findSlot(key, hash(key));
+		if (i < 0) {
+			return;
+		}
+		// shift back any entries in the run after i that probed past it
+		int mask = index.length - 1;
+		int j = i;
+		while (true) {
+			j = (j + 1) & mask;
+			if (index[j] == 0) {
+				break;
+			}
+			int home = hash(keys[index[j] - 1]) & mask;
+			// move j into the hole at i unless its home lies cyclically in (i, j]
+			if (i <= j ? (home <= i || home > j) : (home <= i && home > j)) {
+				index[i] = index[j];
+				i = j;
+			}
+		}
+		index[i] = 0;
+	}
+
+	void invalidate(String key) {
+		// forget key, if cached. Its slot is reused by moving the region's last entry into it
+		int i = findSlot(key, hash(key));
+		if (i < 0) {
+			return;
+		}
+		int slot = index[i] - 1;
+		removeIndex(key);
+		int last;
+		if (slot < windowSize) {
+			last = --windowUsed;
+		} else {
+			last = windowSize + --mainUsed;
+		}
+		if (slot != last) {
+			String lastKey = keys[last];
+			index[findSlot(lastKey, hash(lastKey))] = slot + 1;
+			keys[slot] = lastKey;
+			nodes[slot] = nodes[last];
+			referenced[slot] = referenced[last];
+		}
+		keys[last] = null;
+		nodes[last] = null;
+		referenced[last] = false;
+		// keep the hands inside the occupied part of their regions
+		if (windowHand >= windowUsed) {
+			windowHand = 0;
+		}
+		if (mainHand >= windowSize + mainUsed) {
+			mainHand = windowSize;
+		}
+	}
+
+	void clear() {
+		Arrays.fill(keys, null);
+		Arrays.fill(nodes, null);
+		Arrays.fill(referenced, false);
+		Arrays.fill(index, 0);
+		windowUsed = 0;
+		mainUsed = 0;
+		windowHand = 0;
+		mainHand = windowSize;
+	}
+
+	private static class FrequencySketch {
+		// count-min sketch of 4-bit counters, sixteen to a long, four rows. Every counter is
+		// halved once the sketch has counted ten lookups per cache entry, so it tracks recent
+		// popularity rather than all time
+		private static final long HALF_MASK = 0x7777777777777777L;
+		private static final int[] SEEDS = {0x97cb3127, 0xa4b69b5d, 0x4cf5ad43, 0x2f51f1cb};
+
+		private final long[] table;
+		private final int sampleSize;
+		private int additions = 0;
+
+		FrequencySketch(int capacity) {
+			table = new long[Integer.highestOneBit(Math.max(capacity, 16) - 1) << 1];
+			sampleSize = 10 * Math.max(capacity, 16);
+		}
+
+		private int counterIndex(int hash, int row) {
+			// which of the table's counters stands for hash in this row
+			int mixed = (hash + SEEDS[row]) * SEEDS[row];
+			mixed ^= mixed >>> 15;
+			return mixed & ((table.length << 4) - 1);
+		}
+
+		void increment(int hash) {
+			boolean added = false;
+			for (int row = 0; row < 4; row++) {
+				int counter = counterIndex(hash, row);
+				int shift = (counter & 15) << 2;
+				long word = table[counter >>> 4];
+				if (((word >>> shift) & 15) != 15) {
+					table[counter >>> 4] = word + (1L << shift);
+					added = true;
+				}
+			}
+			if (added && ++additions == sampleSize) {
+				for (int i = 0; i < table.length; i++) {
+					table[i] = (table[i] >>> 1) & HALF_MASK;
+				}
+				additions /= 2;
+			}
+		}
+
+		int frequency(int hash) {
+			int frequency = 15;
+			for (int row = 0; row < 4; row++) {
+				int counter = counterIndex(hash, row);
+				frequency = Math.min(frequency, (int)(table[counter >>> 4] >>> ((counter & 15) << 2)) & 15);
+			}
+			return frequency;
+		}
+	}
+}
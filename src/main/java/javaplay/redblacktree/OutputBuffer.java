@@ -0,0 +1,108 @@
+package javaplay.redblacktree;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * A reusable byte buffer for ReadTree's output. It encodes exactly as the
+ * PrintWriter(System.out) it replaces would, using the platform charset and
+ * System.lineSeparator() for newLine(), but ASCII text is copied byte for byte instead of
+ * going through String.format and a charset encoder.
+ */
+public class OutputBuffer {
+	// true if the platform charset encodes ASCII as single identical bytes (UTF-8, Latin-1...)
+	static final boolean ASCII_COMPATIBLE = isAsciiCompatible(Charset.defaultCharset());
+
+	private static final byte[] LINE_SEPARATOR = System.lineSeparator().getBytes(Charset.defaultCharset());
+
+	private final OutputStream out;
+	private byte[] buffer;
+	private int count = 0;
+
+	public OutputBuffer(OutputStream out) {
+		this(out, 64 * 1024);
+	}
+
+	public OutputBuffer(OutputStream out, int capacity) {
+		this.out = out;
+		this.buffer = new byte[capacity];
+	}
+
+	private static boolean isAsciiCompatible(Charset charset) {
+		byte[] ascii = new byte[0x80];
+		for (int i = 0; i < ascii.length; i++) {
+			ascii[i] = (byte) i;
+		}
+		String text = new String(ascii, StandardCharsets.ISO_8859_1);
+		return Arrays.equals(ascii, text.getBytes(charset));
+	}
+
+	private void ensureCapacity(int extra) {
+		if (count + extra > buffer.length) {
+			buffer = Arrays.copyOf(buffer, Math.max(buffer.length * 2, count + extra));
+		}
+	}
+
+	public OutputBuffer write(byte[] bytes, int offset, int length) {
+		ensureCapacity(length);
+		System.arraycopy(bytes, offset, buffer, count, length);
+		count += length;
+		return this;
+	}
+
+	public OutputBuffer write(byte[] bytes) {
+		return write(bytes, 0, bytes.length);
+	}
+
+	public OutputBuffer write(String text) {
+		int length = text.length();
+		if (ASCII_COMPATIBLE) {
+			ensureCapacity(length);
+			int i = 0;
+			for (; i < length; i++) {
+				char c = text.charAt(i);
+				if (c >= 0x80) {
+					break;
+				}
+				buffer[count + i] = (byte) c;
+			}
+			if (i == length) {
+				count += length;
+				return this;
+			}
+		}
+		return write(text.getBytes(Charset.defaultCharset()));
+	}
+
+	public OutputBuffer write(long value) {
+		return write(Long.toString(value));
+	}
+
+	public OutputBuffer newLine() {
+		return write(LINE_SEPARATOR);
+	}
+
+	public int size() {
+		return count;
+	}
+
+	public void flush() throws IOException {
+		if (count > 0) {
+			out.write(buffer, 0, count);
+			count = 0;
+		}
+		out.flush();
+	}
+
+	public void flushIfFull() throws IOException {
+		// write out once the buffer has filled to its initial size, so that buffered output
+		// doesn't grow without bound
+		if (count >= 64 * 1024) {
+			out.write(buffer, 0, count);
+			count = 0;
+		}
+	}
+}
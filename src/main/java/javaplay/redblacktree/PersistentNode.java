@@ -0,0 +1,68 @@
+package javaplay.redblacktree;
+
+/**
+ * An immutable node for PersistentRedBlackTree. There are no parent pointers, since a
+ * parent pointer would force a copy of the whole subtree whenever a node is replaced.
+ * The empty tree is null.
+ */
+public final class PersistentNode {
+	private final PersistentNode left;
+	private final PersistentNode right;
+	private final boolean red;
+	private final String key;
+	private final String value;
+	// number of nodes in the subtree rooted at this node (including this node)
+	private final int count;
+
+	public PersistentNode(boolean red, PersistentNode left, String key, String value, PersistentNode right) {
+		this.left = left;
+		this.right = right;
+		this.red = red;
+		this.key = key;
+		this.value = value;
+		this.count = count(left) + count(right) + 1;
+	}
+
+	public static int count(PersistentNode node) {
+		return node == null ? 0 : node.count;
+	}
+
+	public static boolean isRed(PersistentNode node) {
+		return node != null && node.red;
+	}
+
+	public static boolean isBlack(PersistentNode node) {
+		return node != null && !node.red;
+	}
+
+	public PersistentNode getLeft() {
+		return left;
+	}
+
+	public PersistentNode getRight() {
+		return right;
+	}
+
+	public boolean isRed() {
+		return red;
+	}
+
+	public String getKey() {
+		return key;
+	}
+
+	public String getValue() {
+		return value;
+	}
+
+	public int getCount() {
+		return count;
+	}
+
+	public PersistentNode withColor(boolean red) {
+		if (red == this.red) {
+			return this;
+		}
+		return new PersistentNode(red, left, key, value, right);
+	}
+}
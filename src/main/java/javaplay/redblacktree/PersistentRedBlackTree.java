@@ -0,0 +1,412 @@
+package javaplay.redblacktree;
+
+import javaplay.symboltable.SymbolTable;
+
+/**
+ * A red-black tree built from immutable PersistentNodes. put and remove copy only the
+ * nodes on the path from the root to the change (plus O(1) nodes per level touched by
+ * rebalancing), and share everything else with the previous version. That makes
+ * snapshot() O(1): it just captures the current root.
+ *
+ * Without parent pointers the bottom-up fixups in AbstractRedBlackTree can't be used
+ * as-is, so they're mirrored here in their recursive, functional form: insertion is
+ * Okasaki's balance, where the four red-red shapes correspond to insert cases 2 and 3,
+ * and the "both children red" recoloring is case 1. Deletion is Kahrs' formulation,
+ * where balanceLeft/balanceRight cover the red sibling (2), black sibling with black
+ * children (3) and red nephew (4, 5) cases of fixRedBlackOnDelete.
+ */
+public class PersistentRedBlackTree implements SymbolTable {
+	private volatile PersistentNode root;
+	private final boolean readOnly;
+
+	private static class BadTreeException extends Exception {
+		public BadTreeException(String message) {
+			super(message);
+		}
+	}
+
+	public PersistentRedBlackTree() {
+		this(null, false);
+	}
+
+	private PersistentRedBlackTree(PersistentNode root, boolean readOnly) {
+		this.root = root;
+		this.readOnly = readOnly;
+	}
+
+	public PersistentRedBlackTree snapshot() {
+		// an immutable view of the tree as it is now. Later changes to this tree don't
+		// affect the snapshot, and vice versa the snapshot can't be changed
+		return new PersistentRedBlackTree(root, true);
+	}
+
+	public boolean isReadOnly() {
+		return readOnly;
+	}
+
+	private static PersistentNode red(PersistentNode left, String key, String value, PersistentNode right) {
+		return new PersistentNode(true, left, key, value, right);
+	}
+
+	private static PersistentNode black(PersistentNode left, String key, String value, PersistentNode right) {
+		return new PersistentNode(false, left, key, value, right);
+	}
+
+	private static PersistentNode blacken(PersistentNode node) {
+		return node == null ? null : node.withColor(false);
+	}
+
+	private static PersistentNode balance(PersistentNode left, String key, String value, PersistentNode right) {
+		// build a node from left, key, right, resolving a red-red violation in either child
+		if (PersistentNode.isRed(left) && PersistentNode.isRed(right)) {
+			return red(blacken(left), key, value, blacken(right));
+		}
+		if (PersistentNode.isRed(left)) {
+			if (PersistentNode.isRed(left.getLeft())) {
+				return red(blacken(left.getLeft()), left.getKey(), left.getValue(),
+						black(left.getRight(), key, value, right));
+			}
+			if (PersistentNode.isRed(left.getRight())) {
+				PersistentNode inner = left.getRight();
+				return red(black(left.getLeft(), left.getKey(), left.getValue(), inner.getLeft()),
+						inner.getKey(), inner.getValue(), black(inner.getRight(), key, value, right));
+			}
+		}
+		if (PersistentNode.isRed(right)) {
+			if (PersistentNode.isRed(right.getRight())) {
+				return red(black(left, key, value, right.getLeft()), right.getKey(), right.getValue(),
+						blacken(right.getRight()));
+			}
+			if (PersistentNode.isRed(right.getLeft())) {
+				PersistentNode inner = right.getLeft();
+				return red(black(left, key, value, inner.getLeft()), inner.getKey(), inner.getValue(),
+						black(inner.getRight(), right.getKey(), right.getValue(), right.getRight()));
+			}
+		}
+		return black(left, key, value, right);
+	}
+
+	private static PersistentNode insert(PersistentNode node, String key, String value) {
+		if (node == null) {
+			return red(null, key, value, null);
+		}
+		int cmp = key.compareTo(node.getKey());
+		if (cmp == 0) {
+			return new PersistentNode(node.isRed(), node.getLeft(), key, value, node.getRight());
+		}
+		if (node.isRed()) {
+			// a red node can't have a red child yet; its black parent will sort it out
+			if (cmp < 0) {
+				return red(insert(node.getLeft(), key, value), node.getKey(), node.getValue(), node.getRight());
+			}
+			return red(node.getLeft(), node.getKey(), node.getValue(), insert(node.getRight(), key, value));
+		}
+		if (cmp < 0) {
+			return balance(insert(node.getLeft(), key, value), node.getKey(), node.getValue(), node.getRight());
+		}
+		return balance(node.getLeft(), node.getKey(), node.getValue(), insert(node.getRight(), key, value));
+	}
+
+	private static PersistentNode redden(PersistentNode node) {
+		// only ever applied to black nodes, to take one off a subtree's black height
+		if (!PersistentNode.isBlack(node)) {
+			throw new IllegalStateException("Corrupted RBT: expected a black node");
+		}
+		return node.withColor(true);
+	}
+
+	private static PersistentNode balanceLeft(PersistentNode left, String key, String value, PersistentNode right) {
+		// left's black height is one short of right's
+		if (PersistentNode.isRed(left)) {
+			return red(blacken(left), key, value, right);
+		}
+		if (PersistentNode.isBlack(right)) {
+			return balance(left, key, value, right.withColor(true));
+		}
+		if (PersistentNode.isRed(right) && PersistentNode.isBlack(right.getLeft())) {
+			PersistentNode inner = right.getLeft();
+			return red(black(left, key, value, inner.getLeft()), inner.getKey(), inner.getValue(),
+					balance(inner.getRight(), right.getKey(), right.getValue(), redden(right.getRight())));
+		}
+		throw new IllegalStateException("Corrupted RBT at node with key " + key);
+	}
+
+	private static PersistentNode balanceRight(PersistentNode left, String key, String value, PersistentNode right) {
+		// right's black height is one short of left's
+		if (PersistentNode.isRed(right)) {
+			return red(left, key, value, blacken(right));
+		}
+		if (PersistentNode.isBlack(left)) {
+			return balance(left.withColor(true), key, value, right);
+		}
+		if (PersistentNode.isRed(left) && PersistentNode.isBlack(left.getRight())) {
+			PersistentNode inner = left.getRight();
+			return red(balance(redden(left.getLeft()), left.getKey(), left.getValue(), inner.getLeft()),
+					inner.getKey(), inner.getValue(), black(inner.getRight(), key, value, right));
+		}
+		throw new IllegalStateException("Corrupted RBT at node with key " + key);
+	}
+
+	private static PersistentNode append(PersistentNode left, PersistentNode right) {
+		// join the two subtrees of a removed node, which have the same black height
+		if (left == null) {
+			return right;
+		}
+		if (right == null) {
+			return left;
+		}
+		if (left.isRed() && right.isRed()) {
+			PersistentNode middle = append(left.getRight(), right.getLeft());
+			if (PersistentNode.isRed(middle)) {
+				return red(red(left.getLeft(), left.getKey(), left.getValue(), middle.getLeft()),
+						middle.getKey(), middle.getValue(),
+						red(middle.getRight(), right.getKey(), right.getValue(), right.getRight()));
+			}
+			return red(left.getLeft(), left.getKey(), left.getValue(),
+					red(middle, right.getKey(), right.getValue(), right.getRight()));
+		}
+		if (!left.isRed() && !right.isRed()) {
+			PersistentNode middle = append(left.getRight(), right.getLeft());
+			if (PersistentNode.isRed(middle)) {
+				return red(black(left.getLeft(), left.getKey(), left.getValue(), middle.getLeft()),
+						middle.getKey(), middle.getValue(),
+						black(middle.getRight(), right.getKey(), right.getValue(), right.getRight()));
+			}
+			return balanceLeft(left.getLeft(), left.getKey(), left.getValue(),
+					black(middle, right.getKey(), right.getValue(), right.getRight()));
+		}
+		if (right.isRed()) {
+			return red(append(left, right.getLeft()), right.getKey(), right.getValue(), right.getRight());
+		}
+		return red(left.getLeft(), left.getKey(), left.getValue(), append(left.getRight(), right));
+	}
+
+	private static PersistentNode delete(PersistentNode node, String key) {
+		// key is known to be in the tree
+		int cmp = key.compareTo(node.getKey());
+		if (cmp < 0) {
+			if (PersistentNode.isBlack(node.getLeft())) {
+				return balanceLeft(delete(node.getLeft(), key), node.getKey(), node.getValue(), node.getRight());
+			}
+			return red(delete(node.getLeft(), key), node.getKey(), node.getValue(), node.getRight());
+		}
+		if (cmp > 0) {
+			if (PersistentNode.isBlack(node.getRight())) {
+				return balanceRight(node.getLeft(), node.getKey(), node.getValue(), delete(node.getRight(), key));
+			}
+			return red(node.getLeft(), node.getKey(), node.getValue(), delete(node.getRight(), key));
+		}
+		return append(node.getLeft(), node.getRight());
+	}
+
+	private static PersistentNode find(String key, PersistentNode node) {
+		while (node != null) {
+			int cmp = key.compareTo(node.getKey());
+			if (cmp < 0) {
+				node = node.getLeft();
+			} else if (cmp > 0) {
+				node = node.getRight();
+			} else {
+				break;
+			}
+		}
+		return node;
+	}
+
+	private void checkWritable() {
+		if (readOnly) {
+			throw new UnsupportedOperationException("Snapshots are read-only");
+		}
+	}
+
+	@Override
+	public String get(String key) {
+		PersistentNode node = find(key, root);
+		if (node == null) {
+			return null;
+		}
+		return node.getValue();
+	}
+
+	@Override
+	public SymbolTable put(String key, String value) {
+		checkWritable();
+		root = blacken(insert(root, key, value));
+		return this;
+	}
+
+	@Override
+	public String remove(String key) {
+		checkWritable();
+		PersistentNode node = find(key, root);
+		if (node == null) {
+			// nothing to do, and no reason to copy the path
+			return null;
+		}
+		root = blacken(delete(root, key));
+		return node.getValue();
+	}
+
+	@Override
+	public String successor(String key) {
+		// the successor is the smallest key in the right subtree if there is one, otherwise
+		// the last ancestor where we went left
+		PersistentNode node = root;
+		PersistentNode candidate = null;
+		while (node != null) {
+			int cmp = key.compareTo(node.getKey());
+			if (cmp < 0) {
+				candidate = node;
+				node = node.getLeft();
+			} else if (cmp > 0) {
+				node = node.getRight();
+			} else {
+				break;
+			}
+		}
+		if (node == null) {
+			return null;
+		}
+		if (node.getRight() != null) {
+			node = node.getRight();
+			while (node.getLeft() != null) {
+				node = node.getLeft();
+			}
+			return node.getKey();
+		}
+		return candidate == null ? null : candidate.getKey();
+	}
+
+	@Override
+	public String predecessor(String key) {
+		PersistentNode node = root;
+		PersistentNode candidate = null;
+		while (node != null) {
+			int cmp = key.compareTo(node.getKey());
+			if (cmp < 0) {
+				node = node.getLeft();
+			} else if (cmp > 0) {
+				candidate = node;
+				node = node.getRight();
+			} else {
+				break;
+			}
+		}
+		if (node == null) {
+			return null;
+		}
+		if (node.getLeft() != null) {
+			node = node.getLeft();
+			while (node.getRight() != null) {
+				node = node.getRight();
+			}
+			return node.getKey();
+		}
+		return candidate == null ? null : candidate.getKey();
+	}
+
+	public int rank(String key) {
+		// number of keys strictly less than key. key need not be in the tree
+		int rank = 0;
+		PersistentNode node = root;
+		while (node != null) {
+			int cmp = key.compareTo(node.getKey());
+			if (cmp < 0) {
+				node = node.getLeft();
+			} else if (cmp > 0) {
+				rank += PersistentNode.count(node.getLeft()) + 1;
+				node = node.getRight();
+			} else {
+				rank += PersistentNode.count(node.getLeft());
+				break;
+			}
+		}
+		return rank;
+	}
+
+	public String select(int index) {
+		// returns the key with the given zero-based rank, or null if index is out of range
+		PersistentNode node = root;
+		if (index < 0 || index >= PersistentNode.count(node)) {
+			return null;
+		}
+		while (node != null) {
+			int leftCount = PersistentNode.count(node.getLeft());
+			if (index < leftCount) {
+				node = node.getLeft();
+			} else if (index > leftCount) {
+				index -= leftCount + 1;
+				node = node.getRight();
+			} else {
+				break;
+			}
+		}
+		return node.getKey();
+	}
+
+	@Override
+	public int size() {
+		return PersistentNode.count(root);
+	}
+
+	public boolean isEmpty() {
+		return root == null;
+	}
+
+	private int maxDepth(PersistentNode node) {
+		if (node == null) {
+			return 0;
+		}
+		return 1 + Math.max(maxDepth(node.getLeft()), maxDepth(node.getRight()));
+	}
+
+	public int height() {
+		return maxDepth(root);
+	}
+
+	private int good(PersistentNode node, String lo, String hi) throws BadTreeException {
+		// lo and hi are exclusive bounds inherited from the ancestors (null if unbounded)
+		if (node == null) {
+			return 1;
+		}
+		if ((lo != null && node.getKey().compareTo(lo) <= 0) ||
+				(hi != null && node.getKey().compareTo(hi) >= 0)) {
+			throw new BadTreeException("Corrupted BST at node with key " + node.getKey() + "; Unexpected key");
+		}
+		if (node.isRed()) {
+			if (PersistentNode.isRed(node.getLeft())) {
+				throw new BadTreeException("Corrupted RBT at node with key " +
+						node.getKey() + "; Left child unexpectedly red");
+			}
+			if (PersistentNode.isRed(node.getRight())) {
+				throw new BadTreeException("Corrupted RBT at node with key " +
+						node.getKey() + "; Right child unexpectedly red");
+			}
+		}
+		if (node.getCount() != PersistentNode.count(node.getLeft()) + PersistentNode.count(node.getRight()) + 1) {
+			throw new BadTreeException("Corrupted order statistics at node with key " +
+					node.getKey() + "; Unexpected subtree count " + node.getCount());
+		}
+		int leftCount = good(node.getLeft(), lo, node.getKey());
+		int rightCount = good(node.getRight(), node.getKey(), hi);
+		if (leftCount != rightCount) {
+			throw new BadTreeException(String.format("Path at node with key %s" +
+					" contains unexpected number of black nodes: %d vs. %d", node.getKey(), leftCount, rightCount));
+		}
+		return leftCount + (node.isRed() ? 0 : 1);
+	}
+
+	public String check() {
+		PersistentNode node = root;
+		try {
+			if (PersistentNode.isRed(node)) {
+				throw new BadTreeException("Corrupted RBT at node with key " + node.getKey() + "; Root is red");
+			}
+			good(node, null, null);
+		} catch (BadTreeException bte) {
+			System.err.println(bte.getMessage());
+			return bte.getMessage();
+		}
+		return null;
+	}
+}
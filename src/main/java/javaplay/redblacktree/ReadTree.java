@@ -1,20 +1,38 @@
 package javaplay.redblacktree;
 
-import java.io.BufferedReader;
-import java.io.BufferedWriter;
 import java.io.File;
-import java.io.FileInputStream;
 import java.io.IOException;
-import java.io.InputStreamReader;
-import java.io.PrintWriter;
-
-import javaplay.linesplitter.LineSplitter;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.file.StandardOpenOption;
 
 public class ReadTree {
+	private static final int BATCH_SIZE = 1024;
+	private static final int PIPELINE_BATCHES = 4;
+
 	public static void main(String args[]) {
-		InputStreamReader isr = null;
+		// options after the file name: "nobuffer" flushes output after every command,
+		// "mmap" memory-maps the input file rather than reading it (ignored for stdin), and
+		// "pipeline" parses, executes and prints on separate threads
+		boolean bufferedLog = true;
+		boolean mapped = false;
+		boolean pipelined = false;
+		for (int i = 1; i < args.length; i++) {
+			if (args[i].equals("nobuffer")) {
+				bufferedLog = false;
+			} else if (args[i].equals("mmap")) {
+				mapped = true;
+			} else if (args[i].equals("pipeline")) {
+				pipelined = true;
+			}
+		}
+		
+		ReadableByteChannel input = null;
+		CommandReader reader = null;
 		if (args.length == 0 || args[0].equals("-")) {
-			isr = new InputStreamReader(System.in);
+			input = Channels.newChannel(System.in);
+			reader = new CommandReader(input);
 		} else {
 			File f = new File(args[0]);
 			if (!f.exists() || !f.isFile()) {
@@ -22,140 +40,40 @@ public class ReadTree {
 				System.exit(1);
 			}
 			try {
-				FileInputStream fis = new FileInputStream(f);
-				isr = new InputStreamReader(fis);
+				FileChannel fileChannel = FileChannel.open(f.toPath(), StandardOpenOption.READ);
+				input = fileChannel;
+				reader = mapped ? CommandReader.mapped(fileChannel) : new CommandReader(fileChannel);
 			} catch (IOException ioe) {
 				ioe.printStackTrace();
 				System.exit(2);
 			}
 		}
 		
-		boolean bufferedLog = true;
-		if (args.length > 1) {
-			if (args[1].equals("nobuffer")) {
-				bufferedLog = false;
-			}
-		}
-		
-		BufferedReader br = new BufferedReader(isr);
-		PrintWriter pr = new PrintWriter(System.out);
-		BufferedWriter bw = new BufferedWriter(pr);
+		OutputBuffer out = new OutputBuffer(System.out);
 		
 		RedBlackTree map = new RedBlackTree(); 
-		long intervalStart = 0;
+		// without buffering every command is its own batch, so each one is printed (and
+		// flushed) before the next is even read
+		int batchSize = bufferedLog ? BATCH_SIZE : 1;
 		try {
-			String inputLine = null;
-			while ((inputLine = br.readLine()) != null) {
-				String[] tokens = LineSplitter.split(inputLine);
-				if (tokens.length == 0) {
-					continue;
-				}
-				switch (tokens[0]) {
-				case "put":
-					if (tokens.length < 2) {
-						System.err.println("put: No key specified");
-						break;
-					}
-					if (tokens.length < 3) {
-						System.err.println("put: No value specified");
-						break;
-					}
-					map.put(tokens[1], tokens[2]);
-					break;
-				case "get":
-					if (tokens.length < 2) {
-						System.err.println("get: No key specified");
-						break;
-					}
-					
-					boolean mustBeNull = false;
-					boolean mustExist = false;
-					if (tokens.length > 2) {
-						if (tokens[2].equals("mustbenull")) {
-							mustBeNull = true;
-						} else if (tokens[2].equals("mustexist")) {
-							mustExist = true;
-						}
-					}
-					
-					String value = map.get(tokens[1]);
-					String checkStatus = "no_check";
-					if (mustBeNull) {
-						if (value != null) {
-							checkStatus = "bad_should_be_null";
-						} else {
-							checkStatus = "good";
-						}
-					}
-					
-					if (mustExist) {
-						if (value == null) {
-							checkStatus = "bad_should_exist";
-						} else {
-							checkStatus = "good";
-						}
-					}
-
-					String valueString = "null";
-					if (value != null) {
-						valueString = "'"+value+"'";
-					}
-					bw.write(String.format("Key: '%s', value '%s', status: %s\n", tokens[1],
-							valueString, checkStatus));
-					break;
-				case "remove":
-					if (tokens.length < 2) {
-						System.err.println("remove: No key specified");
-						break;
-					}
-					value = map.remove(tokens[1]);
-					valueString = "null";
-					if (value != null) {
-						valueString = "'"+value+"'";
-					}
-					bw.write(String.format("Key: '%s'; value = %s removed\n", tokens[1], valueString));
-					break;	
-				case "check":
-					String checkMessage = map.check();
-					if (checkMessage == null) {
-						bw.write("check: Tree is sound");
-						bw.newLine();
-					} else {
-						bw.write("check: Tree is corrupt!!!!!!!!! ");
-						bw.write(checkMessage);
-						bw.newLine();
-					}
-					break;
-				case "dump":
-					bw.write(map.toString());
-					bw.newLine();
-					break;
-				case "size":
-					bw.write(String.valueOf(map.size()));
-					bw.newLine();
-					break;
-				case "height":
-					bw.write(String.format("Height: %d\n", map.height()));
-					break;
-				case "startintv":
-					intervalStart = System.nanoTime();
-					break;
-				case "endintv":
-					bw.write(String.format("Finished t=%.7f\n",
-						(System.nanoTime()-intervalStart)/1000000000.0));
-					break;
-				}
-				if (!bufferedLog) {
-					bw.flush();
+			if (pipelined) {
+				new CommandPipeline(reader, map, out, batchSize, PIPELINE_BATCHES, !bufferedLog).run();
+			} else {
+				CommandBatch batch = new CommandBatch(batchSize);
+				long intervalStart = 0;
+				boolean more = true;
+				while (more) {
+					more = batch.fill(reader);
+					intervalStart = batch.execute(map, intervalStart);
+					batch.write(out, !bufferedLog);
 				}
 			}
-
 		} catch (IOException ioe) {
 			ioe.printStackTrace();
 			System.exit(3);
 		} finally {
-			try { br.close(); } catch (Exception e) {}
-			try { bw.flush(); } catch (Exception e) {}
+			try { input.close(); } catch (Exception e) {}
+			try { out.flush(); } catch (Exception e) {}
 		}
 		
 	}
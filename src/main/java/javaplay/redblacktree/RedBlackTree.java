@@ -1,517 +1,812 @@
 package javaplay.redblacktree;
 
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.AbstractMap;
+import java.util.ArrayList;
 import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Spliterator;
+import java.util.function.Supplier;
+import java.util.function.ToIntFunction;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
 
-import javaplay.redblacktree.Node.Color;
-import javaplay.redblacktree.Node.Dir;
 import javaplay.symboltable.SymbolTable;
 
-public class RedBlackTree implements SymbolTable {
-	private static class FindResult {
-		public Node target;
-		public Node parent;
-		
-		public FindResult(Node target, Node parent) {
-			super();
-			this.target = target;
-			this.parent = parent;
-		}
-	}
+public class RedBlackTree extends AbstractRedBlackTree<Node> implements SymbolTable {
+	// the nil sentinel of every RedBlackTree. Sharing it lets split, join and the set
+	// operations move subtrees between trees without touching their leaves. It is set up
+	// once here and only read after that: the tree code never writes to nil
+	private static final Node NIL = sentinel(new Node(null, null, null, null, null));
+
+	// optional cache of hot keys for get; null when there is none
+	private LookupCache lookupCache = null;
 	
-	private static class WalkStats {
-		public int maxDepth;
-		public int nodeCount;
+	public RedBlackTree() {
+		super(NIL);
 	}
 	
-	private Node nil = new Node(null, null, null, null, null);
-	{
-		nil.setColor(Node.Color.BLACK);
-		nil.setLeft(nil);
-		nil.setRight(nil);
+	public void setLookupCache(LookupCache lookupCache) {
+		// put a cache in front of get, or take it away with null. A cache serves one tree
+		// at a time, and starts out empty
+		if (lookupCache != null) {
+			lookupCache.clear();
+		}
+		this.lookupCache = lookupCache;
 	}
 	
-	private Node root = nil;
+	public LookupCache getLookupCache() {
+		return lookupCache;
+	}
 	
-	private static class BadTreeException extends Exception {
-		public BadTreeException(String message) {
-			super(message);
+	protected void uncache(String key) {
+		// key's node is leaving the tree (or about to hold another key)
+		if (lookupCache != null) {
+			lookupCache.invalidate(key);
 		}
 	}
 	
-	private FindResult find(String key, Node node) {
-		Node parent = nil;
-		while (node != nil && !node.getKey().equals(key)) {
-			parent = node;
-			if (key.compareTo(node.getKey()) < 0) {
+	private Node find(String key, Node node) {
+		// plain descent; returns nil if the key is not in the tree
+		while (node != nil) {
+			int cmp = key.compareTo(node.getKey());
+			if (cmp < 0) {
 				node = node.getLeft();
-			} else {
+			} else if (cmp > 0) {
 				node = node.getRight();
+			} else {
+				break;
 			}
 		}
-		return new FindResult(node, parent);
+		return node;
 	}
 
 	@Override
 	public String get(String key) {
-		FindResult result = find(key, root);
-		if (result.target == nil) {
+		Node node;
+		if (lookupCache == null) {
+			node = find(key, root);
+		} else {
+			node = lookupCache.lookup(key);
+			if (node == null) {
+				node = find(key, root);
+				if (node != nil) {
+					lookupCache.admit(node);
+				}
+			}
+		}
+		if (node == nil) {
 			return null;
 		}
-		return result.target.getValue();
+		return node.getValue();
 	}
-	
-	private void fixRedBlackOnInsert(Node newNode) {
-		Node node = newNode.getParent();
-
-		// loop while there is a red violation
-		while (node.getColor().equals(Color.RED)) {
-			Node.Dir dir = Dir.RIGHT;
-			if (node == node.getParent().getLeft()) {
-				dir = Dir.LEFT;
-			}
-			Node sibling = node.getParent().getChild(dir.opp());
-			if (sibling.getColor().equals(Color.RED)) {
-				// case #1: node is red and node's sibling is red
-				node.setColor(Color.BLACK);
-				sibling.setColor(Color.BLACK);
-				node.getParent().setColor(Color.RED);
-				// pretend the newly red node is the new node, move up the tree, and check again
-				newNode = node.getParent(); 
-				node = node.getParent().getParent();
-			} else if (newNode == node.getChild(dir)) {
-				// case #2. New node has same left/right relationship with node as node has
-				// with its own parent
-				node.getParent().setColor(Color.RED);
-				node.setColor(Color.BLACK);
-				rotate(node.getParent(), dir.opp());
-				break; // all good, we're done
-			} else {
-				// case # 3. New node has a different left/right relationship with node than node's
-				// relationship with its own parent
-				node.setColor(Color.RED);
-				newNode.setColor(Color.BLACK);
-				rotate(node, dir);
-				node = newNode.getParent();
-				node.setColor(Color.RED);
-				rotate(node, dir.opp());
-				break; // all good, we're done
+
+	@Override
+	public SymbolTable put(String key, String value) {
+		// descend to either the existing node or the parent of the new node, remembering
+		// which side of the parent the new node belongs on so we don't compare twice
+		Node parent = nil;
+		Node node = root;
+		int cmp = 0;
+		while (node != nil) {
+			cmp = key.compareTo(node.getKey());
+			if (cmp == 0) {
+				node.setValue(value);
+				return this;
 			}
+			parent = node;
+			node = cmp < 0 ? node.getLeft() : node.getRight();
 		}
-		
-		root.setColor(Color.BLACK);
+		insertNode(parent, cmp, new Node(parent, nil, nil, key, value));
+		return this;
 	}
 
-	
-	private void fixRedBlackOnDelete(Node subtreeRoot, Node.Dir dir) {
-		// case 1: The replacement node is red. Just change it to black restore black height
-		// and get out.
-		Node replacementNode = subtreeRoot.getChild(dir);
-		
-		if (replacementNode.getColor() == Color.RED) {
-			replacementNode.setColor(Color.BLACK);
-			return;
+	@Override
+	public String remove(String key) {
+		Node node = find(key, root);
+		if (node == nil) {
+			return null;
 		}
 		
-		// OK, not so easy. Our replacement node is black, which means we can't
-		// fix the black height problem simply by re-coloring a red replacement node
-		while (subtreeRoot != nil) {
-			// sibling var points to the sibling of the replacement node (that is, sibling var points to
-			// the sibling of the now removed node).
-			Node sibling = subtreeRoot.getChild(dir.opp());
-			
-			if (sibling.getColor() == Color.RED) {
-				// case 2: node has a red sibling. Convert to a black sibling case.
-				// this case takes advantage of the fact that the sibling's parent (the subtree
-				// root) and the sibling's children must be black (because you can't have two adjacent
-				// red nodes).
-				// This pushes the replacement node (and our subtree root) down one level				
-				rotate(subtreeRoot, dir);
-				
-				subtreeRoot.setColor(Color.RED);
-				subtreeRoot.getParent().setColor(Color.BLACK);
-
-				// try again with a black sibling case.
-				continue;
-			} else {
-				if (sibling.getLeft().getColor() == Color.BLACK &&
-						sibling.getRight().getColor() == Color.BLACK) {
-					// case 3: black sibling case and sibling's children are also black.
-					// we can simply change the sibling from black to red to restore
-					// black height balance (but not necessarily have the correct black height)
-					// on this subtree.
-					sibling.setColor(Color.RED);
-					
-					if (subtreeRoot.getColor() == Color.RED) {
-						// case 3a: The subtree's root is red. We can restore this subtree's
-						// black height by changing the subtree's root to black
-						subtreeRoot.setColor(Color.BLACK);
-						// we're done fixing the tree
-						break;
-					}
-					// case 3b: the subtree root is black, which means this subtree's black height
-					// is not in line with its sibling's black height. Therefore. we must go up one level
-					// and continue correcting.
-					dir = Node.Dir.LEFT;
-					if (subtreeRoot == subtreeRoot.getParent().getRight()) {
-						dir = Node.Dir.RIGHT;
-					}
-					subtreeRoot = subtreeRoot.getParent();
-					continue;
-				} else {
-					if (sibling.getChild(dir.opp()).getColor() == Color.RED) {
-						// case 4: black sibling with red outer child
-						// pull up the outer child on one side, push down the replacement node
-						// on the other side
-						rotate(subtreeRoot, dir);
-						
-						// new subtree root is old subtree root's new parent
-						Node oldSubtreeRoot = subtreeRoot;
-						subtreeRoot = oldSubtreeRoot.getParent();
-						
-						// this is not the replacement node's sibling, but the sibling of the
-						// node that now sits where the replacement node was before the rotation
-						sibling = subtreeRoot.getChild(dir.opp());
-						
-						// the subtree's new root should have the same color as the
-						// subtree's old root
-						subtreeRoot.setColor(oldSubtreeRoot.getColor());
-						
-						// the siblings should be black
-						sibling.setColor(Color.BLACK);
-						oldSubtreeRoot.setColor(Color.BLACK);
-						
-						// the tree is now fixed
-						break;
-					} else {
-						// case 5: black sibling with black outer child and red inner child.
-						// basically, we just want to get an extra node on the
-						// dir-side of the subtree so that we have something to color black
-						// to restore the black height. So, in a sense, we're stealing a red node
-						// from the dir.opp()-side so we can get this extra node on the dir-side.
-						// first, move the inner child into the spot that holds the sibling.
-						// this pushes down the sibling to the opposite side from the inner child's
-						// current location
-						rotate(sibling, dir.opp());
-						
-						// now pull up the former inner child into the root of the subtree
-						// and push the current root into the location that currently holds the
-						// replacement node
-						rotate(subtreeRoot, dir);
-						
-						Node oldSubtreeRoot = subtreeRoot;
-						subtreeRoot = oldSubtreeRoot.getParent();
-						subtreeRoot.setColor(oldSubtreeRoot.getColor());
-						oldSubtreeRoot.setColor(Color.BLACK);
-						
-						// tree is fixed
-						break;
-					}
-				}
-			}
+		String originalValue = node.getValue();
+		removeNode(node);
+		return originalValue;
+	}
+
+	@Override
+	public String successor(String key) {
+		Node node = find(key, root);
+		if (node == nil) {
+			return null;
 		}
-		
-		// there seems to be some concern that the root will go red. Ensure that doesn't happen
-		// we can do this whether root is nil or not, since the nil sentinel is already black.
-		this.root.setColor(Color.BLACK);
+		Node successor = successorNode(node);
+		if (successor == nil) {
+			return null;
+		}
+		return successor.getKey();
 	}
 
 	@Override
-	public SymbolTable put(String key, String value) {
-		FindResult result = find(key, root);
-		if (result.target != nil) {
-			result.target.setValue(value);
-			return this;
+	public String predecessor(String key) {
+		Node node = find(key, root);
+		if (node == nil) {
+			return null;
 		}
-		Node newNode = new Node(result.parent, nil, nil, key, value);
-		if (result.parent == nil) {
-			root = newNode;
-		} else {
-			if (key.compareTo(result.parent.getKey()) < 0) {
-				result.parent.setLeft(newNode);
-			} else {
-				result.parent.setRight(newNode);
-			}
+		Node predecessor = predecessorNode(node);
+		if (predecessor == nil) {
+			return null;
 		}
-		fixRedBlackOnInsert(newNode);
-		return this;
+		return predecessor.getKey();
 	}
 	
-	private Node minimum(Node node) {
-		Node targetNode = node;
-		while (targetNode.getLeft() != nil) {
-			targetNode = targetNode.getLeft();
+	public int rank(String key) {
+		// number of keys strictly less than key. key need not be in the tree
+		int rank = 0;
+		Node node = root;
+		while (node != nil) {
+			int cmp = key.compareTo(node.getKey());
+			if (cmp < 0) {
+				node = node.getLeft();
+			} else if (cmp > 0) {
+				rank += node.getLeft().getCount() + 1;
+				node = node.getRight();
+			} else {
+				rank += node.getLeft().getCount();
+				break;
+			}
 		}
-		return targetNode;
+		return rank;
 	}
 	
-	private Node maximum(Node node) {
-		Node targetNode = node;
-		while (targetNode.getRight() != nil) {
-			targetNode = targetNode.getRight();
+	public String select(int index) {
+		// returns the key with the given zero-based rank, or null if index is out of range
+		Node node = selectNode(index);
+		if (node == nil) {
+			return null;
 		}
-		return targetNode;
+		return node.getKey();
 	}
 	
-	private Node successorNode(Node node) {
-		if (node.getRight() != nil) {
-			return minimum(node.getRight());
+	public int count(String lo, String hi) {
+		// number of keys k such that lo <= k <= hi
+		if (lo.compareTo(hi) > 0) {
+			return 0;
 		}
-		// find the first ancestor that has theNode somewhere in its left subtree.
-		// we will return nil if no such ancestor exists
-		Node parent = node.getParent();
-		while (parent != nil && node == parent.getRight()) {
-			node = parent;
-			parent = node.getParent();
+		int count = rank(hi) - rank(lo);
+		if (find(hi, root) != nil) {
+			count++;
 		}
-		return parent;
+		return count;
 	}
 	
-	private Node predecessorNode(Node node) {
-		if (node.getLeft() != nil) {
-			return maximum(node.getLeft());
-		}
-		// find the first ancestor that has theNode somewhere in its right subtree.
-		// we will return nil if no such ancestor exists
-		Node parent = node.getParent();
-		while (parent != nil && node == parent.getLeft()) {
-			node = parent;
-			parent = node.getParent();
+	private Node ceilingNode(String key, boolean inclusive) {
+		// the node with the least key >= key (> key if not inclusive), or nil
+		Node node = root;
+		Node candidate = nil;
+		while (node != nil) {
+			int cmp = key.compareTo(node.getKey());
+			if (cmp < 0 || (cmp == 0 && inclusive)) {
+				candidate = node;
+				if (cmp == 0) {
+					break;
+				}
+				node = node.getLeft();
+			} else {
+				node = node.getRight();
+			}
 		}
-		return parent;
+		return candidate;
 	}
 	
-	private void maxDepthWalk(Node node, int currentDepth, WalkStats stats) {
-		if (node == nil) {
-			return;
-		}
-		currentDepth++;
-		if (currentDepth > stats.maxDepth) {
-			stats.maxDepth = currentDepth;
+	private Node floorNode(String key, boolean inclusive) {
+		// the node with the greatest key <= key (< key if not inclusive), or nil
+		Node node = root;
+		Node candidate = nil;
+		while (node != nil) {
+			int cmp = key.compareTo(node.getKey());
+			if (cmp > 0 || (cmp == 0 && inclusive)) {
+				candidate = node;
+				if (cmp == 0) {
+					break;
+				}
+				node = node.getRight();
+			} else {
+				node = node.getLeft();
+			}
 		}
-		stats.nodeCount++;
-		maxDepthWalk(node.getLeft(), currentDepth, stats);
-		maxDepthWalk(node.getRight(), currentDepth, stats);
+		return candidate;
+	}
+	
+	private static Map.Entry<String, String> entry(Node node) {
+		return new AbstractMap.SimpleImmutableEntry<String, String>(node.getKey(), node.getValue());
 	}
 	
-	private void replaceNode(Node oldNode, Node newNode) {
-		if (oldNode.getParent() == nil) {
-			root = newNode;
-			if (newNode != nil) {
-				newNode.setParent(nil);
+	public Iterable<Map.Entry<String, String>> range(String lo, boolean loInclusive,
+			String hi, boolean hiInclusive, boolean descending) {
+		// entries with keys between lo and hi, in ascending or descending order. A null
+		// bound means unbounded on that side. Iterators are fail-fast and support remove()
+		return () -> {
+			if (lo != null && hi != null) {
+				int cmp = lo.compareTo(hi);
+				if (cmp > 0 || (cmp == 0 && !(loInclusive && hiInclusive))) {
+					return Collections.emptyIterator();
+				}
+			}
+			Node first;
+			Node fence;
+			if (descending) {
+				first = hi == null ? maximum(root) : floorNode(hi, hiInclusive);
+				fence = lo == null ? nil : floorNode(lo, !loInclusive);
+			} else {
+				first = lo == null ? minimum(root) : ceilingNode(lo, loInclusive);
+				fence = hi == null ? nil : ceilingNode(hi, !hiInclusive);
 			}
-			return;
+			return nodeIterator(first, fence, descending, RedBlackTree::entry);
+		};
+	}
+	
+	public Cursor cursor() {
+		return new Cursor();
+	}
+	
+	/**
+	 * Lookups and updates that start from the node the cursor last touched (its finger)
+	 * instead of the root, for access patterns that stay near the previous key: ascending
+	 * inserts, sliding windows, merges of sorted runs. Finding a key d keys away from the
+	 * finger takes O(log d) compares, and the neighbour of the last key takes one or two.
+	 * Rebalancing and the subtree counts still walk up towards the root after an insert or
+	 * removal, but only through parent pointers, without comparing keys.
+	 *
+	 * Any structural change made other than through the cursor (including by another
+	 * cursor) may unlink the finger, so the cursor then falls back to a descent from the
+	 * root for its next operation. Use one cursor per access stream.
+	 */
+	public class Cursor {
+		private Node finger = nil;
+		private int expectedModCount = modCount;
+		
+		private Node locate(String key) {
+			if (expectedModCount != modCount) {
+				finger = nil;
+			}
+			return RedBlackTree.this.locate(finger, other -> key.compareTo(other.getKey()));
 		}
 		
-		if (oldNode.getParent().getLeft() == oldNode) {
-			oldNode.getParent().setLeft(newNode);
-		} else {
-			oldNode.getParent().setRight(newNode);
+		private void moveTo(Node node) {
+			finger = node;
+			expectedModCount = modCount;
+		}
+		
+		public String get(String key) {
+			Node node = locate(key);
+			moveTo(node);
+			if (node == nil || !key.equals(node.getKey())) {
+				return null;
+			}
+			return node.getValue();
+		}
+		
+		public Cursor put(String key, String value) {
+			Node node = locate(key);
+			int cmp = node == nil ? 0 : key.compareTo(node.getKey());
+			if (node != nil && cmp == 0) {
+				node.setValue(value);
+				moveTo(node);
+				return this;
+			}
+			Node newNode = new Node(node, nil, nil, key, value);
+			insertNode(node, cmp, newNode);
+			moveTo(newNode);
+			return this;
 		}
-		if (newNode != nil) {
-			newNode.setParent(oldNode.getParent());
+		
+		public String remove(String key) {
+			Node node = locate(key);
+			if (node == nil || !key.equals(node.getKey())) {
+				moveTo(node);
+				return null;
+			}
+			String originalValue = node.getValue();
+			Node neighbour = neighbourAfterRemoval(node);
+			removeNode(node);
+			moveTo(neighbour);
+			return originalValue;
 		}
+		
+		public String key() {
+			// the key at the finger, or null if the cursor hasn't been used or the tree is empty
+			if (expectedModCount != modCount || finger == nil) {
+				return null;
+			}
+			return finger.getKey();
+		}
+	}
+	
+	public Iterable<Map.Entry<String, String>> entries() {
+		return range(null, false, null, false, false);
+	}
+	
+	public Iterable<Map.Entry<String, String>> descendingEntries() {
+		return range(null, false, null, false, true);
+	}
+	
+	public Iterable<Map.Entry<String, String>> range(String lo, String hi) {
+		// keys k such that lo <= k < hi
+		return range(lo, true, hi, false, false);
+	}
+	
+	public Iterable<Map.Entry<String, String>> headMap(String hi) {
+		// keys k such that k < hi
+		return range(null, false, hi, false, false);
+	}
+	
+	public Iterable<Map.Entry<String, String>> tailMap(String lo) {
+		// keys k such that k >= lo
+		return range(lo, true, null, false, false);
+	}
+	
+	public Spliterator<Map.Entry<String, String>> spliterator() {
+		// sized, ordered spliterator over all entries that splits into balanced halves
+		return nodeSpliterator(RedBlackTree::entry, Map.Entry.comparingByKey());
 	}
 	
-	private void removeNode(Node node) {
-		Node removedNode = node;
-		Node.Dir dir = Node.Dir.LEFT;
-		if (node.getParent().getRight() == node) {
-			dir = Node.Dir.RIGHT;
+	public Stream<Map.Entry<String, String>> stream() {
+		return StreamSupport.stream(spliterator(), false);
+	}
+	
+	public Stream<Map.Entry<String, String>> parallelStream() {
+		// the tree must not be modified while the stream runs
+		return StreamSupport.stream(spliterator(), true);
+	}
+	
+	public static RedBlackTree fromSorted(Iterator<Map.Entry<String, String>> entries, int size) {
+		// build a tree from exactly size entries in strictly ascending key order, in O(n)
+		RedBlackTree tree = new RedBlackTree();
+		tree.buildFromSorted(size, tree.sortedNodes(entries));
+		if (entries.hasNext()) {
+			throw new IllegalArgumentException("More entries than the specified size");
+		}
+		return tree;
+	}
+	
+	public static RedBlackTree fromSorted(Iterator<Map.Entry<String, String>> entries) {
+		// as above, but for when the caller doesn't know the entry count up front. The entries
+		// are buffered so we can count them first
+		List<String> keys = new ArrayList<String>();
+		List<String> values = new ArrayList<String>();
+		while (entries.hasNext()) {
+			Map.Entry<String, String> entry = entries.next();
+			keys.add(entry.getKey());
+			values.add(entry.getValue());
+		}
+		RedBlackTree tree = new RedBlackTree();
+		tree.buildFromSorted(keys.size(), tree.sortedNodes(keys, values));
+		return tree;
+	}
+	
+	public void putAllSorted(Iterator<Map.Entry<String, String>> entries) {
+		// merge entries (strictly ascending by key) into the tree, with incoming values
+		// replacing existing ones. The merged sequence is rebuilt bottom-up, so this costs
+		// O(n + m) rather than O(m log(n + m)) with m fixups
+		List<String> keys = new ArrayList<String>(size());
+		List<String> values = new ArrayList<String>(size());
+		Node node = isEmpty() ? nil : minimum(root);
+		Map.Entry<String, String> entry = entries.hasNext() ? entries.next() : null;
+		while (node != nil || entry != null) {
+			int cmp;
+			if (node == nil) {
+				cmp = 1;
+			} else if (entry == null) {
+				cmp = -1;
+			} else {
+				cmp = node.getKey().compareTo(entry.getKey());
+			}
+			if (cmp < 0) {
+				keys.add(node.getKey());
+				values.add(node.getValue());
+				node = successorNode(node);
+			} else {
+				if (!keys.isEmpty() && keys.get(keys.size() - 1).compareTo(entry.getKey()) >= 0) {
+					throw new IllegalArgumentException("Entries not in strictly ascending key order at key " +
+							entry.getKey());
+				}
+				keys.add(entry.getKey());
+				values.add(entry.getValue());
+				if (cmp == 0) {
+					node = successorNode(node);
+				}
+				entry = entries.hasNext() ? entries.next() : null;
+			}
 		}
-		
-		while (node != nil) {
-			if (node.getLeft() == nil && node.getRight() == nil) {
-				// case 1: the target node has no children. Just delink the node from its parent
-				replaceNode(node, nil);
-				if (node.getParent() == nil) {
-					// we've just removed the last node. Set root to nil
-					root = nil;
-					// stop call to fixRedBlackOnDelete
-					removedNode.setColor(Color.RED);
+		buildFromSorted(keys.size(), sortedNodes(keys, values));
+	}
+
+	public int putAll(String[] keys, String[] values, String[] previous) {
+		// put keys[i] -> values[i] for every i, with the same outcome as putting them one at a
+		// time in array order. If previous isn't null, previous[i] receives the value keys[i]
+		// had just before its put (null if it was absent). Returns the number of keys added.
+		// The batch is applied in key order (sorted first unless it already is): a batch
+		// that's small next to the tree is inserted with finger searches from the previous
+		// key, O(m log(n/m + 1)) compares; a larger one is merged with the tree and rebuilt
+		// in O(n + m), reusing the existing nodes
+		checkBatch(keys, values, previous);
+		int[] order = sortedOrder(keys);
+		int m = keys.length;
+		int added = 0;
+		if ((long)m * MERGE_RATIO < size()) {
+			BatchComparator comparator = new BatchComparator();
+			Node finger = nil;
+			for (int k = 0; k < m; k++) {
+				int i = order == null ? k : order[k];
+				comparator.key = keys[i];
+				Node node = locate(finger, comparator);
+				int cmp = node == nil ? 0 : keys[i].compareTo(node.getKey());
+				if (node != nil && cmp == 0) {
+					setPrevious(previous, i, node.getValue());
+					node.setValue(values[i]);
+					finger = node;
+				} else {
+					setPrevious(previous, i, null);
+					finger = new Node(node, nil, nil, keys[i], values[i]);
+					insertNode(node, cmp, finger);
+					added++;
 				}
-				break;
-			} else if (node.getLeft() == nil && node.getRight() != nil) {
-				// case 2: the target node has a right child only
-				replaceNode(node, node.getRight());
-				break;
-			} else if (node.getLeft() != nil && node.getRight() == nil) {
-				// case 3: the target node has a left child only
-				replaceNode(node, node.getLeft());
-				break;
+			}
+			return added;
+		}
+
+		Node[] merged = new Node[size() + m];
+		int count = 0;
+		Node node = isEmpty() ? nil : minimum(root);
+		for (int k = 0; k < m; k++) {
+			int i = order == null ? k : order[k];
+			String key = keys[i];
+			int cmp = -1;
+			while (node != nil && (cmp = node.getKey().compareTo(key)) < 0) {
+				merged[count++] = node;
+				node = successorNode(node);
+			}
+			if (count > 0 && merged[count - 1].getKey().equals(key)) {
+				// the same key earlier in the batch
+				setPrevious(previous, i, merged[count - 1].getValue());
+				merged[count - 1].setValue(values[i]);
+			} else if (node != nil && cmp == 0) {
+				setPrevious(previous, i, node.getValue());
+				node.setValue(values[i]);
+				merged[count++] = node;
+				node = successorNode(node);
 			} else {
-				// since the target node has two children, replace the target node's data
-				// with that of its successor, and then make the successor the new target
-				// node we want to remove. The successor now becomes subject to cases 1 and 2
-				// above, but not case 3, as the successor cannot have a left child
-				// Also, there must be a non-nil successor, or we would have hit case 1 or 3
-				// above already.
-				Node successor = minimum(node.getRight());
-				dir = Node.Dir.LEFT;
-				if (successor.getParent().getRight() == successor) {
-					dir = Node.Dir.RIGHT;
+				setPrevious(previous, i, null);
+				merged[count++] = new Node(nil, nil, nil, key, values[i]);
+				added++;
+			}
+		}
+		for (; node != nil; node = successorNode(node)) {
+			merged[count++] = node;
+		}
+		rebuild(merged, count);
+		return added;
+	}
+
+	public int removeAll(String[] keys, String[] removed) {
+		// remove every key in keys, as if one at a time in array order. If removed isn't
+		// null, removed[i] receives the value removing keys[i] returned (null if it was
+		// absent, or an earlier duplicate took it). Returns the number of keys removed.
+		// Small batches use finger searches and large ones a rebuild, as in putAll
+		checkBatch(keys, null, removed);
+		int[] order = sortedOrder(keys);
+		int m = keys.length;
+		int count = 0;
+		if ((long)m * MERGE_RATIO < size()) {
+			BatchComparator comparator = new BatchComparator();
+			Node finger = nil;
+			for (int k = 0; k < m; k++) {
+				int i = order == null ? k : order[k];
+				comparator.key = keys[i];
+				Node node = locate(finger, comparator);
+				if (node == nil || !keys[i].equals(node.getKey())) {
+					setPrevious(removed, i, null);
+					finger = node;
+					continue;
 				}
-				node.setKey(successor.getKey());
-				node.setValue(successor.getValue());
-				node = successor;
-				removedNode = node;
+				setPrevious(removed, i, node.getValue());
+				finger = neighbourAfterRemoval(node);
+				removeNode(node);
+				count++;
 			}
+			return count;
 		}
-		
-		if (removedNode.getColor() == Color.BLACK) {
-			// there's only trouble if we've removed a black node
-			fixRedBlackOnDelete(removedNode.getParent(), dir);
+
+		Node[] survivors = new Node[size()];
+		int survivorCount = 0;
+		Node node = isEmpty() ? nil : minimum(root);
+		for (int k = 0; k < m; k++) {
+			int i = order == null ? k : order[k];
+			int cmp = -1;
+			while (node != nil && (cmp = node.getKey().compareTo(keys[i])) < 0) {
+				survivors[survivorCount++] = node;
+				node = successorNode(node);
+			}
+			if (node != nil && cmp == 0) {
+				setPrevious(removed, i, node.getValue());
+				node = successorNode(node);
+				count++;
+			} else {
+				setPrevious(removed, i, null);
+			}
+		}
+		for (; node != nil; node = successorNode(node)) {
+			survivors[survivorCount++] = node;
 		}
+		rebuild(survivors, survivorCount);
+		return count;
 	}
 
-	@Override
-	public String remove(String key) {
-		FindResult result = find(key, root);
-		if (result.target == nil) {
-			return null;
+	// batches at least 1/MERGE_RATIO the size of the tree are merged and rebuilt rather than
+	// applied a key at a time
+	private static final int MERGE_RATIO = 8;
+
+	// the key being searched for by locate, reused across a batch
+	private static class BatchComparator implements ToIntFunction<Node> {
+		private String key;
+
+		@Override
+		public int applyAsInt(Node node) {
+			return key.compareTo(node.getKey());
 		}
-		
-		String originalValue = result.target.getValue();
-		removeNode(result.target);
-		return originalValue;
 	}
 
-	@Override
-	public String successor(String key) {
-		FindResult result = find(key, root);
-		if (result.target == nil) {
-			return null;
+	private static void checkBatch(String[] keys, String[] values, String[] results) {
+		// reject a bad batch before any of it is applied
+		for (String key : keys) {
+			Objects.requireNonNull(key);
 		}
-		Node successor = successorNode(result.target);
-		if (successor == nil) {
-			return null;
+		if (values != null && values.length != keys.length) {
+			throw new IllegalArgumentException("Got " + values.length + " values for " + keys.length + " keys");
+		}
+		if (results != null && results.length < keys.length) {
+			throw new IllegalArgumentException("Result array too short: " + results.length + " for " +
+					keys.length + " keys");
 		}
-		return successor.getKey();
 	}
 
-	@Override
-	public String predecessor(String key) {
-		FindResult result = find(key, root);
-		if (result.target == nil) {
-			return null;
+	private static void setPrevious(String[] results, int i, String value) {
+		if (results != null) {
+			results[i] = value;
 		}
-		Node predecessor = predecessorNode(result.target);
-		if (predecessor == nil) {
+	}
+
+	private static int[] sortedOrder(String[] keys) {
+		// indexes of keys in ascending key order, equal keys in array order, or null if keys
+		// are in that order already. A bottom-up merge sort, since it has to be stable
+		int m = keys.length;
+		int i = 1;
+		while (i < m && keys[i - 1].compareTo(keys[i]) <= 0) {
+			i++;
+		}
+		if (i >= m) {
 			return null;
 		}
-		return predecessor.getKey();
-	}
-	
-	private void stringify(Node node, int currDepth, int offset, String[] lines) {
-		if (node == nil) {
-			return;
+		int[] source = new int[m];
+		int[] target = new int[m];
+		for (i = 0; i < m; i++) {
+			source[i] = i;
+		}
+		for (int width = 1; width < m; width *= 2) {
+			for (int lo = 0; lo < m; lo += 2 * width) {
+				int mid = Math.min(lo + width, m);
+				int hi = Math.min(lo + 2 * width, m);
+				int left = lo;
+				int right = mid;
+				int k = lo;
+				while (left < mid && right < hi) {
+					target[k++] = keys[source[right]].compareTo(keys[source[left]]) < 0 ? source[right++] : source[left++];
+				}
+				while (left < mid) {
+					target[k++] = source[left++];
+				}
+				while (right < hi) {
+					target[k++] = source[right++];
+				}
+			}
+			int[] swap = source;
+			source = target;
+			target = swap;
 		}
-		int linesIndex = currDepth;
-		int segmentSize = (int) ((120.0/(Math.pow(2, ((double)currDepth))+1)) + 0.5);
-		if (segmentSize < 4) {
-			return;
+		return source;
+	}
+
+	private void rebuild(Node[] nodes, int count) {
+		// relink the first count of nodes, which are in strictly ascending key order, as a
+		// balanced tree
+		buildFromSorted(count, new Supplier<Node>() {
+			private int next = 0;
+
+			@Override
+			public Node get() {
+				return nodes[next++];
+			}
+		});
+	}
+
+	// Splitting and joining move nodes, not entries, from one tree to another; see the
+	// join-based operations in AbstractRedBlackTree. The trees taking part have their
+	// lookup caches cleared, as cached nodes may have left them.
+
+	private void clearCache() {
+		if (lookupCache != null) {
+			lookupCache.clear();
 		}
-		int location = segmentSize*offset;
-		if (lines[linesIndex].length() < location) {
-			lines[linesIndex] += String.join("", Collections.nCopies(location - lines[linesIndex].length(), " "));
+	}
+
+	public RedBlackTree split(String key) {
+		// move the entries with keys >= key into a new tree and return it; this tree keeps the
+		// rest. O(log n)
+		Objects.requireNonNull(key);
+		RedBlackTree upper = new RedBlackTree();
+		splitInto(other -> key.compareTo(other.getKey()), upper);
+		clearCache();
+		return upper;
+	}
+
+	public static RedBlackTree join(RedBlackTree left, String key, String value, RedBlackTree right) {
+		// a tree of left's entries, then key -> value, then right's entries, in ascending key
+		// order (IllegalArgumentException otherwise). left and right are left empty.
+		// O(log n), or better when the two are of similar size
+		Objects.requireNonNull(key);
+		return join(left, new Node(NIL, NIL, NIL, key, value), right);
+	}
+
+	public static RedBlackTree join(RedBlackTree left, RedBlackTree right) {
+		// as above, with no entry between the two
+		return join(left, NIL, right);
+	}
+
+	private static RedBlackTree join(RedBlackTree left, Node middle, RedBlackTree right) {
+		// joinWith checks the key order before moving anything, so left and right are
+		// untouched if it throws. Moving the result into an empty tree can't fail
+		left.joinWith(middle, right);
+		RedBlackTree tree = new RedBlackTree();
+		tree.joinWith(NIL, left);
+		left.clearCache();
+		right.clearCache();
+		return tree;
+	}
+
+	public void union(RedBlackTree other) {
+		// add all of other's entries to this tree, with other's values replacing this tree's
+		// for keys in both. other is left empty. O(m log(n/m + 1)) for the smaller size m and
+		// the larger n; big trees are combined in parallel on the common fork-join pool
+		unionWith(other);
+		clearCache();
+		other.clearCache();
+	}
+
+	public void intersection(RedBlackTree other) {
+		// keep only the entries whose keys are also in other, with this tree's values. other
+		// is left empty. Same costs as union
+		intersectWith(other);
+		clearCache();
+		other.clearCache();
+	}
+
+	public void difference(RedBlackTree other) {
+		// remove the entries whose keys are in other. other is left empty. Same costs as union
+		subtract(other);
+		clearCache();
+		other.clearCache();
+	}
+
+	public void save(File file) throws IOException {
+		// write the tree to file as a binary snapshot (see TreeSnapshot), replacing the file
+		// atomically
+		TreeSnapshot.write(file, size(), entries().iterator());
+	}
+
+	public void load(File file) throws IOException {
+		// replace the contents of the tree with a snapshot written by save(). The snapshot is
+		// sorted, so this is a linear-time bottom-up build. If the file turns out to be
+		// corrupt the tree is left as it was
+		try (TreeSnapshot.Reader reader = TreeSnapshot.open(file)) {
+			buildFromSorted(reader.count(), new Supplier<Node>() {
+				private String previousKey = null;
+
+				@Override
+				public Node get() {
+					try {
+						reader.next();
+					} catch (IOException ioe) {
+						throw new UncheckedIOException(ioe);
+					}
+					String key = reader.key();
+					if (previousKey != null && previousKey.compareTo(key) >= 0) {
+						throw new UncheckedIOException(TreeSnapshot.Reader.corrupt("entries not in ascending key order at key " + key));
+					}
+					previousKey = key;
+					return new Node(nil, nil, nil, key, reader.value());
+				}
+			});
+		} catch (UncheckedIOException uioe) {
+			throw uioe.getCause();
 		}
-		lines[linesIndex] += String.format("%2s%s", node.getKey(), node.getColor() == Color.RED ? "r" : "b");
-		stringify(node.getLeft(), currDepth+1, (offset*2)-1, lines);
-		stringify(node.getRight(), currDepth+1, offset*2, lines);
+	}
+
+	private Supplier<Node> sortedNodes(Iterator<Map.Entry<String, String>> entries) {
+		return new Supplier<Node>() {
+			private String previousKey = null;
+			
+			@Override
+			public Node get() {
+				if (!entries.hasNext()) {
+					throw new IllegalArgumentException("Fewer entries than the specified size");
+				}
+				Map.Entry<String, String> entry = entries.next();
+				String key = entry.getKey();
+				if (previousKey != null && previousKey.compareTo(key) >= 0) {
+					throw new IllegalArgumentException("Entries not in strictly ascending key order at key " + key);
+				}
+				previousKey = key;
+				return new Node(nil, nil, nil, key, entry.getValue());
+			}
+		};
 	}
 	
-	public String toString() {
-		if (root == nil) {
-			return "";
-		}
-		WalkStats stats = new WalkStats();
-		maxDepthWalk(root, 0, stats);
-		String[] lines = new String[stats.maxDepth];
-		for (int i = 0; i < lines.length; i++) {
-			lines[i] = "";
-		}
-		stringify(root, 0, 1, lines);
-		return String.join("\n\n", lines);
+	private Supplier<Node> sortedNodes(List<String> keys, List<String> values) {
+		Iterator<String> keyIterator = keys.iterator();
+		Iterator<String> valueIterator = values.iterator();
+		return new Supplier<Node>() {
+			private String previousKey = null;
+			
+			@Override
+			public Node get() {
+				String key = keyIterator.next();
+				if (previousKey != null && previousKey.compareTo(key) >= 0) {
+					throw new IllegalArgumentException("Entries not in strictly ascending key order at key " + key);
+				}
+				previousKey = key;
+				return new Node(nil, nil, nil, key, valueIterator.next());
+			}
+		};
 	}
 	
-	public int size() {
-		if (root == nil) {
-			return 0;
-		}
-		WalkStats stats = new WalkStats();
-		maxDepthWalk(root, 0, stats);	
-		return stats.nodeCount;
+	@Override
+	protected void removeNode(Node node) {
+		uncache(node.getKey());
+		super.removeNode(node);
 	}
 	
-	public int height() {
-		if (root == nil) {
-			return 0;
+	@Override
+	protected void buildFromSorted(int size, Supplier<Node> nodes) {
+		// every node is replaced (or, if the build fails, nothing is; dropping the cache is
+		// harmless either way)
+		if (lookupCache != null) {
+			lookupCache.clear();
 		}
-		WalkStats stats = new WalkStats();
-		maxDepthWalk(root, 0, stats);	
-		return stats.maxDepth;
+		super.buildFromSorted(size, nodes);
 	}
 	
-	private int good(Node node, Node parent) throws BadTreeException {
-		if (node == nil) {
-			return 1;
-		}
-		if (node.getParent() != parent) {
-			throw new BadTreeException("Corrupted BST at node with key " + node.getKey() + "; Unexpected parent");
-		}
-		if (parent != nil) {
-			if (node == parent.getLeft()) {
-				if (node.getKey().compareTo(parent.getKey()) >= 0) {
-					throw new BadTreeException("Corrupted BST at node with key " + node.getKey() + "; Unexpected key");
-				} 
-			} else if (node.getKey().compareTo(parent.getKey()) <= 0) {
-				throw new BadTreeException("Corrupted BST at node with key " + node.getKey() + "; Unexpected key");
-			}
-		}
-		
-		if (node.getColor() == Color.RED) {
-			if (node.getLeft().getColor() == Color.RED) {
-				throw new BadTreeException("Corrupted RBT at node with key " +
-						node.getKey() + "; Left child unexpectedly red");
-			}
-			if (node.getRight().getColor() == Color.RED) {
-				throw new BadTreeException("Corrupted RBT at node with key " +
-						node.getKey() + "; Right child unexpectedly red");
-			}
-		}
-		int leftCount = good(node.getLeft(), node);
-		int rightCount = good(node.getRight(), node);
-		
-		if (leftCount != rightCount) {
-			throw new BadTreeException(String.format("Path at node with key %s" +
-					" contains unexpected number of black nodes: %d vs. %d", node.getKey(), leftCount, rightCount));
-		}
-		
-		// count black nodes in this subtree (including this subtree's root)
-		return leftCount + (node.getColor() == Color.BLACK ? 1: 0);
+	@Override
+	protected void copyEntry(Node target, Node source) {
+		// removeNode moving the successor's entry into target, before unlinking source. Cached
+		// nodes must hold their key, so neither key may stay cached
+		uncache(target.getKey());
+		uncache(source.getKey());
+		target.setKey(source.getKey());
+		target.setValue(source.getValue());
 	}
 	
-	public String check() {
-		try {
-			good(root, nil);
-		} catch (BadTreeException bte) {
-			System.err.println(bte.getMessage());
-			return bte.getMessage();
-		}
-		return null;
+	@Override
+	protected int compareKeys(Node a, Node b) {
+		return a.getKey().compareTo(b.getKey());
 	}
 	
-	private void rotate(Node node, Node.Dir dir) {
-		// node becomes the dir child of its dir.opp() child. Also, the new parent's old
-		// dir child becomes node's new dir.opp() child
-		Node newParent = node.getChild(dir.opp());
-		node.setChild(dir.opp(), newParent.getChild(dir));
-		node.getChild(dir.opp()).setParent(node);
-		newParent.setChild(dir, node);
-		replaceNode(node, newParent);
-		node.setParent(newParent);
-			
-		if (root == node) {
-			root = newParent;
-		}
+	@Override
+	protected String keyString(Node node) {
+		return node.getKey();
 	}
 }
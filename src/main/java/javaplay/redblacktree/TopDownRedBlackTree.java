@@ -0,0 +1,43 @@
+package javaplay.redblacktree;
+
+import java.util.Objects;
+
+import javaplay.symboltable.SymbolTable;
+
+/**
+ * A RedBlackTree whose put and remove rebalance top-down: the recoloring and rotations
+ * happen on the way down, in the same pass that searches for the key, instead of in a
+ * second pass back up through the parent pointers (see insertTopDown and removeTopDown in
+ * AbstractRedBlackTree). Everything else, lookups, iteration, order statistics and
+ * check(), is RedBlackTree's, and the two produce trees that are equally valid, if not
+ * the same shape.
+ *
+ * Top-down rebalancing does more work than it strictly needs to (it splits every 4-node
+ * it passes, where bottom-up only fixes what the new node broke), in exchange for never
+ * going back up. That matters most without parent pointers, which this engine only
+ * needs for rotate() and for undoing the speculative count updates; compare the two with
+ * EngineBenchmark.
+ */
+public class TopDownRedBlackTree extends RedBlackTree {
+	@Override
+	public SymbolTable put(String key, String value) {
+		// fail before touching the tree, which the top-down pass starts changing straight away
+		Objects.requireNonNull(key);
+		Node node = insertTopDown(new Node(nil, nil, nil, key, value));
+		if (node != nil) {
+			node.setValue(value);
+		}
+		return this;
+	}
+
+	@Override
+	public String remove(String key) {
+		Objects.requireNonNull(key);
+		Node node = removeTopDown(other -> key.compareTo(other.getKey()));
+		if (node == nil) {
+			return null;
+		}
+		uncache(key);
+		return node.getValue();
+	}
+}
@@ -0,0 +1,162 @@
+package javaplay.redblacktree;
+
+import java.lang.management.ManagementFactory;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+/**
+ * Structural metrics for a tree, kept up to date by the tree itself as it changes, so
+ * reading them never walks the tree. The counters are bumped by the insert and delete
+ * fixups in AbstractRedBlackTree, and the case numbers match the comments there. The
+ * counters are plain fields updated by the (single) writer, so a reader on another
+ * thread, such as a JMX scrape, sees values that may be slightly stale.
+ *
+ * The black height is that of the root: the number of black nodes on every path from
+ * the root down to a leaf, not counting the nil sentinel. The exact height would need a
+ * walk, but a red-black tree's height is at most twice its black height, which is what
+ * getHeightBound() reports.
+ */
+public class TreeMetrics implements TreeMetricsMBean {
+	private final AbstractRedBlackTree<?> tree;
+
+	long inserts;
+	long deletes;
+	long rotations;
+	long recolorings;
+	long insertFixupIterations;
+	long deleteFixupIterations;
+	long insertCase1;
+	long insertCase2;
+	long insertCase3;
+	long deleteCase1;
+	long deleteCase2;
+	long deleteCase3a;
+	long deleteCase3b;
+	long deleteCase4;
+	long deleteCase5;
+
+	TreeMetrics(AbstractRedBlackTree<?> tree) {
+		this.tree = tree;
+	}
+
+	@Override
+	public int getSize() {
+		return tree.size();
+	}
+
+	@Override
+	public int getBlackHeight() {
+		return tree.blackHeight();
+	}
+
+	@Override
+	public int getHeightBound() {
+		return 2 * tree.blackHeight();
+	}
+
+	@Override
+	public long getInserts() {
+		return inserts;
+	}
+
+	@Override
+	public long getDeletes() {
+		return deletes;
+	}
+
+	@Override
+	public long getRotations() {
+		return rotations;
+	}
+
+	@Override
+	public long getRecolorings() {
+		return recolorings;
+	}
+
+	@Override
+	public long getInsertFixupIterations() {
+		return insertFixupIterations;
+	}
+
+	@Override
+	public long getDeleteFixupIterations() {
+		return deleteFixupIterations;
+	}
+
+	@Override
+	public long getInsertCase1() {
+		return insertCase1;
+	}
+
+	@Override
+	public long getInsertCase2() {
+		return insertCase2;
+	}
+
+	@Override
+	public long getInsertCase3() {
+		return insertCase3;
+	}
+
+	@Override
+	public long getDeleteCase1() {
+		return deleteCase1;
+	}
+
+	@Override
+	public long getDeleteCase2() {
+		return deleteCase2;
+	}
+
+	@Override
+	public long getDeleteCase3a() {
+		return deleteCase3a;
+	}
+
+	@Override
+	public long getDeleteCase3b() {
+		return deleteCase3b;
+	}
+
+	@Override
+	public long getDeleteCase4() {
+		return deleteCase4;
+	}
+
+	@Override
+	public long getDeleteCase5() {
+		return deleteCase5;
+	}
+
+	@Override
+	public void reset() {
+		// zero the counters. Size and black height describe the tree and are unaffected
+		inserts = 0;
+		deletes = 0;
+		rotations = 0;
+		recolorings = 0;
+		insertFixupIterations = 0;
+		deleteFixupIterations = 0;
+		insertCase1 = 0;
+		insertCase2 = 0;
+		insertCase3 = 0;
+		deleteCase1 = 0;
+		deleteCase2 = 0;
+		deleteCase3a = 0;
+		deleteCase3b = 0;
+		deleteCase4 = 0;
+		deleteCase5 = 0;
+	}
+
+	public ObjectName register(String name) throws JMException {
+		// register with the platform MBean server as javaplay.redblacktree:type=Tree,name=<name>.
+		// Unregister with ManagementFactory.getPlatformMBeanServer().unregisterMBean(objectName)
+		ObjectName objectName = new ObjectName("javaplay.redblacktree:type=Tree,name=" + ObjectName.quote(name));
+		MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+		server.registerMBean(this, objectName);
+		return objectName;
+	}
+}
@@ -0,0 +1,44 @@
+package javaplay.redblacktree;
+
+/**
+ * The JMX view of a tree's TreeMetrics. See TreeMetrics for what each attribute counts.
+ */
+public interface TreeMetricsMBean {
+	int getSize();
+
+	int getBlackHeight();
+
+	int getHeightBound();
+
+	long getInserts();
+
+	long getDeletes();
+
+	long getRotations();
+
+	long getRecolorings();
+
+	long getInsertFixupIterations();
+
+	long getDeleteFixupIterations();
+
+	long getInsertCase1();
+
+	long getInsertCase2();
+
+	long getInsertCase3();
+
+	long getDeleteCase1();
+
+	long getDeleteCase2();
+
+	long getDeleteCase3a();
+
+	long getDeleteCase3b();
+
+	long getDeleteCase4();
+
+	long getDeleteCase5();
+
+	void reset();
+}
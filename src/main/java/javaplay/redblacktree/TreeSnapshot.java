@@ -0,0 +1,212 @@
+package javaplay.redblacktree;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedInputStream;
+import java.util.zip.CheckedOutputStream;
+
+/**
+ * The binary snapshot format used by RedBlackTree.save and load. All integers are big-endian:
+ *
+ *   header  magic "RBTS", format version, entry count, CRC32 of the body  (16 bytes)
+ *   body    count entries in ascending key order, each a key then a value, where each
+ *           string is its UTF-8 length followed by its UTF-8 bytes. A null value has
+ *           length -1 and no bytes
+ *
+ * Because the body is sorted and the count is known up front, a loader can hand the
+ * entries straight to the linear-time bottom-up build.
+ */
+class TreeSnapshot {
+	private static final int MAGIC = 0x52425453; // "RBTS"
+	private static final int VERSION = 1;
+	private static final int HEADER_SIZE = 16;
+	private static final int BUFFER_SIZE = 1 << 16;
+
+	static void write(File file, int count, Iterator<Map.Entry<String, String>> entries) throws IOException {
+		// the snapshot is written to a temporary file alongside the target and moved into
+		// place once complete, so a crash mid-save never leaves a truncated snapshot behind.
+		// The header goes in last, once the body's checksum is known
+		Path target = file.toPath().toAbsolutePath();
+		Path temp = target.resolveSibling(target.getFileName() + ".tmp");
+		try (FileChannel channel = FileChannel.open(temp, StandardOpenOption.WRITE,
+				StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING)) {
+			channel.position(HEADER_SIZE);
+			CRC32 crc = new CRC32();
+			DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+					new CheckedOutputStream(Channels.newOutputStream(channel), crc), BUFFER_SIZE));
+			int written = 0;
+			while (entries.hasNext()) {
+				Map.Entry<String, String> entry = entries.next();
+				writeString(out, entry.getKey());
+				writeString(out, entry.getValue());
+				written++;
+			}
+			out.flush();
+			if (written != count) {
+				throw new IOException("Expected " + count + " entries but wrote " + written);
+			}
+			ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+			header.putInt(MAGIC).putInt(VERSION).putInt(count).putInt((int) crc.getValue());
+			header.flip();
+			while (header.hasRemaining()) {
+				channel.write(header, header.position());
+			}
+			channel.force(false);
+		} catch (IOException | RuntimeException e) {
+			Files.deleteIfExists(temp);
+			throw e;
+		}
+		Files.move(temp, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+	}
+
+	static void writeString(DataOutputStream out, String s) throws IOException {
+		if (s == null) {
+			out.writeInt(-1);
+			return;
+		}
+		byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+		out.writeInt(bytes.length);
+		out.write(bytes);
+	}
+
+	static Reader open(File file) throws IOException {
+		return new Reader(file);
+	}
+
+	/**
+	 * Reads a snapshot's entries in order. The checksum, and the absence of trailing bytes,
+	 * are verified by the next() call that reads the last entry (or by open() for an empty
+	 * snapshot), so a caller that has consumed every entry without an exception has read
+	 * a sound file.
+	 */
+	static class Reader implements Closeable {
+		private final FileChannel channel;
+		private final DataInputStream in;
+		private final CRC32 crc = new CRC32();
+		private final int count;
+		private final int expectedCrc;
+		private int remaining;
+		private byte[] scratch = new byte[64];
+		private String key;
+		private String value;
+
+		private Reader(File file) throws IOException {
+			channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+			try {
+				ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+				while (header.hasRemaining()) {
+					if (channel.read(header) < 0) {
+						throw corrupt("truncated header");
+					}
+				}
+				header.flip();
+				if (header.getInt() != MAGIC) {
+					throw corrupt("not a tree snapshot");
+				}
+				int version = header.getInt();
+				if (version != VERSION) {
+					throw corrupt("unsupported version " + version);
+				}
+				count = header.getInt();
+				if (count < 0) {
+					throw corrupt("negative entry count");
+				}
+				expectedCrc = header.getInt();
+				remaining = count;
+				in = new DataInputStream(new CheckedInputStream(
+						new BufferedInputStream(Channels.newInputStream(channel), BUFFER_SIZE), crc));
+				if (count == 0) {
+					verify();
+				}
+			} catch (IOException | RuntimeException e) {
+				channel.close();
+				throw e;
+			}
+		}
+
+		int count() {
+			return count;
+		}
+
+		void next() throws IOException {
+			// advance to the next entry, whose key and value are then available
+			if (remaining == 0) {
+				throw new IllegalStateException("No more entries");
+			}
+			try {
+				key = readString();
+				if (key == null) {
+					throw corrupt("null key");
+				}
+				value = readString();
+			} catch (EOFException eof) {
+				throw corrupt("truncated body");
+			}
+			if (--remaining == 0) {
+				verify();
+			}
+		}
+
+		String key() {
+			return key;
+		}
+
+		String value() {
+			return value;
+		}
+
+		private String readString() throws IOException {
+			int length = in.readInt();
+			if (length < 0) {
+				if (length != -1) {
+					throw corrupt("bad string length " + length);
+				}
+				return null;
+			}
+			if (length > scratch.length) {
+				// don't trust a huge length from a corrupt file enough to allocate it outright
+				if (length > channel.size()) {
+					throw corrupt("bad string length " + length);
+				}
+				scratch = new byte[Math.max(length, scratch.length * 2)];
+			}
+			in.readFully(scratch, 0, length);
+			return new String(scratch, 0, length, StandardCharsets.UTF_8);
+		}
+
+		private void verify() throws IOException {
+			if (in.read() >= 0) {
+				throw corrupt("unexpected data after the last entry");
+			}
+			if ((int) crc.getValue() != expectedCrc) {
+				throw corrupt("checksum mismatch");
+			}
+		}
+
+		static IOException corrupt(String reason) {
+			return new IOException("Corrupt snapshot: " + reason);
+		}
+
+		@Override
+		public void close() throws IOException {
+			channel.close();
+		}
+	}
+}
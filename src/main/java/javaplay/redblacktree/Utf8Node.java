@@ -0,0 +1,29 @@
+package javaplay.redblacktree;
+
+public class Utf8Node extends BaseNode<Utf8Node> {
+	// UTF-8 encoding of the key
+	private byte[] key;
+	private String value;
+	
+	public byte[] getKey() {
+		return key;
+	}
+
+	public void setKey(byte[] key) {
+		this.key = key;
+	}
+
+	public String getValue() {
+		return value;
+	}
+
+	public void setValue(String value) {
+		this.value = value;
+	}
+
+	public Utf8Node(Utf8Node parent, Utf8Node left, Utf8Node right, byte[] key, String data) {
+		super(parent, left, right);
+		this.key = key;
+		this.value = data;
+	}
+}
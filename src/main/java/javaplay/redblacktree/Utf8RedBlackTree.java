@@ -0,0 +1,232 @@
+package javaplay.redblacktree;
+
+import java.nio.charset.StandardCharsets;
+
+import javaplay.symboltable.SymbolTable;
+
+/**
+ * A SymbolTable that stores its keys as UTF-8 byte arrays instead of Strings. For the
+ * long ASCII keys this is meant for (tenant/region/service/...) that saves the String
+ * object around every key, 24 bytes a node, and halves the key bytes of anything that
+ * doesn't fit in Latin-1. Pass a KeyInterner to share the arrays with other trees that
+ * hold the same keys.
+ *
+ * Keys are ordered by their unsigned bytes, which is Unicode code point order. That is
+ * String.compareTo order except among characters outside the Basic Multilingual Plane
+ * and those from U+E000 to U+FFFF, which String orders by their UTF-16 surrogates.
+ *
+ * Descents skip the prefix the key is already known to share with the node. Every key in
+ * a subtree lies between the nearest ancestors the search went right and left at, so it
+ * shares with the search key at least the shorter of their two common prefixes, and the
+ * comparison can start there. With hierarchical keys most of each key is a prefix shared
+ * with its neighbours, and that part is compared once near the root rather than at every
+ * level.
+ */
+public class Utf8RedBlackTree extends AbstractRedBlackTree<Utf8Node> implements SymbolTable {
+	private final KeyInterner interner;
+	
+	public Utf8RedBlackTree() {
+		this(null);
+	}
+	
+	public Utf8RedBlackTree(KeyInterner interner) {
+		super(new Utf8Node(null, null, null, null, null));
+		this.interner = interner;
+	}
+	
+	private static byte[] encode(String key) {
+		return key.getBytes(StandardCharsets.UTF_8);
+	}
+	
+	private static int mismatch(byte[] a, byte[] b, int from) {
+		// the first index at or after from where a and b differ, or the length of the shorter
+		// one if it is a prefix of the other
+		int length = Math.min(a.length, b.length);
+		int i = from;
+		while (i < length && a[i] == b[i]) {
+			i++;
+		}
+		return i;
+	}
+	
+	private static int compareAt(byte[] a, byte[] b, int i) {
+		// compare a and b, which agree on their first i bytes and differ at i (or end there)
+		if (i == a.length) {
+			return i == b.length ? 0 : -1;
+		}
+		if (i == b.length) {
+			return 1;
+		}
+		return (a[i] & 0xff) - (b[i] & 0xff);
+	}
+	
+	private Utf8Node find(byte[] key) {
+		// descent, skipping known common prefixes (see above); returns nil if the key is not
+		// in the tree. lowMatch and highMatch are the prefixes key shares with the nearest
+		// ancestors it is greater and less than
+		int lowMatch = 0;
+		int highMatch = 0;
+		Utf8Node node = root;
+		while (node != nil) {
+			byte[] nodeKey = node.getKey();
+			int match = mismatch(key, nodeKey, Math.min(lowMatch, highMatch));
+			int cmp = compareAt(key, nodeKey, match);
+			if (cmp < 0) {
+				highMatch = match;
+				node = node.getLeft();
+			} else if (cmp > 0) {
+				lowMatch = match;
+				node = node.getRight();
+			} else {
+				break;
+			}
+		}
+		return node;
+	}
+	
+	public boolean containsKey(byte[] key) {
+		return find(key) != nil;
+	}
+
+	@Override
+	public String get(String key) {
+		return get(encode(key));
+	}
+	
+	public String get(byte[] key) {
+		// key is the UTF-8 encoding; callers that have it save encoding on every lookup
+		Utf8Node node = find(key);
+		if (node == nil) {
+			return null;
+		}
+		return node.getValue();
+	}
+
+	@Override
+	public SymbolTable put(String key, String value) {
+		return put(encode(key), value);
+	}
+	
+	public Utf8RedBlackTree put(byte[] key, String value) {
+		// the tree keeps key (or its interned twin), so it must not be changed afterwards
+		int lowMatch = 0;
+		int highMatch = 0;
+		Utf8Node parent = nil;
+		Utf8Node node = root;
+		int cmp = 0;
+		while (node != nil) {
+			byte[] nodeKey = node.getKey();
+			int match = mismatch(key, nodeKey, Math.min(lowMatch, highMatch));
+			cmp = compareAt(key, nodeKey, match);
+			if (cmp == 0) {
+				node.setValue(value);
+				return this;
+			}
+			if (cmp < 0) {
+				highMatch = match;
+			} else {
+				lowMatch = match;
+			}
+			parent = node;
+			node = cmp < 0 ? node.getLeft() : node.getRight();
+		}
+		if (interner != null) {
+			key = interner.intern(key);
+		}
+		insertNode(parent, cmp, new Utf8Node(parent, nil, nil, key, value));
+		return this;
+	}
+
+	@Override
+	public String remove(String key) {
+		return remove(encode(key));
+	}
+	
+	public String remove(byte[] key) {
+		Utf8Node node = find(key);
+		if (node == nil) {
+			return null;
+		}
+		
+		String originalValue = node.getValue();
+		removeNode(node);
+		return originalValue;
+	}
+
+	@Override
+	public String successor(String key) {
+		Utf8Node node = find(encode(key));
+		if (node == nil) {
+			return null;
+		}
+		Utf8Node successor = successorNode(node);
+		if (successor == nil) {
+			return null;
+		}
+		return keyString(successor);
+	}
+
+	@Override
+	public String predecessor(String key) {
+		Utf8Node node = find(encode(key));
+		if (node == nil) {
+			return null;
+		}
+		Utf8Node predecessor = predecessorNode(node);
+		if (predecessor == nil) {
+			return null;
+		}
+		return keyString(predecessor);
+	}
+	
+	public int rank(String key) {
+		// number of keys strictly less than key. key need not be in the tree
+		byte[] bytes = encode(key);
+		int lowMatch = 0;
+		int highMatch = 0;
+		int rank = 0;
+		Utf8Node node = root;
+		while (node != nil) {
+			byte[] nodeKey = node.getKey();
+			int match = mismatch(bytes, nodeKey, Math.min(lowMatch, highMatch));
+			int cmp = compareAt(bytes, nodeKey, match);
+			if (cmp < 0) {
+				highMatch = match;
+				node = node.getLeft();
+			} else if (cmp > 0) {
+				lowMatch = match;
+				rank += node.getLeft().getCount() + 1;
+				node = node.getRight();
+			} else {
+				rank += node.getLeft().getCount();
+				break;
+			}
+		}
+		return rank;
+	}
+	
+	public String select(int index) {
+		// returns the key with the given zero-based rank, or null if index is out of range
+		Utf8Node node = selectNode(index);
+		if (node == nil) {
+			return null;
+		}
+		return keyString(node);
+	}
+	
+	@Override
+	protected void copyEntry(Utf8Node target, Utf8Node source) {
+		target.setKey(source.getKey());
+		target.setValue(source.getValue());
+	}
+	
+	@Override
+	protected int compareKeys(Utf8Node a, Utf8Node b) {
+		return compareAt(a.getKey(), b.getKey(), mismatch(a.getKey(), b.getKey(), 0));
+	}
+	
+	@Override
+	protected String keyString(Utf8Node node) {
+		return new String(node.getKey(), StandardCharsets.UTF_8);
+	}
+}
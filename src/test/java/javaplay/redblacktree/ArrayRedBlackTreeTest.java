@@ -0,0 +1,80 @@
+package javaplay.redblacktree;
+
+import java.util.Random;
+import java.util.TreeMap;
+
+import junit.framework.TestCase;
+
+public class ArrayRedBlackTreeTest extends TestCase {
+	public void testPutGetRemove() {
+		ArrayRedBlackTree map = new ArrayRedBlackTree(2);
+		map.put("10", "test_10");
+		map.put("05", "test_05");
+		map.put("17", "test_17");
+		assertEquals("test_05", map.get("05"));
+		assertNull(map.get("fred"));
+		assertEquals("17", map.successor("10"));
+		assertNull(map.successor("17"));
+		assertEquals("05", map.predecessor("10"));
+		assertNull(map.check());
+		
+		assertEquals("test_10", map.remove("10"));
+		assertEquals("test_05", map.remove("05"));
+		assertEquals("test_17", map.remove("17"));
+		assertTrue(map.isEmpty());
+		assertNull(map.check());
+	}
+	
+	public void testRandomPutRemove() {
+		Random random = new Random(42);
+		TreeMap<String, String> expected = new TreeMap<String, String>();
+		ArrayRedBlackTree map = new ArrayRedBlackTree();
+		for (int i = 0; i < 5000; i++) {
+			String key = String.format("%04d", random.nextInt(1000));
+			if (random.nextInt(3) == 0) {
+				assertEquals(expected.remove(key), map.remove(key));
+			} else {
+				expected.put(key, "test_" + i);
+				map.put(key, "test_" + i);
+			}
+			if (i % 500 == 0) {
+				assertNull(map.check());
+			}
+		}
+		assertNull(map.check());
+		assertEquals(expected.size(), map.size());
+		int index = 0;
+		for (String key : expected.keySet()) {
+			assertEquals(expected.get(key), map.get(key));
+			assertEquals(key, map.select(index));
+			assertEquals(index, map.rank(key));
+			assertEquals(expected.higherKey(key), map.successor(key));
+			index++;
+		}
+	}
+	
+	public void testSlotReuse() {
+		ArrayRedBlackTree map = new ArrayRedBlackTree(4);
+		for (int round = 0; round < 10; round++) {
+			for (int i = 0; i < 4; i++) {
+				map.put("key" + i, "value" + i);
+			}
+			for (int i = 0; i < 4; i++) {
+				map.remove("key" + i);
+			}
+		}
+		// released slots are handed out again, so the arrays never had to grow
+		assertEquals(4, map.capacity());
+		assertNull(map.check());
+	}
+	
+	public void testBytesPerEntry() {
+		ArrayRedBlackTree map = new ArrayRedBlackTree(100);
+		assertEquals(0.0, map.bytesPerEntry(4), 0.0);
+		for (int i = 0; i < 100; i++) {
+			map.put(String.format("%03d", i), "value");
+		}
+		// 4 ints + 2 compressed references per slot, plus one slot for nil
+		assertEquals(24.0 * 101 / 100, map.bytesPerEntry(4), 0.0001);
+	}
+}
@@ -0,0 +1,95 @@
+package javaplay.redblacktree;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.channels.Channels;
+
+import junit.framework.TestCase;
+
+public class CommandPipelineTest extends TestCase {
+	private CommandReader reader(String text) {
+		return new CommandReader(Channels.newChannel(new ByteArrayInputStream(text.getBytes())));
+	}
+
+	private String workload() {
+		StringBuilder text = new StringBuilder();
+		for (int i = 0; i < 5000; i++) {
+			int key = (i * 7919) % 1000;
+			switch (i % 5) {
+			case 0:
+			case 1:
+				text.append("put k").append(key).append(" v").append(i).append('\n');
+				break;
+			case 2:
+				text.append("get k").append(key).append(" mustexist\n");
+				break;
+			case 3:
+				text.append("remove k").append(key).append('\n');
+				break;
+			default:
+				text.append(i % 10 == 4 ? "size\n" : "\n");
+			}
+		}
+		text.append("check\nheight");
+		return text.toString();
+	}
+
+	private String runBatched(String text, int batchSize) throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		OutputBuffer out = new OutputBuffer(bytes, 64);
+		CommandReader reader = reader(text);
+		RedBlackTree map = new RedBlackTree();
+		CommandBatch batch = new CommandBatch(batchSize);
+		long intervalStart = 0;
+		boolean more = true;
+		while (more) {
+			more = batch.fill(reader);
+			intervalStart = batch.execute(map, intervalStart);
+			batch.write(out, false);
+		}
+		out.flush();
+		return bytes.toString();
+	}
+
+	private String runPipelined(String text, int batchSize, int batches) throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		OutputBuffer out = new OutputBuffer(bytes, 64);
+		new CommandPipeline(reader(text), new RedBlackTree(), out, batchSize, batches, false).run();
+		out.flush();
+		return bytes.toString();
+	}
+
+	public void testBatchFormatting() throws IOException {
+		String output = runBatched("put a 1\nget a mustexist\nget b mustbenull\nremove a\nremove a\nsize", 2);
+		assertEquals(
+			"Key: 'a', value ''1'', status: good\n" +
+			"Key: 'b', value 'null', status: good\n" +
+			"Key: 'a'; value = '1' removed\n" +
+			"Key: 'a'; value = null removed\n" +
+			"0\n", output);
+	}
+
+	public void testBatchSizeDoesNotChangeOutput() throws IOException {
+		String text = workload();
+		String expected = runBatched(text, 1);
+		assertEquals(expected, runBatched(text, 7));
+		assertEquals(expected, runBatched(text, 1024));
+	}
+
+	public void testPipelineMatchesBatched() throws IOException {
+		String text = workload();
+		String expected = runBatched(text, 1024);
+		// small batches and a small pool keep every stage waiting on the others
+		for (int i = 0; i < 20; i++) {
+			assertEquals(expected, runPipelined(text, 3, 2));
+		}
+		assertEquals(expected, runPipelined(text, 1, 1));
+		assertEquals(expected, runPipelined(text, 1024, 4));
+	}
+
+	public void testEmptyInput() throws IOException {
+		assertEquals("", runPipelined("", 4, 2));
+		assertEquals("", runPipelined("\n\n", 4, 2));
+	}
+}
@@ -0,0 +1,98 @@
+package javaplay.redblacktree;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+
+import junit.framework.TestCase;
+
+public class CommandReaderTest extends TestCase {
+	private CommandReader reader(String text) {
+		return new CommandReader(Channels.newChannel(new ByteArrayInputStream(text.getBytes())));
+	}
+	
+	public void testLineEndings() throws IOException {
+		CommandReader reader = reader("put a 1\r\nget a\rremove a\n\nsize");
+		assertTrue(reader.nextLine());
+		assertEquals(3, reader.tokenCount());
+		assertTrue(reader.tokenEquals(0, "put"));
+		assertEquals("a", reader.token(1));
+		assertEquals("1", reader.token(2));
+		
+		assertTrue(reader.nextLine());
+		assertTrue(reader.tokenEquals(0, "get"));
+		assertFalse(reader.tokenEquals(0, "gets"));
+		assertTrue(reader.nextLine());
+		assertTrue(reader.tokenEquals(0, "remove"));
+		assertTrue(reader.nextLine());
+		assertEquals(0, reader.tokenCount());
+		// last line has no terminator
+		assertTrue(reader.nextLine());
+		assertTrue(reader.tokenEquals(0, "size"));
+		assertFalse(reader.nextLine());
+	}
+	
+	public void testLongLinesGrowTheBuffer() throws IOException {
+		StringBuilder key = new StringBuilder();
+		for (int i = 0; i < 200000; i++) {
+			key.append((char) ('a' + i % 26));
+		}
+		CommandReader reader = reader("put " + key + " value\nsize\n");
+		assertTrue(reader.nextLine());
+		assertEquals(key.toString(), reader.token(1));
+		assertEquals("value", reader.token(2));
+		assertTrue(reader.nextLine());
+		assertTrue(reader.tokenEquals(0, "size"));
+		assertFalse(reader.nextLine());
+	}
+	
+	public void testWriteToken() throws IOException {
+		CommandReader reader = reader("get somekey\n");
+		assertTrue(reader.nextLine());
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		OutputBuffer out = new OutputBuffer(bytes, 4);
+		out.write("[");
+		reader.writeToken(1, out);
+		out.write("]").write(42);
+		out.flush();
+		assertEquals("[somekey]42", bytes.toString());
+	}
+	
+	public void testMappedSmallWindows() throws IOException {
+		// a tiny window forces remapping mid-line, mid-\r\n and for lines longer than a window
+		File file = File.createTempFile("commands", ".txt");
+		file.deleteOnExit();
+		StringBuilder text = new StringBuilder();
+		for (int i = 0; i < 100; i++) {
+			text.append("put key").append(i).append(" value").append(i).append(i % 2 == 0 ? "\r\n" : "\n");
+		}
+		text.append("put averyveryverylongkeythatdoesnotfitinonewindow v\n\nsize");
+		try (FileOutputStream out = new FileOutputStream(file)) {
+			out.write(text.toString().getBytes());
+		}
+		
+		try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+			CommandReader reader = new CommandReader(channel, 7);
+			for (int i = 0; i < 100; i++) {
+				assertTrue(reader.nextLine());
+				assertEquals(3, reader.tokenCount());
+				assertTrue(reader.tokenEquals(0, "put"));
+				assertEquals("key" + i, reader.token(1));
+				assertEquals("value" + i, reader.token(2));
+			}
+			assertTrue(reader.nextLine());
+			assertEquals("averyveryverylongkeythatdoesnotfitinonewindow", reader.token(1));
+			assertTrue(reader.nextLine());
+			assertEquals(0, reader.tokenCount());
+			assertTrue(reader.nextLine());
+			assertTrue(reader.tokenEquals(0, "size"));
+			assertFalse(reader.nextLine());
+		}
+		file.delete();
+	}
+}
@@ -0,0 +1,82 @@
+package javaplay.redblacktree;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicReference;
+
+import junit.framework.TestCase;
+
+public class ConcurrentRedBlackTreeTest extends TestCase {
+	public void testSingleThreaded() {
+		ConcurrentRedBlackTree map = new ConcurrentRedBlackTree();
+		map.put("10", "test_10").put("05", "test_05").put("17", "test_17");
+		assertEquals("test_05", map.get("05"));
+		assertNull(map.get("fred"));
+		assertEquals("17", map.successor("10"));
+		assertEquals("05", map.predecessor("10"));
+		assertNull(map.predecessor("05"));
+		assertEquals("test_10", map.remove("10"));
+		assertEquals(2, map.size());
+		assertNull(map.check());
+	}
+	
+	public void testConcurrentMixedWorkload() throws InterruptedException {
+		final ConcurrentRedBlackTree map = new ConcurrentRedBlackTree();
+		// keys below 100 are never removed, so readers can always expect to find them
+		for (int i = 0; i < 100; i++) {
+			map.put(String.format("%04d", i), "stable");
+		}
+		final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+		List<Thread> threads = new ArrayList<Thread>();
+		for (int t = 0; t < 8; t++) {
+			final int seed = t;
+			final boolean writer = t % 2 == 0;
+			threads.add(new Thread(new Runnable() {
+				public void run() {
+					try {
+						Random random = new Random(seed);
+						for (int i = 0; i < 20000; i++) {
+							if (writer) {
+								String key = String.format("%04d", 100 + random.nextInt(2000));
+								if (random.nextBoolean()) {
+									map.put(key, key);
+								} else {
+									map.remove(key);
+								}
+							} else {
+								String key = String.format("%04d", random.nextInt(100));
+								assertEquals("stable", map.get(key));
+								String value = map.get(String.format("%04d", 100 + random.nextInt(2000)));
+								if (value != null) {
+									assertTrue(value.compareTo("0100") >= 0);
+								}
+								// 0099's successor is whichever writer key is lowest, and there may
+								// not be one yet, so only ask for successors among the stable keys
+								key = String.format("%04d", random.nextInt(99));
+								String successor = map.successor(key);
+								assertNotNull(successor);
+								assertTrue(successor.compareTo(key) > 0);
+							}
+						}
+					} catch (Throwable e) {
+						failure.compareAndSet(null, e);
+					}
+				}
+			}));
+		}
+		for (Thread thread : threads) {
+			thread.start();
+		}
+		for (Thread thread : threads) {
+			thread.join();
+		}
+		if (failure.get() != null) {
+			throw new AssertionError(failure.get());
+		}
+		assertNull(map.check());
+		for (int i = 0; i < 100; i++) {
+			assertEquals("stable", map.get(String.format("%04d", i)));
+		}
+	}
+}
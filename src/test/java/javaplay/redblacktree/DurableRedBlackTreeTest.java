@@ -0,0 +1,413 @@
+package javaplay.redblacktree;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Random;
+import java.util.TreeMap;
+
+import javaplay.redblacktree.DurableRedBlackTree.SyncPolicy;
+import junit.framework.TestCase;
+
+public class DurableRedBlackTreeTest extends TestCase {
+	// a log channel that can be made to fail its writes, halfway through, or its forces
+	private static class FaultyChannel extends FileChannel {
+		private final FileChannel channel;
+		volatile boolean failWrites = false;
+		volatile boolean failForces = false;
+		volatile int forces = 0;
+
+		public FaultyChannel(FileChannel channel) {
+			this.channel = channel;
+		}
+
+		@Override
+		public int write(ByteBuffer src) throws IOException {
+			if (failWrites) {
+				ByteBuffer half = src.duplicate();
+				half.limit(half.position() + (half.remaining() + 1) / 2);
+				src.position(src.position() + channel.write(half));
+				throw new IOException("No space left on device");
+			}
+			return channel.write(src);
+		}
+
+		@Override
+		public void force(boolean metaData) throws IOException {
+			forces++;
+			if (failForces) {
+				throw new IOException("Input/output error");
+			}
+			channel.force(metaData);
+		}
+
+		@Override
+		public int read(ByteBuffer dst) throws IOException {
+			return channel.read(dst);
+		}
+
+		@Override
+		public long read(ByteBuffer[] dsts, int offset, int length) throws IOException {
+			return channel.read(dsts, offset, length);
+		}
+
+		@Override
+		public long write(ByteBuffer[] srcs, int offset, int length) throws IOException {
+			return channel.write(srcs, offset, length);
+		}
+
+		@Override
+		public long position() throws IOException {
+			return channel.position();
+		}
+
+		@Override
+		public FileChannel position(long newPosition) throws IOException {
+			channel.position(newPosition);
+			return this;
+		}
+
+		@Override
+		public long size() throws IOException {
+			return channel.size();
+		}
+
+		@Override
+		public FileChannel truncate(long size) throws IOException {
+			channel.truncate(size);
+			return this;
+		}
+
+		@Override
+		public long transferTo(long position, long count, WritableByteChannel target) throws IOException {
+			return channel.transferTo(position, count, target);
+		}
+
+		@Override
+		public long transferFrom(ReadableByteChannel src, long position, long count) throws IOException {
+			return channel.transferFrom(src, position, count);
+		}
+
+		@Override
+		public int read(ByteBuffer dst, long position) throws IOException {
+			return channel.read(dst, position);
+		}
+
+		@Override
+		public int write(ByteBuffer src, long position) throws IOException {
+			return channel.write(src, position);
+		}
+
+		@Override
+		public MappedByteBuffer map(MapMode mode, long position, long size) throws IOException {
+			return channel.map(mode, position, size);
+		}
+
+		@Override
+		public FileLock lock(long position, long size, boolean shared) throws IOException {
+			return channel.lock(position, size, shared);
+		}
+
+		@Override
+		public FileLock tryLock(long position, long size, boolean shared) throws IOException {
+			return channel.tryLock(position, size, shared);
+		}
+
+		@Override
+		protected void implCloseChannel() throws IOException {
+			channel.close();
+		}
+	}
+
+	private File directory;
+
+	@Override
+	protected void setUp() throws IOException {
+		directory = Files.createTempDirectory("rbt-wal").toFile();
+	}
+
+	@Override
+	protected void tearDown() {
+		delete(directory);
+	}
+
+	private static void delete(File directory) {
+		for (File file : directory.listFiles()) {
+			file.delete();
+		}
+		directory.delete();
+	}
+
+	private void assertContents(TreeMap<String, String> expected, DurableRedBlackTree tree) {
+		assertNull(tree.check());
+		assertEquals(expected.size(), tree.size());
+		for (String key : expected.keySet()) {
+			assertEquals(expected.get(key), tree.get(key));
+		}
+	}
+
+	private void randomOps(DurableRedBlackTree tree, TreeMap<String, String> expected, Random random, int ops) {
+		for (int i = 0; i < ops; i++) {
+			String key = String.format("%04d", random.nextInt(500));
+			if (random.nextInt(3) == 0) {
+				assertEquals(expected.remove(key), tree.remove(key));
+			} else {
+				expected.put(key, "test_" + i);
+				tree.put(key, "test_" + i);
+			}
+		}
+	}
+
+	public void testReopenReplaysLog() throws IOException {
+		for (SyncPolicy policy : SyncPolicy.values()) {
+			tearDown();
+			setUp();
+			TreeMap<String, String> expected = new TreeMap<String, String>();
+			Random random = new Random(42);
+			DurableRedBlackTree tree = new DurableRedBlackTree(directory, policy, 1);
+			randomOps(tree, expected, random, 2000);
+			tree.close();
+
+			tree = new DurableRedBlackTree(directory, policy, 1);
+			assertContents(expected, tree);
+			// and the reopened log can be appended to
+			randomOps(tree, expected, random, 2000);
+			tree.close();
+
+			tree = new DurableRedBlackTree(directory, policy, 1);
+			assertContents(expected, tree);
+			tree.close();
+		}
+	}
+
+	public void testCheckpoint() throws IOException {
+		TreeMap<String, String> expected = new TreeMap<String, String>();
+		Random random = new Random(7);
+		DurableRedBlackTree tree = new DurableRedBlackTree(directory, SyncPolicy.ALWAYS);
+		randomOps(tree, expected, random, 1000);
+		tree.checkpoint();
+		assertEquals(8, new File(directory, "tree.wal").length());
+		randomOps(tree, expected, random, 1000);
+		tree.close();
+
+		tree = new DurableRedBlackTree(directory, SyncPolicy.ALWAYS);
+		assertContents(expected, tree);
+		tree.close();
+	}
+
+	public void testTornTailIsDropped() throws IOException {
+		DurableRedBlackTree tree = new DurableRedBlackTree(directory, SyncPolicy.ALWAYS);
+		tree.put("a", "test_a");
+		tree.put("b", "test_b");
+		tree.close();
+		// cut the last record short, as a crash mid-write would
+		File log = new File(directory, "tree.wal");
+		long length = log.length();
+		try (RandomAccessFile file = new RandomAccessFile(log, "rw")) {
+			file.setLength(length - 3);
+		}
+
+		tree = new DurableRedBlackTree(directory, SyncPolicy.ALWAYS);
+		assertEquals("test_a", tree.get("a"));
+		assertNull(tree.get("b"));
+		tree.put("c", "test_c");
+		tree.close();
+
+		tree = new DurableRedBlackTree(directory, SyncPolicy.ALWAYS);
+		assertEquals(2, tree.size());
+		assertEquals("test_c", tree.get("c"));
+		tree.close();
+	}
+
+	public void testNullKeyIsNotLogged() throws IOException {
+		DurableRedBlackTree tree = new DurableRedBlackTree(directory, SyncPolicy.ALWAYS);
+		try {
+			tree.put(null, "test_null");
+			fail("Expected NullPointerException");
+		} catch (NullPointerException npe) {
+			// expected
+		}
+		tree.put("a", "test_a");
+		tree.close();
+		tree = new DurableRedBlackTree(directory, SyncPolicy.ALWAYS);
+		assertEquals(1, tree.size());
+		tree.close();
+	}
+
+	public void testConcurrentWriters() throws Exception {
+		concurrentWriters(SyncPolicy.ALWAYS, 500);
+	}
+
+	public void testConcurrentWritersUnforced() throws Exception {
+		// enough records to fill the log buffer many times over, so writers race to write it out
+		concurrentWriters(SyncPolicy.NEVER, 5000);
+	}
+
+	private void concurrentWriters(SyncPolicy policy, int perThread) throws Exception {
+		DurableRedBlackTree tree = new DurableRedBlackTree(directory, policy);
+		Thread[] threads = new Thread[4];
+		for (int t = 0; t < threads.length; t++) {
+			int id = t;
+			threads[t] = new Thread(() -> {
+				for (int i = 0; i < perThread; i++) {
+					tree.put(id + "_" + String.format("%05d", i), "test_" + i);
+				}
+			});
+			threads[t].start();
+		}
+		for (Thread thread : threads) {
+			thread.join();
+		}
+		assertEquals(threads.length * perThread, tree.size());
+		tree.close();
+
+		DurableRedBlackTree reopened = new DurableRedBlackTree(directory, SyncPolicy.ALWAYS);
+		assertEquals(threads.length * perThread, reopened.size());
+		assertNull(reopened.check());
+		for (int t = 0; t < threads.length; t++) {
+			for (int i = 0; i < perThread; i++) {
+				assertEquals("test_" + i, reopened.get(t + "_" + String.format("%05d", i)));
+			}
+		}
+		reopened.close();
+	}
+
+	public void testWriteFailureIsFinal() throws IOException {
+		FaultyChannel[] log = new FaultyChannel[1];
+		DurableRedBlackTree tree = new DurableRedBlackTree(directory, SyncPolicy.ALWAYS, 10, channel -> {
+			log[0] = new FaultyChannel(channel);
+			return log[0];
+		});
+		tree.put("a", "test_a");
+		tree.put("b", "test_b");
+		log[0].failWrites = true;
+		try {
+			tree.put("c", "test_c");
+			fail("Expected UncheckedIOException");
+		} catch (UncheckedIOException e) {
+			// expected
+		}
+		// the log has a torn record at its end now, so nothing more may be appended, even
+		// once the disk recovers
+		log[0].failWrites = false;
+		try {
+			tree.put("d", "test_d");
+			fail("Expected UncheckedIOException");
+		} catch (UncheckedIOException e) {
+			// expected
+		}
+		assertNull(tree.get("d"));
+		try {
+			tree.remove("a");
+			fail("Expected UncheckedIOException");
+		} catch (UncheckedIOException e) {
+			// expected
+		}
+		assertEquals("test_a", tree.get("a"));
+		try {
+			tree.flush();
+			fail("Expected IOException");
+		} catch (IOException e) {
+			// expected
+		}
+		try {
+			tree.checkpoint();
+			fail("Expected IOException");
+		} catch (IOException e) {
+			// expected
+		}
+		tree.close();
+
+		tree = new DurableRedBlackTree(directory, SyncPolicy.ALWAYS);
+		assertEquals(2, tree.size());
+		assertEquals("test_a", tree.get("a"));
+		assertEquals("test_b", tree.get("b"));
+		tree.close();
+	}
+
+	public void testForceFailureIsNotRetried() throws IOException {
+		FaultyChannel[] log = new FaultyChannel[1];
+		DurableRedBlackTree tree = new DurableRedBlackTree(directory, SyncPolicy.ALWAYS, 10, channel -> {
+			log[0] = new FaultyChannel(channel);
+			return log[0];
+		});
+		tree.put("a", "test_a");
+		log[0].failForces = true;
+		try {
+			tree.put("b", "test_b");
+			fail("Expected UncheckedIOException");
+		} catch (UncheckedIOException e) {
+			// expected
+		}
+		int forces = log[0].forces;
+		log[0].failForces = false;
+		try {
+			tree.flush();
+			fail("Expected IOException");
+		} catch (IOException e) {
+			// expected
+		}
+		try {
+			tree.put("c", "test_c");
+			fail("Expected UncheckedIOException");
+		} catch (UncheckedIOException e) {
+			// expected
+		}
+		tree.close();
+		assertEquals(forces, log[0].forces);
+
+		tree = new DurableRedBlackTree(directory, SyncPolicy.ALWAYS);
+		assertEquals("test_a", tree.get("a"));
+		assertNull(tree.get("c"));
+		tree.close();
+	}
+
+	public void testPutIsDurableOnReturn() throws IOException {
+		TreeMap<String, String> expected = new TreeMap<String, String>();
+		Random random = new Random(11);
+		DurableRedBlackTree tree = new DurableRedBlackTree(directory, SyncPolicy.ALWAYS);
+		randomOps(tree, expected, random, 500);
+		tree.checkpoint();
+		randomOps(tree, expected, random, 500);
+		// copy the directory out from under the open tree, as a crash would leave it
+		File copy = Files.createTempDirectory("rbt-wal").toFile();
+		try {
+			for (File file : directory.listFiles()) {
+				Files.copy(file.toPath(), new File(copy, file.getName()).toPath(),
+						StandardCopyOption.REPLACE_EXISTING);
+			}
+			DurableRedBlackTree recovered = new DurableRedBlackTree(copy, SyncPolicy.ALWAYS);
+			assertContents(expected, recovered);
+			recovered.close();
+		} finally {
+			delete(copy);
+		}
+		tree.close();
+	}
+
+	public void testSecondOpenFails() throws IOException {
+		DurableRedBlackTree tree = new DurableRedBlackTree(directory, SyncPolicy.ALWAYS);
+		tree.put("a", "test_a");
+		try {
+			new DurableRedBlackTree(directory, SyncPolicy.ALWAYS);
+			fail("Expected IOException");
+		} catch (IOException e) {
+			// expected
+		}
+		tree.put("b", "test_b");
+		tree.close();
+
+		tree = new DurableRedBlackTree(directory, SyncPolicy.ALWAYS);
+		assertEquals(2, tree.size());
+		tree.close();
+	}
+}
@@ -0,0 +1,88 @@
+package javaplay.redblacktree;
+
+import java.util.Random;
+import java.util.TreeMap;
+
+import junit.framework.TestCase;
+
+public class PersistentRedBlackTreeTest extends TestCase {
+	public void testRandomPutRemove() {
+		Random random = new Random(42);
+		TreeMap<String, String> expected = new TreeMap<String, String>();
+		PersistentRedBlackTree map = new PersistentRedBlackTree();
+		for (int i = 0; i < 5000; i++) {
+			String key = String.format("%04d", random.nextInt(1000));
+			if (random.nextInt(3) == 0) {
+				assertEquals(expected.remove(key), map.remove(key));
+			} else {
+				expected.put(key, "test_" + i);
+				map.put(key, "test_" + i);
+			}
+			if (i % 250 == 0) {
+				assertNull(map.check());
+			}
+		}
+		assertNull(map.check());
+		assertEquals(expected.size(), map.size());
+		int index = 0;
+		for (String key : expected.keySet()) {
+			assertEquals(expected.get(key), map.get(key));
+			assertEquals(key, map.select(index));
+			assertEquals(index, map.rank(key));
+			assertEquals(expected.higherKey(key), map.successor(key));
+			assertEquals(expected.lowerKey(key), map.predecessor(key));
+			index++;
+		}
+		
+		for (String key : expected.keySet()) {
+			map.remove(key);
+		}
+		assertTrue(map.isEmpty());
+		assertNull(map.check());
+	}
+	
+	public void testSnapshotIsolation() {
+		PersistentRedBlackTree map = new PersistentRedBlackTree();
+		for (int i = 0; i < 100; i++) {
+			map.put(String.format("%03d", i), "v1");
+		}
+		PersistentRedBlackTree snapshot = map.snapshot();
+		
+		for (int i = 0; i < 100; i += 2) {
+			map.remove(String.format("%03d", i));
+		}
+		map.put("001", "v2");
+		map.put("500", "v2");
+		
+		assertEquals(51, map.size());
+		assertEquals("v2", map.get("001"));
+		assertNull(map.get("000"));
+		assertNull(map.check());
+		
+		assertEquals(100, snapshot.size());
+		assertEquals("v1", snapshot.get("001"));
+		assertEquals("v1", snapshot.get("000"));
+		assertNull(snapshot.get("500"));
+		assertNull(snapshot.check());
+	}
+	
+	public void testSnapshotIsReadOnly() {
+		PersistentRedBlackTree map = new PersistentRedBlackTree();
+		map.put("10", "test_10");
+		PersistentRedBlackTree snapshot = map.snapshot();
+		assertTrue(snapshot.isReadOnly());
+		try {
+			snapshot.put("05", "test_05");
+			fail("Expected UnsupportedOperationException");
+		} catch (UnsupportedOperationException uoe) {
+			// expected
+		}
+		try {
+			snapshot.remove("10");
+			fail("Expected UnsupportedOperationException");
+		} catch (UnsupportedOperationException uoe) {
+			// expected
+		}
+		assertEquals("test_10", snapshot.get("10"));
+	}
+}
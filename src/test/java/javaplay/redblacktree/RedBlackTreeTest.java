@@ -5,8 +5,13 @@ import javaplay.symboltable.SymbolTable;
 import junit.framework.TestCase;
 
 public class RedBlackTreeTest extends TestCase {
+	// the tree under test. Subclasses override this to run the whole suite against another engine
+	protected RedBlackTree newTree() {
+		return new RedBlackTree();
+	}
+	
 	public void testPut() {
-		SymbolTable map = new RedBlackTree();
+		SymbolTable map = newTree();
 		map.put("10", "10_test");
 		map.put("07", "07_test");
 		map.put("17", "17_test");
@@ -16,7 +21,7 @@ public class RedBlackTreeTest extends TestCase {
 	}
 	
 	public void testGetNull() {
-		SymbolTable map = new RedBlackTree();
+		SymbolTable map = newTree();
 		map.put("10", "10_test");
 		map.put("07", "07_test");
 		map.put("17", "17_test");		
@@ -25,7 +30,7 @@ public class RedBlackTreeTest extends TestCase {
 	}
 	
 	public void testCase2Coloring() {
-		SymbolTable map = new RedBlackTree();
+		SymbolTable map = newTree();
 		map.put("D", "D_test");
 		map.put("G", "G_test");
 		map.put("a", "a_test");	
@@ -43,7 +48,7 @@ public class RedBlackTreeTest extends TestCase {
 	}
 	
 	private SymbolTable getTree(String[] keys) {
-		SymbolTable map = new RedBlackTree();
+		SymbolTable map = newTree();
 		for (String key : keys) {
 			map.put(key, "test_" + key);
 		}
@@ -59,7 +64,7 @@ public class RedBlackTreeTest extends TestCase {
 	}
 	
 	public void testSuccessorNull() {
-		SymbolTable map = new RedBlackTree();
+		SymbolTable map = newTree();
 		map.put("10", "test_10");
 		map.put("05", "test_05");
 		//System.out.println(map.toString());
@@ -76,7 +81,7 @@ public class RedBlackTreeTest extends TestCase {
 	}
 	
 	public void testPredecessorNull() {
-		SymbolTable map = new RedBlackTree();
+		SymbolTable map = newTree();
 		map.put("10", "test_10");
 		map.put("05", "test_05");
 		//System.out.println(map.toString());
@@ -144,7 +149,7 @@ public class RedBlackTreeTest extends TestCase {
 	
 	
 	public void testSize() {
-		SymbolTable map = new RedBlackTree();
+		SymbolTable map = newTree();
 		
 		assertEquals(0, map.size());
 		
@@ -181,8 +186,798 @@ public class RedBlackTreeTest extends TestCase {
 		assertEquals(null, ((RedBlackTree)map).check());
 	}
 	
+	public void testSizeOverwriteAndMissingRemove() {
+		RedBlackTree map = newTree();
+		assertTrue(map.isEmpty());
+		
+		map.put("10", "test_10");
+		map.put("10", "test_10_again");
+		assertEquals(1, map.size());
+		assertFalse(map.isEmpty());
+		
+		assertNull(map.remove("fred"));
+		assertEquals(1, map.size());
+		
+		for (String key : getBigKeys()) {
+			map.put(key, "test_" + key);
+		}
+		assertEquals(getBigKeys().length, map.size());
+		
+		for (String key : getBigKeys()) {
+			map.remove(key);
+		}
+		assertEquals(0, map.size());
+		assertTrue(map.isEmpty());
+		assertNull(map.check());
+	}
+	
+	public void testRankAndSelect() {
+		String[] keys = getBigKeys();
+		RedBlackTree map = (RedBlackTree)getTree(keys);
+		String[] sorted = keys.clone();
+		java.util.Arrays.sort(sorted);
+		
+		for (int i = 0; i < sorted.length; i++) {
+			assertEquals(sorted[i], map.select(i));
+			assertEquals(i, map.rank(sorted[i]));
+		}
+		assertNull(map.select(-1));
+		assertNull(map.select(sorted.length));
+		assertEquals(0, map.rank("00"));
+		assertEquals(8, map.rank("105"));
+		assertEquals(sorted.length, map.rank("99"));
+		
+		map.remove("10");
+		map.remove("03");
+		assertNull(map.check());
+		assertEquals("14", map.select(8));
+		assertEquals(6, map.rank("11"));
+	}
+	
+	public void testCount() {
+		RedBlackTree map = (RedBlackTree)getTree(getBigKeys());
+		assertEquals(15, map.count("00", "99"));
+		assertEquals(5, map.count("04", "08"));
+		assertEquals(4, map.count("045", "08"));
+		assertEquals(1, map.count("10", "10"));
+		assertEquals(0, map.count("12", "12"));
+		assertEquals(0, map.count("18", "01"));
+	}
+	
+	public void testRandomPutRemove() {
+		java.util.Random random = new java.util.Random(42);
+		java.util.TreeMap<String, String> expected = new java.util.TreeMap<String, String>();
+		RedBlackTree map = newTree();
+		for (int i = 0; i < 5000; i++) {
+			String key = String.format("%04d", random.nextInt(1000));
+			if (random.nextInt(3) == 0) {
+				assertEquals(expected.remove(key), map.remove(key));
+			} else {
+				expected.put(key, "test_" + i);
+				map.put(key, "test_" + i);
+			}
+		}
+		assertNull(map.check());
+		assertEquals(expected.size(), map.size());
+		int index = 0;
+		for (String key : expected.keySet()) {
+			assertEquals(expected.get(key), map.get(key));
+			assertEquals(key, map.select(index));
+			assertEquals(index, map.rank(key));
+			index++;
+		}
+	}
+	
+	public void testFromSorted() {
+		for (int n = 0; n < 70; n++) {
+			java.util.TreeMap<String, String> expected = new java.util.TreeMap<String, String>();
+			for (int i = 0; i < n; i++) {
+				expected.put(String.format("%03d", i), "test_" + i);
+			}
+			RedBlackTree map = RedBlackTree.fromSorted(expected.entrySet().iterator(), n);
+			assertNull(map.check());
+			assertEquals(n, map.size());
+			for (String key : expected.keySet()) {
+				assertEquals(expected.get(key), map.get(key));
+			}
+			
+			map = RedBlackTree.fromSorted(expected.entrySet().iterator());
+			assertNull(map.check());
+			assertEquals(n, map.size());
+			
+			// the built tree must still rebalance correctly afterwards
+			map.put("0005", "extra");
+			map.remove("000");
+			assertNull(map.check());
+		}
+	}
+	
+	public void testFromSortedRejectsUnsorted() {
+		java.util.Map<String, String> entries = new java.util.LinkedHashMap<String, String>();
+		entries.put("10", "test_10");
+		entries.put("05", "test_05");
+		try {
+			RedBlackTree.fromSorted(entries.entrySet().iterator(), 2);
+			fail("Expected IllegalArgumentException");
+		} catch (IllegalArgumentException iae) {
+			// expected
+		}
+	}
+	
+	public void testFromSortedRejectsWrongSize() {
+		java.util.Map<String, String> entries = new java.util.TreeMap<String, String>();
+		entries.put("05", "test_05");
+		entries.put("10", "test_10");
+		entries.put("15", "test_15");
+		for (int size : new int[] {2, 4}) {
+			try {
+				RedBlackTree.fromSorted(entries.entrySet().iterator(), size);
+				fail("Expected IllegalArgumentException");
+			} catch (IllegalArgumentException iae) {
+				// expected
+			}
+		}
+	}
+	
+	public void testPutAllSorted() {
+		RedBlackTree map = (RedBlackTree)getTree(getBigKeys());
+		java.util.TreeMap<String, String> batch = new java.util.TreeMap<String, String>();
+		batch.put("00", "new_00");
+		batch.put("10", "new_10");
+		batch.put("12", "new_12");
+		batch.put("99", "new_99");
+		map.putAllSorted(batch.entrySet().iterator());
+		assertNull(map.check());
+		assertEquals(getBigKeys().length + 3, map.size());
+		assertEquals("new_00", map.get("00"));
+		assertEquals("new_10", map.get("10"));
+		assertEquals("new_12", map.get("12"));
+		assertEquals("test_11", map.get("11"));
+		assertEquals("00", map.select(0));
+		assertEquals("99", map.select(map.size() - 1));
+	}
+	
+	private java.util.List<String> keysOf(Iterable<java.util.Map.Entry<String, String>> entries) {
+		java.util.List<String> keys = new java.util.ArrayList<String>();
+		for (java.util.Map.Entry<String, String> entry : entries) {
+			assertEquals("test_" + entry.getKey(), entry.getValue());
+			keys.add(entry.getKey());
+		}
+		return keys;
+	}
+	
+	public void testIteration() {
+		String[] keys = getBigKeys();
+		RedBlackTree map = (RedBlackTree)getTree(keys);
+		java.util.TreeMap<String, String> expected = new java.util.TreeMap<String, String>();
+		for (String key : keys) {
+			expected.put(key, "test_" + key);
+		}
+		
+		assertEquals(new java.util.ArrayList<String>(expected.keySet()), keysOf(map.entries()));
+		assertEquals(new java.util.ArrayList<String>(expected.descendingKeySet()), keysOf(map.descendingEntries()));
+		assertEquals(new java.util.ArrayList<String>(expected.subMap("05", "13").keySet()),
+				keysOf(map.range("05", "13")));
+		assertEquals(new java.util.ArrayList<String>(expected.subMap("045", "125").keySet()),
+				keysOf(map.range("045", "125")));
+		assertEquals(new java.util.ArrayList<String>(expected.headMap("10").keySet()), keysOf(map.headMap("10")));
+		assertEquals(new java.util.ArrayList<String>(expected.tailMap("10").keySet()), keysOf(map.tailMap("10")));
+		assertEquals(new java.util.ArrayList<String>(expected.subMap("05", false, "13", true).descendingKeySet()),
+				keysOf(map.range("05", false, "13", true, true)));
+		assertTrue(keysOf(map.range("13", "05")).isEmpty());
+		assertTrue(keysOf(map.range("10", "10")).isEmpty());
+		assertEquals(java.util.Arrays.asList("10"), keysOf(map.range("10", true, "10", true, false)));
+		assertTrue(keysOf(newTree().entries()).isEmpty());
+	}
+	
+	public void testIteratorFailFast() {
+		RedBlackTree map = (RedBlackTree)getTree(getBigKeys());
+		java.util.Iterator<java.util.Map.Entry<String, String>> it = map.entries().iterator();
+		it.next();
+		map.put("99", "test_99");
+		try {
+			it.next();
+			fail("Expected ConcurrentModificationException");
+		} catch (java.util.ConcurrentModificationException cme) {
+			// expected
+		}
+		
+		// overwriting a value is not a structural change
+		it = map.entries().iterator();
+		it.next();
+		map.put("10", "test_10");
+		it.next();
+	}
+	
+	public void testIteratorRemove() {
+		RedBlackTree map = (RedBlackTree)getTree(getBigKeys());
+		// remove every other key in a range, including nodes with two children
+		java.util.Iterator<java.util.Map.Entry<String, String>> it = map.range("03", "16").iterator();
+		java.util.List<String> seen = new java.util.ArrayList<String>();
+		boolean remove = true;
+		while (it.hasNext()) {
+			seen.add(it.next().getKey());
+			if (remove) {
+				it.remove();
+			}
+			remove = !remove;
+			assertNull(map.check());
+		}
+		assertEquals(java.util.Arrays.asList("03", "04", "05", "06", "07", "08", "10", "11", "13", "14", "15"), seen);
+		assertEquals(java.util.Arrays.asList("01", "04", "06", "08", "11", "14", "16", "17", "18"),
+				keysOf(map.entries()));
+		
+		it = map.descendingEntries().iterator();
+		while (it.hasNext()) {
+			it.next();
+			it.remove();
+		}
+		assertTrue(map.isEmpty());
+		assertNull(map.check());
+	}
+	
+	public void testSpliteratorSplits() {
+		RedBlackTree map = newTree();
+		for (int i = 0; i < 1000; i++) {
+			map.put(String.format("%04d", i), "test_" + i);
+		}
+		java.util.Spliterator<java.util.Map.Entry<String, String>> rest = map.spliterator();
+		java.util.Spliterator<java.util.Map.Entry<String, String>> prefix = rest.trySplit();
+		assertEquals(500, prefix.estimateSize());
+		assertEquals(500, rest.estimateSize());
+		java.util.Spliterator<java.util.Map.Entry<String, String>> quarter = prefix.trySplit();
+		assertEquals(250, quarter.estimateSize());
+		
+		final java.util.List<String> keys = new java.util.ArrayList<String>();
+		quarter.forEachRemaining(entry -> keys.add(entry.getKey()));
+		prefix.forEachRemaining(entry -> keys.add(entry.getKey()));
+		while (rest.tryAdvance(entry -> keys.add(entry.getKey()))) {
+			// keep going
+		}
+		assertEquals(1000, keys.size());
+		for (int i = 0; i < 1000; i++) {
+			assertEquals(String.format("%04d", i), keys.get(i));
+		}
+	}
+	
+	public void testParallelStream() {
+		RedBlackTree map = newTree();
+		long expectedSum = 0;
+		for (int i = 0; i < 10000; i++) {
+			map.put(String.format("%05d", i), String.valueOf(i));
+			expectedSum += i;
+		}
+		assertEquals(expectedSum, map.parallelStream().mapToLong(entry -> Long.parseLong(entry.getValue())).sum());
+		assertEquals(10000, map.parallelStream().count());
+		java.util.List<String> keys = map.parallelStream().map(java.util.Map.Entry::getKey)
+				.collect(java.util.stream.Collectors.toList());
+		assertEquals(map.size(), keys.size());
+		for (int i = 0; i < keys.size(); i++) {
+			assertEquals(String.format("%05d", i), keys.get(i));
+		}
+		assertEquals(0, newTree().parallelStream().count());
+	}
+	
+	public void testSaveAndLoad() throws java.io.IOException {
+		java.io.File file = java.io.File.createTempFile("rbt", ".snapshot");
+		file.deleteOnExit();
+		for (int n : new int[]{0, 1, 2, 3, 100, 1000}) {
+			RedBlackTree map = newTree();
+			for (int i = 0; i < n; i++) {
+				// non-ASCII keys and a null value exercise the string encoding
+				map.put("k\u00e9y_" + String.format("%04d", (i * 7) % n), i == 1 ? null : "test_" + i);
+			}
+			map.save(file);
+			
+			RedBlackTree loaded = newTree();
+			loaded.put("stale", "gone after load");
+			loaded.load(file);
+			assertNull(loaded.check());
+			assertEquals(map.size(), loaded.size());
+			assertEquals(map.stream().collect(java.util.stream.Collectors.toList()),
+					loaded.stream().collect(java.util.stream.Collectors.toList()));
+			assertNull(loaded.get("stale"));
+			
+			// the loaded tree must still rebalance correctly afterwards
+			loaded.put("new", "test_new");
+			loaded.remove("k\u00e9y_0000");
+			assertNull(loaded.check());
+		}
+	}
+	
+	public void testLoadRejectsCorruptSnapshot() throws java.io.IOException {
+		java.io.File file = java.io.File.createTempFile("rbt", ".snapshot");
+		file.deleteOnExit();
+		RedBlackTree map = (RedBlackTree)getTree(getBigKeys());
+		map.save(file);
+		byte[] bytes = java.nio.file.Files.readAllBytes(file.toPath());
+		
+		// flip one byte of the body, then cut the file short
+		byte[] flipped = bytes.clone();
+		flipped[flipped.length - 2] ^= 1;
+		byte[] truncated = java.util.Arrays.copyOf(bytes, bytes.length - 3);
+		for (byte[] corrupt : new byte[][]{flipped, truncated}) {
+			java.nio.file.Files.write(file.toPath(), corrupt);
+			RedBlackTree loaded = newTree();
+			loaded.put("kept", "test_kept");
+			try {
+				loaded.load(file);
+				fail("Expected IOException");
+			} catch (java.io.IOException ioe) {
+				// expected
+			}
+			// a failed load leaves the tree as it was
+			assertEquals(1, loaded.size());
+			assertEquals("test_kept", loaded.get("kept"));
+			assertNull(loaded.check());
+		}
+	}
+	
+	public void testMetrics() throws Exception {
+		java.util.Random random = new java.util.Random(11);
+		RedBlackTree map = newTree();
+		TreeMetrics metrics = map.metrics();
+		long inserts = 0;
+		long deletes = 0;
+		for (int i = 0; i < 20000; i++) {
+			String key = String.format("%05d", random.nextInt(5000));
+			if (random.nextInt(3) == 0) {
+				if (map.remove(key) != null) {
+					deletes++;
+				}
+			} else if (map.get(key) == null) {
+				map.put(key, "test_" + i);
+				inserts++;
+			}
+			if (i % 1000 == 0) {
+				// check() compares the tracked black height against a full walk
+				assertNull(map.check());
+				assertTrue(map.height() <= metrics.getHeightBound());
+				assertTrue(map.height() >= metrics.getBlackHeight());
+			}
+		}
+		assertNull(map.check());
+		assertEquals(map.size(), metrics.getSize());
+		assertEquals(inserts, metrics.getInserts());
+		assertEquals(deletes, metrics.getDeletes());
+		// every insert fixup iteration lands in exactly one case
+		assertEquals(metrics.getInsertFixupIterations(),
+				metrics.getInsertCase1() + metrics.getInsertCase2() + metrics.getInsertCase3());
+		assertEquals(metrics.getDeleteFixupIterations(),
+				metrics.getDeleteCase2() + metrics.getDeleteCase3a() + metrics.getDeleteCase3b() +
+				metrics.getDeleteCase4() + metrics.getDeleteCase5());
+		assertEquals(metrics.getInsertCase2() + 2 * metrics.getInsertCase3() + metrics.getDeleteCase2() +
+				metrics.getDeleteCase4() + 2 * metrics.getDeleteCase5(), metrics.getRotations());
+		assertTrue(metrics.getRecolorings() > 0);
+		
+		// removing everything brings the black height back to zero
+		for (String key : map.stream().map(java.util.Map.Entry::getKey).toArray(String[]::new)) {
+			map.remove(key);
+		}
+		assertEquals(0, metrics.getBlackHeight());
+		assertNull(map.check());
+		
+		metrics.reset();
+		assertEquals(0, metrics.getRotations());
+		assertEquals(0, metrics.getInserts());
+		
+		map = RedBlackTree.fromSorted(java.util.Collections.<String, String>emptyMap().entrySet().iterator(), 0);
+		assertEquals(0, map.blackHeight());
+		for (int n = 1; n < 70; n++) {
+			java.util.TreeMap<String, String> entries = new java.util.TreeMap<String, String>();
+			for (int i = 0; i < n; i++) {
+				entries.put(String.format("%03d", i), "test_" + i);
+			}
+			map = RedBlackTree.fromSorted(entries.entrySet().iterator(), n);
+			assertNull(map.check());
+			map.put("0005", "extra");
+			map.remove("000");
+			assertNull(map.check());
+		}
+	}
+	
+	public void testMetricsOverJmx() throws Exception {
+		RedBlackTree map = (RedBlackTree)getTree(getBigKeys());
+		javax.management.ObjectName name = map.metrics().register("testMetricsOverJmx");
+		javax.management.MBeanServer server = java.lang.management.ManagementFactory.getPlatformMBeanServer();
+		try {
+			assertEquals(map.size(), server.getAttribute(name, "Size"));
+			assertEquals(map.blackHeight(), server.getAttribute(name, "BlackHeight"));
+			assertEquals(map.metrics().getRotations(), server.getAttribute(name, "Rotations"));
+		} finally {
+			server.unregisterMBean(name);
+		}
+	}
+	
+	private RedBlackTree bigTree(int n) {
+		RedBlackTree map = newTree();
+		for (int i = 0; i < n; i++) {
+			map.put(String.format("%06d", (i * 7919) % n), "test_" + i);
+		}
+		return map;
+	}
+	
+	public void testViolationsReportsEveryProblem() {
+		RedBlackTree map = bigTree(100000);
+		java.util.concurrent.ForkJoinPool pool = new java.util.concurrent.ForkJoinPool(4);
+		assertTrue(map.violations().isEmpty());
+		assertTrue(map.violations(Integer.MAX_VALUE, pool).isEmpty());
+		
+		// a key on the wrong side of its grandparent, which comparing with the parent alone misses
+		Node node = map.root.getLeft().getRight();
+		node.getRight().setKey(map.root.getKey() + "x");
+		// a red root
+		map.root.setColor(Node.Color.RED);
+		// a bad subtree count deep in the right subtree
+		Node deep = map.root.getRight().getRight().getLeft();
+		deep.setCount(deep.getCount() + 1);
+		
+		java.util.List<String> violations = map.violations();
+		assertEquals(map.violations(Integer.MAX_VALUE, pool), violations);
+		assertTrue(violations.get(0).endsWith("Root is red"));
+		assertTrue(violations.size() >= 3);
+		boolean badKey = false;
+		boolean badCount = false;
+		for (String violation : violations) {
+			badKey |= violation.contains(map.root.getKey() + "x; Unexpected key");
+			badCount |= violation.startsWith("Corrupted order statistics at node with key " + deep.getKey());
+		}
+		assertTrue(badKey);
+		assertTrue(badCount);
+		
+		assertEquals(violations.get(0), map.check());
+		assertEquals(violations.subList(0, 2), map.violations(2, pool));
+		pool.shutdown();
+	}
+	
+	public void testViolationsOnDegenerateTree() {
+		// a long right-leaning chain of black nodes: a recursive walk would overflow the stack
+		RedBlackTree map = newTree();
+		Node nil = map.nil;
+		Node parent = nil;
+		int n = 200000;
+		for (int i = 0; i < n; i++) {
+			Node node = new Node(parent, nil, nil, String.format("%06d", i), "test_" + i);
+			node.setColor(Node.Color.BLACK);
+			node.setCount(n - i);
+			if (parent == nil) {
+				map.root = node;
+			} else {
+				parent.setRight(node);
+			}
+			parent = node;
+		}
+		java.util.List<String> violations = map.violations();
+		// the paths first disagree at the second to last node. Its ancestors disagree too, but
+		// only the lowest mismatch is reported
+		assertTrue(violations.contains(String.format("Path at node with key %06d" +
+				" contains unexpected number of black nodes: 1 vs. 2", n - 2)));
+		assertEquals(violations, map.violations(Integer.MAX_VALUE, java.util.concurrent.ForkJoinPool.commonPool()));
+		assertNotNull(map.check());
+	}
+	
+	public void testViolationsOnCycle() {
+		RedBlackTree map = bigTree(1000);
+		// point a leaf back at the root; the validator must not loop
+		Node leaf = map.root;
+		while (leaf.getLeft() != map.nil) {
+			leaf = leaf.getLeft();
+		}
+		leaf.setLeft(map.root);
+		java.util.List<String> violations = map.violations();
+		assertTrue(violations.contains("Corrupted BST at node with key " + map.root.getKey() + "; Unexpected parent"));
+	}
+	
+	public void testLookupCache() {
+		for (LookupCache.Policy policy : LookupCache.Policy.values()) {
+			for (int capacity : new int[]{1, 7, 200}) {
+				java.util.Random random = new java.util.Random(capacity);
+				java.util.TreeMap<String, String> expected = new java.util.TreeMap<String, String>();
+				RedBlackTree map = newTree();
+				LookupCache cache = new LookupCache(capacity, policy);
+				map.setLookupCache(cache);
+				for (int i = 0; i < 20000; i++) {
+					// mostly a few hot keys, so the cache gets hits and removals hit cached nodes
+					int n = random.nextInt(4) == 0 ? random.nextInt(1000) : random.nextInt(20);
+					String key = String.format("%04d", n);
+					switch (random.nextInt(10)) {
+					case 0:
+					case 1:
+						assertEquals(expected.remove(key), map.remove(key));
+						break;
+					case 2:
+					case 3:
+						expected.put(key, "test_" + i);
+						map.put(key, "test_" + i);
+						break;
+					case 4:
+						if (i % 50 == 0) {
+							// iterator removal goes through removeNode, copying entries between nodes
+							java.util.Iterator<java.util.Map.Entry<String, String>> it = map.entries().iterator();
+							while (it.hasNext()) {
+								if (random.nextInt(8) == 0) {
+									expected.remove(it.next().getKey());
+									it.remove();
+								} else {
+									it.next();
+								}
+							}
+						}
+						break;
+					case 5:
+						if (i % 500 == 0) {
+							// a bulk rebuild replaces every node
+							java.util.TreeMap<String, String> batch = new java.util.TreeMap<String, String>();
+							batch.put(key, "bulk_" + i);
+							expected.putAll(batch);
+							map.putAllSorted(batch.entrySet().iterator());
+						}
+						break;
+					default:
+						assertEquals(expected.get(key), map.get(key));
+					}
+					assertTrue(cache.size() <= capacity);
+				}
+				assertNull(map.check());
+				for (String key : expected.keySet()) {
+					assertEquals(expected.get(key), map.get(key));
+				}
+				assertTrue(cache.getHits() > 0);
+				assertTrue(cache.getMisses() > 0);
+				
+				map.setLookupCache(null);
+				assertEquals(expected.get("0001"), map.get("0001"));
+			}
+		}
+	}
+	
+	public void testLookupCacheKeepsHotKeys() {
+		// one-off keys shouldn't push the hot set out of a TINY_LFU cache
+		RedBlackTree map = newTree();
+		for (int i = 0; i < 10000; i++) {
+			map.put(String.format("%05d", i), "test_" + i);
+		}
+		LookupCache cache = new LookupCache(100, LookupCache.Policy.TINY_LFU);
+		map.setLookupCache(cache);
+		for (int round = 0; round < 50; round++) {
+			for (int i = 0; i < 50; i++) {
+				map.get(String.format("%05d", i));
+			}
+			for (int i = 0; i < 200; i++) {
+				map.get(String.format("%05d", 100 + round * 200 + i));
+			}
+		}
+		cache.resetCounters();
+		for (int i = 0; i < 50; i++) {
+			map.get(String.format("%05d", i));
+		}
+		assertTrue(cache.getHits() >= 45);
+	}
+	
+	public void testCursor() {
+		java.util.Random random = new java.util.Random(23);
+		java.util.TreeMap<String, String> expected = new java.util.TreeMap<String, String>();
+		RedBlackTree map = newTree();
+		RedBlackTree.Cursor cursor = map.cursor();
+		assertNull(cursor.key());
+		assertNull(cursor.get("0000"));
+		int position = 500;
+		for (int i = 0; i < 20000; i++) {
+			// mostly small steps from the last key, with the occasional jump and some changes
+			// made behind the cursor's back
+			position = random.nextInt(50) == 0 ? random.nextInt(1000) :
+					Math.max(0, Math.min(999, position + random.nextInt(7) - 3));
+			String key = String.format("%04d", position);
+			switch (random.nextInt(8)) {
+			case 0:
+			case 1:
+				assertEquals(expected.remove(key), cursor.remove(key));
+				break;
+			case 2:
+			case 3:
+			case 4:
+				expected.put(key, "test_" + i);
+				cursor.put(key, "test_" + i);
+				assertEquals(key, cursor.key());
+				break;
+			case 5:
+				if (random.nextInt(10) == 0) {
+					String other = String.format("%04d", random.nextInt(1000));
+					if (random.nextBoolean()) {
+						expected.put(other, "other_" + i);
+						map.put(other, "other_" + i);
+					} else {
+						assertEquals(expected.remove(other), map.remove(other));
+					}
+				}
+				break;
+			default:
+				assertEquals(expected.get(key), cursor.get(key));
+			}
+		}
+		assertNull(map.check());
+		assertEquals(new java.util.ArrayList<java.util.Map.Entry<String, String>>(expected.entrySet()),
+				map.stream().collect(java.util.stream.Collectors.toList()));
+		
+		// removing every key in order through one cursor leaves its finger on the next one
+		RedBlackTree.Cursor remover = map.cursor();
+		for (String key : new java.util.ArrayList<String>(expected.keySet())) {
+			assertEquals(expected.get(key), remover.remove(key));
+		}
+		assertTrue(map.isEmpty());
+		assertNull(remover.key());
+		assertNull(map.check());
+	}
+
+	public void testBatchPutRemove() {
+		java.util.Random random = new java.util.Random(24);
+		java.util.TreeMap<String, String> expected = new java.util.TreeMap<String, String>();
+		RedBlackTree map = newTree();
+		for (int round = 0; round < 300; round++) {
+			// batch sizes on both sides of the merge threshold, sometimes sorted, with duplicates
+			int m = random.nextBoolean() ? random.nextInt(10) : random.nextInt(600);
+			String[] keys = new String[m];
+			String[] values = new String[m];
+			for (int i = 0; i < m; i++) {
+				keys[i] = String.format("%04d", random.nextInt(2000));
+				values[i] = "test_" + round + "_" + i;
+			}
+			if (random.nextInt(3) == 0) {
+				java.util.Arrays.sort(keys);
+			}
+			String[] results = new String[m];
+			int changed = 0;
+			if (random.nextInt(3) == 0) {
+				String[] removed = new String[m];
+				for (int i = 0; i < m; i++) {
+					removed[i] = expected.remove(keys[i]);
+					changed += removed[i] == null ? 0 : 1;
+				}
+				assertEquals(changed, map.removeAll(keys, results));
+				assertEquals(java.util.Arrays.asList(removed), java.util.Arrays.asList(results));
+			} else {
+				String[] previous = new String[m];
+				for (int i = 0; i < m; i++) {
+					previous[i] = expected.put(keys[i], values[i]);
+					changed += previous[i] == null ? 1 : 0;
+				}
+				if (random.nextBoolean()) {
+					assertEquals(changed, map.putAll(keys, values, results));
+					assertEquals(java.util.Arrays.asList(previous), java.util.Arrays.asList(results));
+				} else {
+					assertEquals(changed, map.putAll(keys, values, null));
+				}
+			}
+			assertNull(map.check());
+			assertEquals(expected.size(), map.size());
+		}
+		assertEquals(new java.util.ArrayList<java.util.Map.Entry<String, String>>(expected.entrySet()),
+				map.stream().collect(java.util.stream.Collectors.toList()));
+	}
+
+	public void testBatchRejectsBadInput() {
+		RedBlackTree map = (RedBlackTree)getTree(getBigKeys());
+		try {
+			map.putAll(new String[] {"00", null}, new String[] {"a", "b"}, null);
+			fail("Expected NullPointerException");
+		} catch (NullPointerException e) {
+		}
+		try {
+			map.putAll(new String[] {"00", "01"}, new String[] {"a"}, null);
+			fail("Expected IllegalArgumentException");
+		} catch (IllegalArgumentException e) {
+		}
+		try {
+			map.removeAll(new String[] {"10", "11"}, new String[1]);
+			fail("Expected IllegalArgumentException");
+		} catch (IllegalArgumentException e) {
+		}
+		assertNull(map.get("00"));
+		assertEquals(getBigKeys().length, map.size());
+		assertNull(map.check());
+	}
+
+	private RedBlackTree randomTree(java.util.Random random, java.util.TreeMap<String, String> expected,
+			int size, int keyRange, String valuePrefix) {
+		RedBlackTree map = newTree();
+		for (int i = 0; i < size; i++) {
+			String key = String.format("%06d", random.nextInt(keyRange));
+			expected.put(key, valuePrefix + key);
+			map.put(key, valuePrefix + key);
+		}
+		return map;
+	}
+
+	private void assertContents(java.util.SortedMap<String, String> expected, RedBlackTree map) {
+		assertNull(map.check());
+		assertEquals(expected.size(), map.size());
+		assertEquals(new java.util.ArrayList<java.util.Map.Entry<String, String>>(expected.entrySet()),
+				map.stream().collect(java.util.stream.Collectors.toList()));
+	}
+
+	public void testSplitAndJoin() {
+		java.util.Random random = new java.util.Random(25);
+		for (int round = 0; round < 200; round++) {
+			java.util.TreeMap<String, String> expected = new java.util.TreeMap<String, String>();
+			RedBlackTree map = randomTree(random, expected, random.nextInt(round < 100 ? 40 : 3000), 10000, "test_");
+			String key = String.format("%06d", random.nextInt(10000));
+			RedBlackTree upper = map.split(key);
+			assertContents(expected.headMap(key), map);
+			assertContents(expected.tailMap(key), upper);
+
+			// rejoin around a key taken out of one side, and with nothing in between
+			java.util.TreeMap<String, String> rest = new java.util.TreeMap<String, String>(expected.tailMap(key));
+			String middle = rest.isEmpty() ? null : rest.firstKey();
+			if (middle != null) {
+				upper.remove(middle);
+				RedBlackTree joined = RedBlackTree.join(map, middle, "joined", upper);
+				expected.put(middle, "joined");
+				assertContents(expected, joined);
+				assertTrue(map.isEmpty());
+				assertTrue(upper.isEmpty());
+				assertNull(map.check());
+			} else {
+				assertContents(expected, RedBlackTree.join(map, upper));
+			}
+		}
+	}
+
+	public void testJoinRejectsOverlappingKeys() {
+		RedBlackTree left = (RedBlackTree)getTree(getBigKeys());
+		RedBlackTree right = left.split("10");
+		try {
+			RedBlackTree.join(right, left);
+			fail("Expected IllegalArgumentException");
+		} catch (IllegalArgumentException e) {
+		}
+		try {
+			RedBlackTree.join(left, "12", "test_12", right);
+			fail("Expected IllegalArgumentException");
+		} catch (IllegalArgumentException e) {
+		}
+		try {
+			left.union(left);
+			fail("Expected IllegalArgumentException");
+		} catch (IllegalArgumentException e) {
+		}
+		assertNull(left.check());
+		assertNull(right.check());
+		assertEquals(getBigKeys().length, left.size() + right.size());
+	}
+
+	public void testSetOperations() {
+		java.util.Random random = new java.util.Random(26);
+		for (int round = 0; round < 60; round++) {
+			// the last rounds are big enough to be combined in parallel
+			int size = round < 50 ? random.nextInt(500) : 20000 + random.nextInt(20000);
+			int otherSize = random.nextInt(4) == 0 ? random.nextInt(10) : random.nextInt(2 * size + 1);
+			int keyRange = 2 * Math.max(size, otherSize) + 1;
+			java.util.TreeMap<String, String> mine = new java.util.TreeMap<String, String>();
+			java.util.TreeMap<String, String> theirs = new java.util.TreeMap<String, String>();
+			RedBlackTree map = randomTree(random, mine, size, keyRange, "mine_");
+			RedBlackTree other = randomTree(random, theirs, otherSize, keyRange, "theirs_");
+			java.util.TreeMap<String, String> expected = new java.util.TreeMap<String, String>(mine);
+			switch (round % 3) {
+			case 0:
+				expected.putAll(theirs);
+				map.union(other);
+				break;
+			case 1:
+				expected.keySet().retainAll(theirs.keySet());
+				map.intersection(other);
+				break;
+			default:
+				expected.keySet().removeAll(theirs.keySet());
+				map.difference(other);
+			}
+			assertContents(expected, map);
+			assertTrue(other.isEmpty());
+			assertNull(other.check());
+		}
+	}
+
 	public void testHeight() {
-		SymbolTable map = new RedBlackTree();
+		SymbolTable map = newTree();
 		map.put("10", "test_10");
 		map.put("05", "test_05");
 		
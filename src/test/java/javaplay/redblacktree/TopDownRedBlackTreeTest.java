@@ -0,0 +1,60 @@
+package javaplay.redblacktree;
+
+public class TopDownRedBlackTreeTest extends RedBlackTreeTest {
+	@Override
+	protected RedBlackTree newTree() {
+		return new TopDownRedBlackTree();
+	}
+	
+	public void testMixedEngines() {
+		// iterator removal still goes through the bottom-up removeNode, so the two engines
+		// take turns on the same tree
+		java.util.Random random = new java.util.Random(19);
+		java.util.TreeMap<String, String> expected = new java.util.TreeMap<String, String>();
+		RedBlackTree map = newTree();
+		for (int round = 0; round < 20; round++) {
+			for (int i = 0; i < 500; i++) {
+				String key = String.format("%04d", random.nextInt(1000));
+				if (random.nextInt(3) == 0) {
+					assertEquals(expected.remove(key), map.remove(key));
+				} else {
+					expected.put(key, "test_" + i);
+					map.put(key, "test_" + i);
+				}
+			}
+			java.util.Iterator<java.util.Map.Entry<String, String>> it = map.entries().iterator();
+			while (it.hasNext()) {
+				if (random.nextInt(4) == 0) {
+					expected.remove(it.next().getKey());
+					it.remove();
+				} else {
+					it.next();
+				}
+			}
+			assertNull(map.check());
+			assertEquals(new java.util.ArrayList<java.util.Map.Entry<String, String>>(expected.entrySet()),
+					map.stream().collect(java.util.stream.Collectors.toList()));
+		}
+	}
+	
+	public void testNullKeyLeavesTreeUnchanged() {
+		RedBlackTree map = newTree();
+		for (int i = 0; i < 100; i++) {
+			map.put(String.format("%03d", i), "test_" + i);
+		}
+		try {
+			map.put(null, "test_null");
+			fail("Expected NullPointerException");
+		} catch (NullPointerException npe) {
+			// expected
+		}
+		try {
+			map.remove(null);
+			fail("Expected NullPointerException");
+		} catch (NullPointerException npe) {
+			// expected
+		}
+		assertEquals(100, map.size());
+		assertNull(map.check());
+	}
+}
@@ -0,0 +1,180 @@
+package javaplay.redblacktree;
+
+import java.util.Comparator;
+import java.util.Random;
+import java.util.TreeMap;
+
+import junit.framework.TestCase;
+
+public class TypedRedBlackTreeTest extends TestCase {
+	public void testGenericNaturalOrder() {
+		GenericRedBlackTree<Integer, String> map = new GenericRedBlackTree<Integer, String>();
+		map.put(10, "ten").put(2, "two").put(33, "thirty three");
+		// numeric, not lexicographic, ordering
+		assertEquals(Integer.valueOf(10), map.successor(2));
+		assertEquals(Integer.valueOf(33), map.select(2));
+		assertEquals("two", map.get(2));
+		assertNull(map.get(3));
+		assertNull(map.check());
+	}
+	
+	public void testGenericComparator() {
+		GenericRedBlackTree<String, Integer> map =
+				new GenericRedBlackTree<String, Integer>(Comparator.reverseOrder());
+		map.put("a", 1).put("b", 2).put("c", 3);
+		assertEquals("c", map.select(0));
+		assertEquals("a", map.successor("b"));
+		assertEquals(Integer.valueOf(2), map.remove("b"));
+		assertEquals(2, map.size());
+		assertNull(map.check());
+	}
+	
+	public void testLongRandomPutRemove() {
+		Random random = new Random(7);
+		TreeMap<Long, String> expected = new TreeMap<Long, String>();
+		LongRedBlackTree<String> map = new LongRedBlackTree<String>();
+		for (int i = 0; i < 5000; i++) {
+			// include negative keys to make sure we don't compare by subtraction
+			long key = (random.nextInt(2000) - 1000) * 1000000007L;
+			if (random.nextInt(3) == 0) {
+				assertEquals(expected.remove(key), map.remove(key));
+			} else {
+				expected.put(key, "test_" + i);
+				map.put(key, "test_" + i);
+			}
+		}
+		assertNull(map.check());
+		assertEquals(expected.size(), map.size());
+		int index = 0;
+		for (Long key : expected.keySet()) {
+			assertEquals(expected.get(key), map.get(key));
+			assertEquals(key, map.select(index));
+			assertEquals(index, map.rank(key));
+			assertEquals(expected.higherKey(key), map.successor(key));
+			assertEquals(expected.lowerKey(key), map.predecessor(key));
+			index++;
+		}
+	}
+	
+	public void testIntRandomPutRemove() {
+		Random random = new Random(11);
+		TreeMap<Integer, String> expected = new TreeMap<Integer, String>();
+		IntRedBlackTree<String> map = new IntRedBlackTree<String>();
+		for (int i = 0; i < 5000; i++) {
+			int key = random.nextInt(2000) - 1000;
+			if (random.nextInt(3) == 0) {
+				assertEquals(expected.remove(key), map.remove(key));
+			} else {
+				expected.put(key, "test_" + i);
+				map.put(key, "test_" + i);
+			}
+		}
+		assertNull(map.check());
+		assertEquals(expected.size(), map.size());
+		assertEquals(expected.subMap(-100, true, 100, true).size(), map.count(-100, 100));
+		for (Integer key : expected.keySet()) {
+			assertEquals(expected.get(key), map.get(key));
+			assertTrue(map.containsKey(key));
+		}
+	}
+	
+	private String prefixedKey(int n) {
+		// hierarchical keys sharing long prefixes, some with non-ASCII bytes in the middle
+		return String.format("tenant-%02d/r\u00e9gion-%d/service-%03d/instance-%04d", n % 7, n % 3, n % 101, n);
+	}
+	
+	public void testUtf8RandomPutRemove() {
+		Random random = new Random(13);
+		TreeMap<String, String> expected = new TreeMap<String, String>();
+		Utf8RedBlackTree map = new Utf8RedBlackTree();
+		for (int i = 0; i < 5000; i++) {
+			String key = prefixedKey(random.nextInt(2000));
+			if (random.nextInt(3) == 0) {
+				assertEquals(expected.remove(key), map.remove(key));
+			} else {
+				expected.put(key, "test_" + i);
+				map.put(key, "test_" + i);
+			}
+		}
+		assertNull(map.check());
+		assertEquals(expected.size(), map.size());
+		int index = 0;
+		for (String key : expected.keySet()) {
+			assertEquals(expected.get(key), map.get(key));
+			assertEquals(key, map.select(index));
+			assertEquals(index, map.rank(key));
+			assertEquals(expected.higherKey(key), map.successor(key));
+			assertEquals(expected.lowerKey(key), map.predecessor(key));
+			index++;
+		}
+		// absent keys that share all but the last byte, or are prefixes of, present keys
+		String present = expected.firstKey();
+		String shorter = present.substring(0, present.length() - 1);
+		assertNull(map.get(shorter));
+		assertEquals(expected.headMap(shorter).size(), map.rank(shorter));
+		assertNull(map.get(present + "0"));
+		assertEquals(expected.headMap(present + "0").size(), map.rank(present + "0"));
+	}
+	
+	public void testUtf8CodePointOrder() {
+		Utf8RedBlackTree map = new Utf8RedBlackTree();
+		// U+1F600 encodes as a surrogate pair, which String.compareTo puts before U+FF21
+		map.put("\ud83d\ude00", "emoji").put("\uff21", "fullwidth A").put("a", "a");
+		assertEquals("a", map.select(0));
+		assertEquals("\uff21", map.select(1));
+		assertEquals("\ud83d\ude00", map.select(2));
+		assertEquals("emoji", map.get("\ud83d\ude00"));
+		assertNull(map.check());
+	}
+	
+	public void testUtf8SharedInterner() {
+		KeyInterner interner = new KeyInterner();
+		Utf8RedBlackTree first = new Utf8RedBlackTree(interner);
+		Utf8RedBlackTree second = new Utf8RedBlackTree(interner);
+		for (int i = 0; i < 3000; i++) {
+			first.put(prefixedKey(i), "first_" + i);
+			second.put(prefixedKey(i), "second_" + i);
+		}
+		assertEquals(3000, interner.size());
+		for (int i = 0; i < 3000; i += 97) {
+			// both trees point at the same array
+			assertSame(first.selectNode(i).getKey(), second.selectNode(i).getKey());
+			assertEquals("second_" + i, second.get(prefixedKey(i)));
+		}
+		assertNull(first.check());
+		assertNull(second.check());
+	}
+	
+	public void testLongCursorSlidingWindow() {
+		// timestamps arriving mostly in order, a window of the latest 1000 kept by removing
+		// the oldest through a second cursor
+		Random random = new Random(29);
+		TreeMap<Long, String> expected = new TreeMap<Long, String>();
+		LongRedBlackTree<String> map = new LongRedBlackTree<String>();
+		LongRedBlackTree<String>.Cursor appender = map.cursor();
+		LongRedBlackTree<String>.Cursor expirer = map.cursor();
+		long now = 1000000000000L;
+		for (int i = 0; i < 20000; i++) {
+			now += random.nextInt(10);
+			// a few arrive late
+			long timestamp = random.nextInt(20) == 0 ? now - random.nextInt(500) : now;
+			expected.put(timestamp, "event_" + i);
+			appender.put(timestamp, "event_" + i);
+			while (expected.size() > 1000) {
+				Long oldest = expected.firstKey();
+				assertEquals(expected.remove(oldest), expirer.remove(oldest));
+			}
+			if (i % 1000 == 0) {
+				assertNull(map.check());
+			}
+		}
+		assertNull(map.check());
+		assertEquals(expected.size(), map.size());
+		assertEquals(expected.firstKey(), expirer.key());
+		for (Long key : expected.keySet()) {
+			assertEquals(expected.get(key), appender.get(key));
+		}
+		assertNull(appender.get(now + 1));
+		assertNull(appender.get(expected.firstKey() - 1));
+	}
+}